@@ -29,19 +29,44 @@
 package de.uka.ipd.idaho.goldenGateServer.dis;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.WritableRaster;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
 
+import javax.imageio.ImageIO;
+
+import de.uka.ipd.idaho.gamta.util.imaging.BoundingBox;
 import de.uka.ipd.idaho.gamta.util.imaging.PageImage;
 import de.uka.ipd.idaho.gamta.util.imaging.PageImageInputStream;
-import de.uka.ipd.idaho.gamta.util.imaging.PageImageOutputStream;
 import de.uka.ipd.idaho.gamta.util.imaging.PageImageStore;
 import de.uka.ipd.idaho.goldenGateServer.AbstractGoldenGateServerComponent;
 import de.uka.ipd.idaho.goldenGateServer.GoldenGateServerComponentRegistry;
@@ -63,12 +88,78 @@ public class GoldenGateDIS extends AbstractGoldenGateServerComponent implements
 	
 	private UserAccessAuthority uaa;
 	
+	private boolean reEncodeUploads = false;
+	
+	private boolean useContainers = false;
+	private Thread migrationThread = null;
+	
+	private static final String MIGRATE_IMAGES_COMMAND = "migrateImages";
+	
+	private int[] derivativeDpis = new int[0];
+	private int tileSize = 0;
+	
+	private static final String GENERATE_DERIVATIVES_COMMAND = "generateDerivatives";
+	
 	/** Constructor passing 'DIS' as the letter code to super constructor
 	 */
 	public GoldenGateDIS() {
 		super("DIS");
 	}
 	
+	/* (non-Javadoc)
+	 * @see de.uka.ipd.idaho.goldenGateServer.AbstractGoldenGateServerComponent#initComponent()
+	 */
+	protected void initComponent() {
+		
+		//	decode and re-encode uploaded images instead of storing them as they come? (normalizes image data, but is expensive)
+		this.reEncodeUploads = "true".equals(this.configuration.getSetting("reEncodeUploads", "false"));
+		
+		//	store new page images in per-document containers instead of individual files?
+		this.useContainers = "true".equals(this.configuration.getSetting("useContainers", "false"));
+		
+		//	read resolutions of page image derivatives to pre-compute (e.g. thumbnail and display resolution)
+		TreeSet derivativeDpis = new TreeSet();
+		String[] derivativeDpiStrings = this.configuration.getSetting("derivativeDpis", "").trim().split("\\s++");
+		for (int d = 0; d < derivativeDpiStrings.length; d++) try {
+			int derivativeDpi = Integer.parseInt(derivativeDpiStrings[d]);
+			if (0 < derivativeDpi)
+				derivativeDpis.add(new Integer(derivativeDpi));
+		} catch (NumberFormatException nfe) {}
+		this.derivativeDpis = new int[derivativeDpis.size()];
+		int d = 0;
+		for (Iterator dit = derivativeDpis.iterator(); dit.hasNext();)
+			this.derivativeDpis[d++] = ((Integer) dit.next()).intValue();
+		
+		//	read edge length of page image tiles (0 deactivates tiling)
+		try {
+			this.tileSize = Integer.parseInt(this.configuration.getSetting("tileSize", "0"));
+		} catch (NumberFormatException nfe) {}
+		
+		//	start generating derivatives in the background
+		if ((this.derivativeDpis.length != 0) || (0 < this.tileSize)) {
+			this.derivativeThread = new DerivativeGenerator();
+			this.derivativeThread.start();
+		}
+		
+		//	start building index of available page images
+		this.indexAvailablePageImages();
+	}
+	
+	/* (non-Javadoc)
+	 * @see de.uka.ipd.idaho.goldenGateServer.AbstractGoldenGateServerComponent#exitComponent()
+	 */
+	protected void exitComponent() {
+		synchronized (this.derivativeQueue) {
+			this.derivativeThread = null;
+			this.derivativeQueue.notifyAll();
+		}
+		synchronized (this.openContainers) {
+			for (Iterator cit = this.openContainers.values().iterator(); cit.hasNext();)
+				((PageImageContainer) cit.next()).close();
+			this.openContainers.clear();
+		}
+	}
+	
 	/*
 	 * (non-Javadoc)
 	 * @see de.uka.ipd.idaho.goldenGateServer.AbstractGoldenGateServerComponent#link()
@@ -121,29 +212,32 @@ public class GoldenGateDIS extends AbstractGoldenGateServerComponent implements
 				String docId = imageId.substring(0, imageId.lastIndexOf('.'));
 				int pageId = Integer.parseInt(imageId.substring(imageId.lastIndexOf('.') + 1));
 				
-				//	get input stream
-				InputStream imageIn;
-				try {
-					imageIn = new FileInputStream(getDocumentPageImageFile(PageImage.getPageImageName(docId, pageId)));
-				}
-				catch (FileNotFoundException fnfe) {
+				//	get image data
+				PageImageData pid = getPageImageData(PageImage.getPageImageName(docId, pageId));
+				if (pid == null) {
 					output.writeLine("Could not find or load image of page " + pageId + " in document " + docId);
 					return;
 				}
-				PageImageInputStream piis = new PageImageInputStream(imageIn, GoldenGateDIS.this);
-				
-				//	indicate image coming
-				output.writeLine(GET_IMAGE);
 				
-				//	write image
-				PageImageOutputStream pios = new PageImageOutputStream(output, piis);
-				byte[] buffer = new byte[1024];
-				for (int read; (read = piis.read(buffer, 0, buffer.length)) != -1;)
-					pios.write(buffer, 0, read);
-				pios.flush();
+				//	check header, and hand over stored bytes to connection as they are (stored format is exactly the wire format)
+				try {
+					if (!pid.isValid()) {
+						output.writeLine("Could not find or load image of page " + pageId + " in document " + docId);
+						return;
+					}
+					
+					//	indicate image coming
+					output.writeLine(GET_IMAGE);
+					output.flush();
+					
+					//	write image
+					pid.transferTo(output);
+				}
 				
 				//	clean up
-				imageIn.close();
+				finally {
+					pid.close();
+				}
 			}
 //			public void performActionNetwork(BufferedReader input, BufferedWriter output) throws IOException {
 //				String imageId = input.readLine();
@@ -199,12 +293,21 @@ public class GoldenGateDIS extends AbstractGoldenGateServerComponent implements
 				String docId = imageId.substring(0, imageId.lastIndexOf('.'));
 				int pageId = Integer.parseInt(imageId.substring(imageId.lastIndexOf('.') + 1));
 				
-				//	get image
-				PageImageInputStream piis = new PageImageInputStream(input, GoldenGateDIS.this);
-				PageImage pi = new PageImage(piis);
+				//	decode image and store it re-encoded (if configured that way)
+				if (reEncodeUploads) {
+					PageImageInputStream piis = new PageImageInputStream(input, GoldenGateDIS.this);
+					PageImage pi = new PageImage(piis);
+					storePageImage(docId, pageId, pi);
+				}
 				
-				//	store image
-				storePageImage(docId, pageId, pi);
+				//	validate image data and store it as is
+				else try {
+					storePageImageData(PageImage.getPageImageName(docId, pageId), input);
+				}
+				catch (IOException ioe) {
+					output.writeLine("Invalid image of page " + pageId + " in document " + docId + ": " + ioe.getMessage());
+					return;
+				}
 				
 				//	indicate sucsess
 				output.write(STORE_IMAGE);
@@ -239,34 +342,1246 @@ public class GoldenGateDIS extends AbstractGoldenGateServerComponent implements
 		};
 		cal.add(ca);
 		
+		//	request for document page image metadata
+		ca = new ComponentActionNetwork() {
+			public String getActionCommand() {
+				return GET_IMAGE_INFO;
+			}
+			public void performActionNetwork(BufferedLineInputStream input, BufferedLineOutputStream output) throws IOException {
+				String imageId = input.readLine();
+				String docId = imageId.substring(0, imageId.lastIndexOf('.'));
+				int pageId = Integer.parseInt(imageId.substring(imageId.lastIndexOf('.') + 1));
+				
+				//	get and send image metadata
+				PageImageInfo pii = getPageImageInfo(docId, pageId);
+				if (pii == null)
+					output.writeLine("Could not find or load image of page " + pageId + " in document " + docId);
+				else {
+					output.writeLine(GET_IMAGE_INFO);
+					output.writeLine(pii.toString());
+				}
+				output.flush();
+			}
+		};
+		cal.add(ca);
+		
+		//	request for list of pages of a document
+		ca = new ComponentActionNetwork() {
+			public String getActionCommand() {
+				return LIST_PAGES;
+			}
+			public void performActionNetwork(BufferedLineInputStream input, BufferedLineOutputStream output) throws IOException {
+				String docId = input.readLine();
+				
+				//	send page image infos, one per line
+				int[] pageIds = getPageIds(docId);
+				output.writeLine(LIST_PAGES);
+				for (int p = 0; p < pageIds.length; p++) {
+					PageImageInfo pii = getPageImageInfo(docId, pageIds[p]);
+					if (pii != null)
+						output.writeLine(pii.toString());
+				}
+				output.flush();
+			}
+		};
+		cal.add(ca);
+		
+		//	request for multiple document page images
+		ca = new ComponentActionNetwork() {
+			public String getActionCommand() {
+				return GET_IMAGES;
+			}
+			public void performActionNetwork(BufferedLineInputStream input, BufferedLineOutputStream output) throws IOException {
+				String docId = input.readLine();
+				int[] pageIds;
+				try {
+					pageIds = parsePageIds(input.readLine());
+				}
+				catch (NumberFormatException nfe) {
+					output.writeLine("Invalid page IDs for document " + docId + ": " + nfe.getMessage());
+					return;
+				}
+				
+				//	send image data, each page preceded by its ID and the data length, omitting missing pages
+				output.writeLine(GET_IMAGES);
+				DataOutputStream dataOut = new DataOutputStream(output);
+				for (int p = 0; p < pageIds.length; p++) {
+					PageImageData pid = getPageImageData(PageImage.getPageImageName(docId, pageIds[p]));
+					if (pid == null)
+						continue;
+					try {
+						if (!pid.isValid())
+							continue;
+						dataOut.writeInt(pageIds[p]);
+						dataOut.writeInt((int) pid.length);
+						dataOut.flush();
+						pid.transferTo(output);
+					}
+					finally {
+						pid.close();
+					}
+				}
+				
+				//	indicate end of data
+				dataOut.writeInt(-1);
+				dataOut.flush();
+			}
+		};
+		cal.add(ca);
+		
+		//	request for document page image in a specific resolution
+		ca = new ComponentActionNetwork() {
+			public String getActionCommand() {
+				return GET_IMAGE_AT_DPI;
+			}
+			public void performActionNetwork(BufferedLineInputStream input, BufferedLineOutputStream output) throws IOException {
+				String imageId = input.readLine();
+				String docId = imageId.substring(0, imageId.lastIndexOf('.'));
+				int pageId = Integer.parseInt(imageId.substring(imageId.lastIndexOf('.') + 1));
+				int dpi = Integer.parseInt(input.readLine());
+				
+				//	get image data, preferring derivatives
+				PageImageData pid = getPageImageDataForDpi(PageImage.getPageImageName(docId, pageId), dpi);
+				if (pid == null) {
+					output.writeLine("Could not find or load image of page " + pageId + " in document " + docId);
+					return;
+				}
+				
+				//	send image data
+				try {
+					if (!pid.isValid()) {
+						output.writeLine("Could not find or load image of page " + pageId + " in document " + docId);
+						return;
+					}
+					output.writeLine(GET_IMAGE_AT_DPI);
+					output.flush();
+					pid.transferTo(output);
+				}
+				finally {
+					pid.close();
+				}
+			}
+		};
+		cal.add(ca);
+		
+		//	request for part of document page image
+		ca = new ComponentActionNetwork() {
+			public String getActionCommand() {
+				return GET_IMAGE_REGION;
+			}
+			public void performActionNetwork(BufferedLineInputStream input, BufferedLineOutputStream output) throws IOException {
+				String imageId = input.readLine();
+				String docId = imageId.substring(0, imageId.lastIndexOf('.'));
+				int pageId = Integer.parseInt(imageId.substring(imageId.lastIndexOf('.') + 1));
+				String boxString = input.readLine();
+				String dpiString = input.readLine();
+				BoundingBox box;
+				int dpi;
+				try {
+					box = BoundingBox.parse(boxString);
+					dpi = Integer.parseInt(dpiString);
+				}
+				catch (IllegalArgumentException iae) {
+					box = null;
+					dpi = 0;
+				}
+				if (box == null) {
+					output.writeLine("Invalid bounding box " + boxString + " or resolution " + dpiString + " for image of page " + pageId + " in document " + docId);
+					return;
+				}
+				
+				//	get image part, assembled from tiles if possible
+				PageImage pi;
+				try {
+					pi = getPageImageRegion(PageImage.getPageImageName(docId, pageId), box);
+				}
+				catch (IOException ioe) {
+					System.out.println("GoldenGateDIS: error getting part " + box + " of image of page " + pageId + " in document " + docId + ": " + ioe.getMessage());
+					ioe.printStackTrace(System.out);
+					pi = null;
+				}
+				if (pi == null) {
+					output.writeLine("Could not find or load image of page " + pageId + " in document " + docId);
+					return;
+				}
+				
+				//	scale image part if requested
+				if ((0 < dpi) && (dpi != pi.currentDpi))
+					pi = pi.scaleToDpi(dpi);
+				
+				//	send image part
+				output.writeLine(GET_IMAGE_REGION);
+				pi.write(output);
+				output.flush();
+			}
+		};
+		cal.add(ca);
+		
+		//	generation of derivatives for existing page images
+		ca = new ComponentActionConsole() {
+			public String getActionCommand() {
+				return GENERATE_DERIVATIVES_COMMAND;
+			}
+			public String[] getExplanation() {
+				String[] explanation = {
+						GENERATE_DERIVATIVES_COMMAND,
+						"Generate the configured derivatives for all page images stored so far."
+					};
+				return explanation;
+			}
+			public void performActionConsole(String[] arguments) {
+				if (arguments.length != 0) {
+					System.out.println(" Invalid arguments for '" + GENERATE_DERIVATIVES_COMMAND + "', specify no arguments.");
+					return;
+				}
+				if ((derivativeDpis.length == 0) && (tileSize < 1)) {
+					System.out.println(" There are no derivative resolutions or tiles configured.");
+					return;
+				}
+				int pageCount = 0;
+				synchronized (availablePageIds) {
+					if (!availablePageIdsComplete) {
+						System.out.println(" Page images are still being indexed, please try again later.");
+						return;
+					}
+					for (Iterator dit = availablePageIds.keySet().iterator(); dit.hasNext();) {
+						String docId = ((String) dit.next());
+						BitSet docPageIds = ((BitSet) availablePageIds.get(docId));
+						for (int pageId = docPageIds.nextSetBit(0); pageId != -1; pageId = docPageIds.nextSetBit(pageId + 1)) {
+							scheduleDerivatives(PageImage.getPageImageName(docId, pageId));
+							pageCount++;
+						}
+					}
+				}
+				System.out.println(" Scheduled " + pageCount + " page images for derivative generation.");
+			}
+		};
+		cal.add(ca);
+		
+		//	migration of page images from individual files to containers
+		ca = new ComponentActionConsole() {
+			public String getActionCommand() {
+				return MIGRATE_IMAGES_COMMAND;
+			}
+			public String[] getExplanation() {
+				String[] explanation = {
+						MIGRATE_IMAGES_COMMAND,
+						"Move all page images stored in individual files into per-document containers."
+					};
+				return explanation;
+			}
+			public void performActionConsole(String[] arguments) {
+				if (arguments.length != 0) {
+					System.out.println(" Invalid arguments for '" + MIGRATE_IMAGES_COMMAND + "', specify no arguments.");
+					return;
+				}
+				synchronized (GoldenGateDIS.this) {
+					if (migrationThread != null) {
+						System.out.println(" Migration of page images to containers is already running.");
+						return;
+					}
+					migrationThread = new Thread("DisContainerMigration") {
+						public void run() {
+							try {
+								migratePageImagesToContainers();
+							}
+							finally {
+								synchronized (GoldenGateDIS.this) {
+									migrationThread = null;
+								}
+							}
+						}
+					};
+					migrationThread.start();
+				}
+				System.out.println(" Migration of page images to containers started.");
+			}
+		};
+		cal.add(ca);
+		
 		return ((ComponentAction[]) cal.toArray(new ComponentAction[cal.size()]));
 	}
 	
-	private File getDocumentBaseFolder(String docId) {
+	/*
+	 * The 'create' flag of the methods below indicates whether or not to
+	 * create missing folders, i.e., whether or not a page image is about to
+	 * be stored. Read access never creates any folders.
+	 */
+	
+	private File getDocumentBaseFolder(String docId, boolean create) {
 		File primaryFolder = new File(this.dataPath, docId.substring(0, 2));
-		if (!primaryFolder.exists()) primaryFolder.mkdir();
+		if (create && !primaryFolder.exists()) primaryFolder.mkdir();
 		
 		File secondaryFolder = new File(primaryFolder, docId.substring(2, 4));
-		if (!secondaryFolder.exists()) secondaryFolder.mkdir();
+		if (create && !secondaryFolder.exists()) secondaryFolder.mkdir();
 		
 		return secondaryFolder;
 	}
 	
-	private File getDocumentPageImageFolder(String docId) {
-		File pageImageFolder = new File(this.getDocumentBaseFolder(docId), docId);
-		if (!pageImageFolder.exists()) pageImageFolder.mkdir();
+	private File getDocumentPageImageFolder(String docId, boolean create) {
+		File pageImageFolder = new File(this.getDocumentBaseFolder(docId, create), docId);
+		if (create && !pageImageFolder.exists()) pageImageFolder.mkdir();
 		return pageImageFolder;
 	}
 	
-	private File getDocumentPageImageFile(String name) {
-		return new File(this.getDocumentPageImageFolder(name), (name + "." + IMAGE_FORMAT));
+	private File getDocumentPageImageFile(String name, boolean create) {
+		return this.getDocumentPageImageFile(name, null, create);
+	}
+	
+	private File getDocumentPageImageFile(String name, String variant, boolean create) {
+		return new File(this.getDocumentPageImageFolder(name, create), (name + ((variant == null) ? "" : (DERIVATIVE_INFIX + variant)) + "." + IMAGE_FORMAT));
+	}
+	
+	/* the infix marking derived page images, in file names as well as in container names, followed by the variant (resolution or tile set) */
+	private static final String DERIVATIVE_INFIX = "@";
+	
+	/* the variant name of page image tile sets */
+	private static final String TILES_VARIANT = "tiles";
+	
+	/** the length of the page image header preceding the actual image data (8 two-byte values) */
+	static final int PAGE_IMAGE_HEADER_SIZE = 16;
+	
+	/** the signature every PNG file starts with */
+	static final byte[] PNG_SIGNATURE = {((byte) 0x89), 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+	
+	/*
+	 * get the data of a stored page image, looking in the container of the
+	 * respective document as well as for an individual file, checking the
+	 * place new page images go to first
+	 */
+	private PageImageData getPageImageData(String name) throws IOException {
+		return this.getPageImageData(name, null);
+	}
+	
+	/*
+	 * get the data of a stored variant of a page image, null indicating the
+	 * original page image, a resolution a derivative, and 'tiles' the tile set
+	 */
+	private PageImageData getPageImageData(String name, String variant) throws IOException {
+		String docId = name.substring(0, name.lastIndexOf('.'));
+		int pageId = Integer.parseInt(name.substring(name.lastIndexOf('.') + 1));
+		if (this.isPageImageIndexedAs(docId, pageId) == Boolean.FALSE)
+			return null;
+		String containerId = ((variant == null) ? docId : (docId + DERIVATIVE_INFIX + variant));
+		PageImageData pid;
+		if (this.useContainers) {
+			pid = this.getContainerPageImageData(containerId, pageId);
+			if (pid == null)
+				pid = this.getFilePageImageData(name, variant);
+		}
+		else {
+			pid = this.getFilePageImageData(name, variant);
+			if (pid == null)
+				pid = this.getContainerPageImageData(containerId, pageId);
+		}
+		return pid;
+	}
+	
+	private PageImageData getFilePageImageData(String name, String variant) throws IOException {
+		try {
+			return new PageImageData(new FileInputStream(this.getDocumentPageImageFile(name, variant, false)));
+		}
+		catch (FileNotFoundException fnfe) {
+			return null;
+		}
+	}
+	
+	private PageImageData getContainerPageImageData(String docId, int pageId) throws IOException {
+		PageImageContainer pic = this.getPageImageContainer(docId, false);
+		if (pic == null)
+			return null;
+		PageImageContainer.Entry pice = pic.getEntry(pageId);
+		if (pice == null) {
+			pic.release();
+			return null;
+		}
+		return new PageImageData(pic, pice);
+	}
+	
+	/*
+	 * get the container for the page images of a document, opening or
+	 * creating it if necessary; the container returned is acquired for the
+	 * calling code, which has to release it when done
+	 */
+	private PageImageContainer getPageImageContainer(String docId, boolean create) throws IOException {
+		synchronized (this.openContainers) {
+			PageImageContainer pic = ((PageImageContainer) this.openContainers.get(docId));
+			if (pic == null) {
+				File docFolder = this.getDocumentBaseFolder(docId, create);
+				if (!create && !PageImageContainer.exists(docFolder, docId))
+					return null;
+				pic = new PageImageContainer(docFolder, docId);
+				this.openContainers.put(docId, pic);
+			}
+			pic.acquire();
+			return pic;
+		}
+	}
+	
+	private LinkedHashMap openContainers = new LinkedHashMap(MAX_OPEN_CONTAINERS, 0.75f, true) {
+		protected boolean removeEldestEntry(Entry e) {
+			if (this.size() <= MAX_OPEN_CONTAINERS)
+				return false;
+			PageImageContainer pic = ((PageImageContainer) e.getValue());
+			if (pic.isInUse())
+				return false; // we'll catch this one later, as remaining in use has it moved to the end of the list
+			pic.close();
+			return true;
+		}
+	};
+	private static final int MAX_OPEN_CONTAINERS = 64;
+	
+	/*
+	 * check the in-memory index of available page images, returning null as
+	 * long as the index is still being built
+	 */
+	private Boolean isPageImageIndexedAs(String docId, int pageId) {
+		if (pageId < 0)
+			return Boolean.FALSE; // page IDs from requests can be anything
+		synchronized (this.availablePageIds) {
+			if (!this.availablePageIdsComplete)
+				return null;
+			BitSet docPageIds = ((BitSet) this.availablePageIds.get(docId));
+			return (((docPageIds != null) && docPageIds.get(pageId)) ? Boolean.TRUE : Boolean.FALSE);
+		}
+	}
+	
+	private void setPageImageAvailable(String name) {
+		String docId = name.substring(0, name.lastIndexOf('.'));
+		int pageId = Integer.parseInt(name.substring(name.lastIndexOf('.') + 1));
+		synchronized (this.availablePageIds) {
+			getBitSet(this.availablePageIds, docId).set(pageId);
+		}
+	}
+	
+	private HashMap availablePageIds = new HashMap();
+	private boolean availablePageIdsComplete = false;
+	
+	/*
+	 * build the in-memory index of available page images, scanning the data
+	 * folder with multiple threads in parallel, one primary folder at a time
+	 */
+	private void indexAvailablePageImages() {
+		final LinkedList primaryFolders = new LinkedList();
+		File[] dataPathFiles = this.dataPath.listFiles();
+		for (int f = 0; f < dataPathFiles.length; f++) {
+			if (dataPathFiles[f].isDirectory() && (dataPathFiles[f].getName().length() == 2))
+				primaryFolders.add(dataPathFiles[f]);
+		}
+		
+		final long start = System.currentTimeMillis();
+		final int[] runningScanners = {Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), primaryFolders.size()))};
+		System.out.println("GoldenGateDIS: indexing page images with " + runningScanners[0] + " threads ...");
+		for (int t = 0; t < runningScanners[0]; t++) {
+			Thread scanner = new Thread("DisIndexer" + t) {
+				public void run() {
+					while (true) {
+						File primaryFolder;
+						synchronized (primaryFolders) {
+							if (primaryFolders.isEmpty())
+								break;
+							primaryFolder = ((File) primaryFolders.removeFirst());
+						}
+						indexAvailablePageImages(primaryFolder);
+					}
+					synchronized (primaryFolders) {
+						if (--runningScanners[0] != 0)
+							return;
+					}
+					synchronized (availablePageIds) {
+						availablePageIdsComplete = true;
+						System.out.println("GoldenGateDIS: indexed page images of " + availablePageIds.size() + " documents in " + (System.currentTimeMillis() - start) + "ms");
+					}
+				}
+			};
+			scanner.start();
+		}
+	}
+	
+	private void indexAvailablePageImages(File primaryFolder) {
+		File[] secondaryFolders = primaryFolder.listFiles();
+		for (int sf = 0; sf < secondaryFolders.length; sf++) {
+			if (!secondaryFolders[sf].isDirectory() || (secondaryFolders[sf].getName().length() != 2))
+				continue;
+			HashMap folderPageIds = new HashMap();
+			File[] docFiles = secondaryFolders[sf].listFiles();
+			for (int df = 0; df < docFiles.length; df++) {
+				String name = docFiles[df].getName();
+				
+				//	page image container
+				if (name.endsWith(PageImageContainer.INDEX_FILE_SUFFIX)) {
+					String docId = name.substring(0, (name.length() - PageImageContainer.INDEX_FILE_SUFFIX.length()));
+					if (docId.indexOf(DERIVATIVE_INFIX) != -1)
+						continue;
+					try {
+						int[] pageIds = PageImageContainer.readPageIds(secondaryFolders[sf], docId);
+						BitSet docPageIds = getBitSet(folderPageIds, docId);
+						for (int p = 0; p < pageIds.length; p++)
+							docPageIds.set(pageIds[p]);
+					}
+					catch (IOException ioe) {
+						System.out.println("GoldenGateDIS: error indexing page image container of document " + docId + ": " + ioe.getMessage());
+					}
+				}
+				
+				//	page image folder (might be empty, as read access created folders in earlier versions)
+				else if (docFiles[df].isDirectory() && (name.lastIndexOf('.') != -1)) {
+					if (!new File(docFiles[df], (name + "." + IMAGE_FORMAT)).exists())
+						continue;
+					try {
+						int pageId = Integer.parseInt(name.substring(name.lastIndexOf('.') + 1));
+						getBitSet(folderPageIds, name.substring(0, name.lastIndexOf('.'))).set(pageId);
+					} catch (NumberFormatException nfe) {}
+				}
+			}
+			
+			//	merge folder content into index (might have been stored to while we were scanning)
+			synchronized (this.availablePageIds) {
+				for (Iterator dit = folderPageIds.keySet().iterator(); dit.hasNext();) {
+					String docId = ((String) dit.next());
+					getBitSet(this.availablePageIds, docId).or((BitSet) folderPageIds.get(docId));
+				}
+			}
+		}
+	}
+	
+	private static BitSet getBitSet(HashMap bitSets, String key) {
+		BitSet bitSet = ((BitSet) bitSets.get(key));
+		if (bitSet == null) {
+			bitSet = new BitSet();
+			bitSets.put(key, bitSet);
+		}
+		return bitSet;
+	}
+	
+	/*
+	 * get the IDs of all pages of a document that have an image stored, in
+	 * ascending order, from the index if it is complete, or from the stored
+	 * files otherwise
+	 */
+	private int[] getPageIds(String docId) throws IOException {
+		BitSet pageIds = null;
+		synchronized (this.availablePageIds) {
+			if (this.availablePageIdsComplete) {
+				pageIds = ((BitSet) this.availablePageIds.get(docId));
+				pageIds = ((pageIds == null) ? new BitSet() : ((BitSet) pageIds.clone()));
+			}
+		}
+		if (pageIds == null) {
+			pageIds = new BitSet();
+			PageImageContainer pic = this.getPageImageContainer(docId, false);
+			if (pic != null) try {
+				int[] containerPageIds = pic.getPageIds();
+				for (int p = 0; p < containerPageIds.length; p++)
+					pageIds.set(containerPageIds[p]);
+			}
+			finally {
+				pic.release();
+			}
+			File[] docFiles = this.getDocumentBaseFolder(docId, false).listFiles();
+			for (int df = 0; (docFiles != null) && (df < docFiles.length); df++) {
+				String name = docFiles[df].getName();
+				if (!name.startsWith(docId + ".") || !docFiles[df].isDirectory())
+					continue;
+				if (!new File(docFiles[df], (name + "." + IMAGE_FORMAT)).exists())
+					continue;
+				try {
+					pageIds.set(Integer.parseInt(name.substring(docId.length() + 1)));
+				} catch (NumberFormatException nfe) {}
+			}
+		}
+		int[] pageIdArray = new int[pageIds.cardinality()];
+		for (int p = 0, pageId = pageIds.nextSetBit(0); pageId != -1; p++, pageId = pageIds.nextSetBit(pageId + 1))
+			pageIdArray[p] = pageId;
+		return pageIdArray;
+	}
+	
+	/*
+	 * get the metadata of a stored page image, reading only the header and the
+	 * leading IHDR chunk of the PNG data, which holds width and height
+	 */
+	private PageImageInfo getPageImageInfo(String docId, int pageId) throws IOException {
+		PageImageData pid = this.getPageImageData(PageImage.getPageImageName(docId, pageId));
+		if (pid == null)
+			return null;
+		try {
+			
+			//	header, PNG signature, IHDR chunk length and type, width and height
+			int infoLength = (PAGE_IMAGE_HEADER_SIZE + PNG_SIGNATURE.length + 4 + 4 + 4 + 4);
+			if (pid.length < infoLength)
+				return null;
+			byte[] info = pid.read(0, infoLength);
+			for (int b = 0; b < PNG_SIGNATURE.length; b++) {
+				if (info[PAGE_IMAGE_HEADER_SIZE + b] != PNG_SIGNATURE[b])
+					return null;
+			}
+			DataInputStream infoIn = new DataInputStream(new ByteArrayInputStream(info));
+			int originalWidth = infoIn.readUnsignedShort();
+			int originalHeight = infoIn.readUnsignedShort();
+			int originalDpi = infoIn.readUnsignedShort();
+			int currentDpi = infoIn.readUnsignedShort();
+			int leftEdge = infoIn.readUnsignedShort();
+			int rightEdge = infoIn.readUnsignedShort();
+			int topEdge = infoIn.readUnsignedShort();
+			int bottomEdge = infoIn.readUnsignedShort();
+			infoIn.skipBytes(PNG_SIGNATURE.length + 4);
+			byte[] chunkType = new byte[4];
+			infoIn.readFully(chunkType);
+			if (!"IHDR".equals(new String(chunkType, "US-ASCII")))
+				return null;
+			int width = infoIn.readInt();
+			int height = infoIn.readInt();
+			return new PageImageInfo(pageId, width, height, originalWidth, originalHeight, originalDpi, currentDpi, leftEdge, rightEdge, topEdge, bottomEdge);
+		}
+		finally {
+			pid.close();
+		}
+	}
+	
+	//	upper bound for page IDs in a single request, way above the page count of any real document
+	private static final int MAX_REQUEST_PAGE_IDS = 10000;
+	
+	/*
+	 * parse a comma separated list of page IDs and page ID ranges (e.g.
+	 * '0,3,5-9'), retaining the order; negative page IDs and lists of more
+	 * than MAX_REQUEST_PAGE_IDS page IDs are rejected right away, before
+	 * expanding any ranges
+	 */
+	private static int[] parsePageIds(String pageIdString) {
+		String[] pageIdStrings = pageIdString.trim().split("\\s*\\,\\s*");
+		ArrayList pageIds = new ArrayList();
+		for (int p = 0; p < pageIdStrings.length; p++) {
+			if (pageIdStrings[p].length() == 0)
+				continue;
+			int split = pageIdStrings[p].indexOf('-', 1);
+			if (split == -1) {
+				int pageId = Integer.parseInt(pageIdStrings[p]);
+				if (pageId < 0)
+					throw new NumberFormatException("Invalid page ID " + pageId);
+				if (pageIds.size() >= MAX_REQUEST_PAGE_IDS)
+					throw new NumberFormatException("Too many page IDs, at most " + MAX_REQUEST_PAGE_IDS + " allowed");
+				pageIds.add(new Integer(pageId));
+			}
+			else {
+				int firstPageId = Integer.parseInt(pageIdStrings[p].substring(0, split).trim());
+				int lastPageId = Integer.parseInt(pageIdStrings[p].substring(split + 1).trim());
+				if (firstPageId < 0)
+					throw new NumberFormatException("Invalid page ID " + firstPageId);
+				if ((pageIds.size() + ((long) lastPageId - firstPageId + 1)) > MAX_REQUEST_PAGE_IDS)
+					throw new NumberFormatException("Too many page IDs, at most " + MAX_REQUEST_PAGE_IDS + " allowed");
+				for (long pageId = firstPageId; pageId <= lastPageId; pageId++)
+					pageIds.add(new Integer((int) pageId));
+			}
+		}
+		int[] pageIdArray = new int[pageIds.size()];
+		for (int p = 0; p < pageIdArray.length; p++)
+			pageIdArray[p] = ((Integer) pageIds.get(p)).intValue();
+		return pageIdArray;
+	}
+	
+	/*
+	 * get the data of the stored version of a page image whose resolution is
+	 * closest to some desired one, i.e., the derivative with the lowest
+	 * resolution at or above the argument one, or the original page image if
+	 * there is no such derivative
+	 */
+	private PageImageData getPageImageDataForDpi(String name, int dpi) throws IOException {
+		if (0 < dpi) {
+			for (int d = 0; d < this.derivativeDpis.length; d++) {
+				if (this.derivativeDpis[d] < dpi)
+					continue;
+				PageImageData pid = this.getPageImageData(name, ("" + this.derivativeDpis[d]));
+				if (pid != null)
+					return pid;
+			}
+		}
+		return this.getPageImageData(name, null);
+	}
+	
+	/*
+	 * enqueue a page image for the generation of its derivatives (if any
+	 * derivative resolutions are configured)
+	 */
+	private void scheduleDerivatives(String name) {
+		if ((this.derivativeDpis.length == 0) && (this.tileSize < 1))
+			return;
+		synchronized (this.derivativeQueue) {
+			if (this.derivativeQueue.contains(name))
+				return;
+			this.derivativeQueue.addLast(name);
+			this.derivativeQueue.notify();
+		}
+	}
+	
+	private LinkedList derivativeQueue = new LinkedList();
+	private Thread derivativeThread = null;
+	
+	/*
+	 * generate the derivatives of a page image, i.e., versions scaled down to
+	 * the configured resolutions, and the tile set if tiling is active; the
+	 * original page image is not up-scaled, and any derivatives left over at
+	 * or above its resolution are removed
+	 */
+	private void generateDerivatives(String name) throws IOException {
+		PageImage pi = this.getPageImage(name);
+		if (pi == null)
+			return;
+		for (int d = 0; d < this.derivativeDpis.length; d++) {
+			if (pi.currentDpi <= this.derivativeDpis[d]) {
+				this.removePageImageData(name, ("" + this.derivativeDpis[d]));
+				continue;
+			}
+			PageImage derivative = pi.scaleToDpi(this.derivativeDpis[d]);
+			ByteArrayOutputStream dpiData = new ByteArrayOutputStream();
+			derivative.write(dpiData);
+			this.storePageImageData(name, ("" + this.derivativeDpis[d]), dpiData.toByteArray());
+		}
+		if (0 < this.tileSize)
+			this.storePageImageData(name, TILES_VARIANT, this.getTileSetData(pi));
+	}
+	
+	/*
+	 * cut a page image into square tiles and encode them individually, so a
+	 * part of the page image can be assembled from the tiles it intersects;
+	 * the tile set data consists of the page image header, the tile size, the
+	 * width and height of the page image, offset and length of the individual
+	 * tiles (row by row, and relative to the start of the tile set data), and
+	 * finally the PNG data of the tiles proper
+	 */
+	private byte[] getTileSetData(PageImage pi) throws IOException {
+		int width = pi.image.getWidth();
+		int height = pi.image.getHeight();
+		int cols = ((width + this.tileSize - 1) / this.tileSize);
+		int rows = ((height + this.tileSize - 1) / this.tileSize);
+		
+		//	encode tiles
+		ByteArrayOutputStream tileData = new ByteArrayOutputStream();
+		int[] tileEnds = new int[cols * rows];
+		for (int r = 0; r < rows; r++)
+			for (int c = 0; c < cols; c++) {
+				int left = (c * this.tileSize);
+				int top = (r * this.tileSize);
+				BufferedImage tile = pi.image.getSubimage(left, top, Math.min(this.tileSize, (width - left)), Math.min(this.tileSize, (height - top)));
+				ImageIO.write(tile, IMAGE_FORMAT, tileData);
+				tileEnds[(r * cols) + c] = tileData.size();
+			}
+		
+		//	write header (two bytes per field, like PageImage.write() does), tile directory, and tile data
+		ByteArrayOutputStream tileSetData = new ByteArrayOutputStream();
+		DataOutputStream tileSetOut = new DataOutputStream(tileSetData);
+		tileSetOut.writeShort(pi.originalWidth);
+		tileSetOut.writeShort(pi.originalHeight);
+		tileSetOut.writeShort(pi.originalDpi);
+		tileSetOut.writeShort(pi.currentDpi);
+		tileSetOut.writeShort(pi.leftEdge);
+		tileSetOut.writeShort(pi.rightEdge);
+		tileSetOut.writeShort(pi.topEdge);
+		tileSetOut.writeShort(pi.bottomEdge);
+		tileSetOut.writeInt(this.tileSize);
+		tileSetOut.writeInt(width);
+		tileSetOut.writeInt(height);
+		int tileDataOffset = (PAGE_IMAGE_HEADER_SIZE + 12 + (tileEnds.length * 8));
+		for (int t = 0; t < tileEnds.length; t++) {
+			int tileStart = ((t == 0) ? 0 : tileEnds[t-1]);
+			tileSetOut.writeInt(tileDataOffset + tileStart);
+			tileSetOut.writeInt(tileEnds[t] - tileStart);
+		}
+		tileData.writeTo(tileSetOut);
+		tileSetOut.flush();
+		return tileSetData.toByteArray();
+	}
+	
+	/*
+	 * get a part of a page image, with the bounding box relative to the
+	 * original resolution, just like in PageImage.getSubImage(); if a tile
+	 * set exists for the page image, only the tiles intersecting with the
+	 * bounding box are read and decoded, otherwise, we have to resort to the
+	 * whole page image
+	 */
+	private PageImage getPageImageRegion(String name, BoundingBox box) throws IOException {
+		PageImageData pid = this.getPageImageData(name, TILES_VARIANT);
+		if (pid == null) {
+			PageImage pi = this.getPageImage(name);
+			return ((pi == null) ? null : pi.getSubImage(box, true));
+		}
+		try {
+			
+			//	read header and tile directory
+			PageImageInputStream piis = new PageImageInputStream(new ByteArrayInputStream(pid.read(0, PAGE_IMAGE_HEADER_SIZE)), this);
+			DataInputStream tileDirIn = new DataInputStream(new ByteArrayInputStream(pid.read(PAGE_IMAGE_HEADER_SIZE, 12)));
+			int tileSize = tileDirIn.readInt();
+			int width = tileDirIn.readInt();
+			int height = tileDirIn.readInt();
+			int cols = ((width + tileSize - 1) / tileSize);
+			int rows = ((height + tileSize - 1) / tileSize);
+			tileDirIn = new DataInputStream(new ByteArrayInputStream(pid.read((PAGE_IMAGE_HEADER_SIZE + 12), (cols * rows * 8))));
+			int[] tileOffsets = new int[cols * rows];
+			int[] tileLengths = new int[cols * rows];
+			for (int t = 0; t < tileOffsets.length; t++) {
+				tileOffsets[t] = tileDirIn.readInt();
+				tileLengths[t] = tileDirIn.readInt();
+			}
+			
+			//	compute part of image to extract, in current resolution, and relative to image edges
+			if (piis.currentDpi != piis.originalDpi)
+				box = new BoundingBox(((piis.currentDpi * box.left) / piis.originalDpi), ((piis.currentDpi * box.right) / piis.originalDpi), ((piis.currentDpi * box.top) / piis.originalDpi), ((piis.currentDpi * box.bottom) / piis.originalDpi));
+			int left = Math.max(0, (box.left - piis.leftEdge));
+			int top = Math.max(0, (box.top - piis.topEdge));
+			int right = Math.min(width, (box.right - piis.leftEdge + 1));
+			int bottom = Math.min(height, (box.bottom - piis.topEdge + 1));
+			if ((right <= left) || (bottom <= top))
+				throw new IOException("Invalid bounding box " + box + " for image of page " + name);
+			
+			//	assemble part from intersecting tiles
+			WritableRaster raster = null;
+			ColorModel colorModel = null;
+			for (int r = (top / tileSize); r <= ((bottom - 1) / tileSize); r++)
+				for (int c = (left / tileSize); c <= ((right - 1) / tileSize); c++) {
+					BufferedImage tile = PageImage.readImage(new ByteArrayInputStream(pid.read(tileOffsets[(r * cols) + c], tileLengths[(r * cols) + c])));
+					if (raster == null) {
+						colorModel = tile.getColorModel();
+						raster = colorModel.createCompatibleWritableRaster((right - left), (bottom - top));
+					}
+					int tileLeft = (c * tileSize);
+					int tileTop = (r * tileSize);
+					int fromX = Math.max(0, (left - tileLeft));
+					int fromY = Math.max(0, (top - tileTop));
+					int toX = Math.min(tile.getWidth(), (right - tileLeft));
+					int toY = Math.min(tile.getHeight(), (bottom - tileTop));
+					raster.setRect((tileLeft + fromX - left), (tileTop + fromY - top), tile.getRaster().createChild(fromX, fromY, (toX - fromX), (toY - fromY), 0, 0, null));
+				}
+			BufferedImage image = new BufferedImage(colorModel, raster, colorModel.isAlphaPremultiplied(), null);
+			
+			//	wrap part in page image, adjusting edges just like PageImage.getSubImage() does
+			return new PageImage(image, piis.originalWidth, piis.originalHeight, piis.originalDpi, piis.currentDpi, (piis.leftEdge + left), (piis.leftEdge + width + piis.rightEdge - right), (piis.topEdge + top), (piis.topEdge + height + piis.bottomEdge - bottom), this);
+		}
+		finally {
+			pid.close();
+		}
+	}
+	
+	private class DerivativeGenerator extends Thread {
+		DerivativeGenerator() {
+			super("DisDerivativeGenerator");
+		}
+		public void run() {
+			while (true) {
+				String name;
+				synchronized (derivativeQueue) {
+					if (derivativeQueue.isEmpty()) try {
+						derivativeQueue.wait();
+					} catch (InterruptedException ie) {}
+					if (derivativeThread != this)
+						return;
+					if (derivativeQueue.isEmpty())
+						continue;
+					name = ((String) derivativeQueue.removeFirst());
+				}
+				try {
+					generateDerivatives(name);
+				}
+				catch (Exception e) {
+					System.out.println("GoldenGateDIS: error generating derivatives of page image " + name + ": " + e.getMessage());
+					e.printStackTrace(System.out);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * The data of a stored page image, located in an individual file or in a
+	 * page image container.
+	 * 
+	 * @author sautter
+	 */
+	private static class PageImageData {
+		private FileChannel channel;
+		private long offset;
+		private long length;
+		
+		private FileInputStream fileIn;
+		private PageImageContainer container;
+		
+		PageImageData(FileInputStream fileIn) throws IOException {
+			this.fileIn = fileIn;
+			this.channel = fileIn.getChannel();
+			this.offset = 0;
+			this.length = this.channel.size();
+		}
+		
+		PageImageData(PageImageContainer container, PageImageContainer.Entry entry) {
+			this.container = container;
+			this.channel = container.getDataChannel();
+			this.offset = entry.offset;
+			this.length = entry.length;
+		}
+		
+		/*
+		 * check if the data has a complete header followed by the PNG
+		 * signature, reading only these first few bytes
+		 */
+		boolean isValid() throws IOException {
+			if (this.length < (PAGE_IMAGE_HEADER_SIZE + PNG_SIGNATURE.length))
+				return false;
+			ByteBuffer signature = ByteBuffer.allocate(PNG_SIGNATURE.length);
+			while (signature.hasRemaining()) {
+				if (this.channel.read(signature, (this.offset + PAGE_IMAGE_HEADER_SIZE + signature.position())) == -1)
+					return false;
+			}
+			return Arrays.equals(PNG_SIGNATURE, signature.array());
+		}
+		
+		/*
+		 * read the data as a whole
+		 */
+		byte[] read() throws IOException {
+			return this.read(0, ((int) this.length));
+		}
+		
+		/*
+		 * read a part of the data, with the position relative to the start of
+		 * the data
+		 */
+		byte[] read(long from, int length) throws IOException {
+			if (this.length < (from + length))
+				throw new EOFException();
+			ByteBuffer data = ByteBuffer.allocate(length);
+			while (data.hasRemaining()) {
+				if (this.channel.read(data, (this.offset + from + data.position())) == -1)
+					throw new EOFException();
+			}
+			return data.array();
+		}
+		
+		/*
+		 * write the data to some output stream as a whole, header included,
+		 * leaving the actual copying to the file channel (which uses zero-copy
+		 * transfer where the underlying platform and target allow it)
+		 */
+		void transferTo(OutputStream out) throws IOException {
+			WritableByteChannel outChannel = Channels.newChannel(out);
+			for (long transferred = 0; transferred < this.length;)
+				transferred += this.channel.transferTo((this.offset + transferred), (this.length - transferred), outChannel);
+			out.flush();
+		}
+		
+		void close() throws IOException {
+			if (this.fileIn != null)
+				this.fileIn.close();
+			if (this.container != null)
+				this.container.release();
+		}
+	}
+	
+	/*
+	 * store the raw data of a page image (header and PNG data) under some
+	 * name, without decoding and re-encoding the actual image; the data is
+	 * validated completely before it replaces any existing image of the same
+	 * name, going through a temporary file when stored in an individual file
+	 */
+	private void storePageImageData(String name, InputStream imageIn) throws IOException {
+		if (this.useContainers) {
+			ByteArrayOutputStream imageOut = new ByteArrayOutputStream();
+			copyPageImage(imageIn, imageOut);
+			this.storeContainerPageImageData(name, null, imageOut.toByteArray());
+			this.pageImageStored(name);
+			return;
+		}
+		
+		File pif = this.getDocumentPageImageFile(name, true);
+		File tempPif = new File(pif.getParentFile(), (pif.getName() + ".temp"));
+		OutputStream imageOut = new BufferedOutputStream(new FileOutputStream(tempPif));
+		try {
+			copyPageImage(imageIn, imageOut);
+			imageOut.flush();
+			imageOut.close();
+		}
+		catch (IOException ioe) {
+			imageOut.close();
+			tempPif.delete();
+			throw ioe;
+		}
+		if (pif.exists())
+			pif.delete();
+		if (!tempPif.renameTo(pif))
+			throw new IOException("Could not store image " + name);
+		this.pageImageStored(name);
+	}
+	
+	/*
+	 * store the complete data of a variant of a page image (header and PNG
+	 * data), null indicating the original page image, a resolution a
+	 * derivative, and 'tiles' the tile set
+	 */
+	private void storePageImageData(String name, String variant, byte[] pageImageData) throws IOException {
+		if (this.useContainers) {
+			this.storeContainerPageImageData(name, variant, pageImageData);
+			return;
+		}
+		File pif = this.getDocumentPageImageFile(name, variant, true);
+		File tempPif = new File(pif.getParentFile(), (pif.getName() + ".temp"));
+		OutputStream imageOut = new FileOutputStream(tempPif);
+		try {
+			imageOut.write(pageImageData);
+			imageOut.flush();
+			imageOut.close();
+		}
+		catch (IOException ioe) {
+			imageOut.close();
+			tempPif.delete();
+			throw ioe;
+		}
+		if (pif.exists())
+			pif.delete();
+		if (!tempPif.renameTo(pif))
+			throw new IOException("Could not store image " + name + ((variant == null) ? "" : (DERIVATIVE_INFIX + variant)));
+	}
+	
+	private void storeContainerPageImageData(String name, String variant, byte[] pageImageData) throws IOException {
+		String docId = name.substring(0, name.lastIndexOf('.'));
+		int pageId = Integer.parseInt(name.substring(name.lastIndexOf('.') + 1));
+		PageImageContainer pic = this.getPageImageContainer(((variant == null) ? docId : (docId + DERIVATIVE_INFIX + variant)), true);
+		try {
+			pic.storePageImage(pageId, pageImageData);
+		}
+		finally {
+			pic.release();
+		}
+	}
+	
+	/*
+	 * remove a variant of a page image, from its container as well as its
+	 * individual file, as reading falls back from either one to the other
+	 */
+	private void removePageImageData(String name, String variant) throws IOException {
+		String docId = name.substring(0, name.lastIndexOf('.'));
+		int pageId = Integer.parseInt(name.substring(name.lastIndexOf('.') + 1));
+		PageImageContainer pic = this.getPageImageContainer((docId + DERIVATIVE_INFIX + variant), false);
+		if (pic != null) {
+			try {
+				pic.removePageImage(pageId);
+			}
+			finally {
+				pic.release();
+			}
+		}
+		File pif = this.getDocumentPageImageFile(name, variant, false);
+		if (pif.exists() && !pif.delete())
+			throw new IOException("Could not remove image " + name + DERIVATIVE_INFIX + variant);
+	}
+	
+	/*
+	 * record a new or updated original page image in the availability index,
+	 * remove any derivatives and tile set of an earlier version, so requests
+	 * fall back to the new original until they are generated anew, and
+	 * schedule the generation of its derivatives
+	 */
+	private void pageImageStored(String name) {
+		this.setPageImageAvailable(name);
+		try {
+			for (int d = 0; d < this.derivativeDpis.length; d++)
+				this.removePageImageData(name, ("" + this.derivativeDpis[d]));
+			this.removePageImageData(name, TILES_VARIANT);
+		}
+		catch (IOException ioe) {
+			System.out.println("GoldenGateDIS: error removing derivatives of page image " + name + ": " + ioe.getMessage());
+			ioe.printStackTrace(System.out);
+		}
+		this.scheduleDerivatives(name);
+	}
+	
+	/*
+	 * move all page images stored in individual files into the containers of
+	 * the respective documents, deleting the files (and their folders) after
+	 * they are safely stored in the container; page images already present in
+	 * a container are considered newer than the individual files
+	 */
+	private void migratePageImagesToContainers() {
+		System.out.println("GoldenGateDIS: migrating page images to containers ...");
+		int docCount = 0;
+		int pageCount = 0;
+		File[] primaryFolders = this.dataPath.listFiles();
+		for (int pf = 0; pf < primaryFolders.length; pf++) {
+			if (!primaryFolders[pf].isDirectory() || (primaryFolders[pf].getName().length() != 2))
+				continue;
+			File[] secondaryFolders = primaryFolders[pf].listFiles();
+			for (int sf = 0; sf < secondaryFolders.length; sf++) {
+				if (!secondaryFolders[sf].isDirectory() || (secondaryFolders[sf].getName().length() != 2))
+					continue;
+				
+				//	group page image folders by document
+				TreeMap docPageImageFolders = new TreeMap();
+				File[] pageImageFolders = secondaryFolders[sf].listFiles();
+				for (int pif = 0; pif < pageImageFolders.length; pif++) {
+					String name = pageImageFolders[pif].getName();
+					if (!pageImageFolders[pif].isDirectory() || (name.lastIndexOf('.') == -1))
+						continue;
+					String docId = name.substring(0, name.lastIndexOf('.'));
+					ArrayList docPifs = ((ArrayList) docPageImageFolders.get(docId));
+					if (docPifs == null) {
+						docPifs = new ArrayList();
+						docPageImageFolders.put(docId, docPifs);
+					}
+					docPifs.add(pageImageFolders[pif]);
+				}
+				
+				//	move page images into containers
+				for (Iterator dit = docPageImageFolders.keySet().iterator(); dit.hasNext();) {
+					String docId = ((String) dit.next());
+					try {
+						pageCount += this.migratePageImagesToContainer(docId, ((ArrayList) docPageImageFolders.get(docId)));
+						docCount++;
+					}
+					catch (Exception e) {
+						System.out.println("GoldenGateDIS: error migrating page images of document " + docId + ": " + e.getMessage());
+						e.printStackTrace(System.out);
+					}
+					if ((docCount % 100) == 0)
+						System.out.println("GoldenGateDIS: migrated " + pageCount + " page images in " + docCount + " documents so far");
+				}
+			}
+		}
+		System.out.println("GoldenGateDIS: migrated " + pageCount + " page images in " + docCount + " documents to containers");
+	}
+	
+	private int migratePageImagesToContainer(String docId, ArrayList pageImageFolders) throws IOException {
+		int pageCount = 0;
+		PageImageContainer pic = this.getPageImageContainer(docId, true);
+		try {
+			for (int f = 0; f < pageImageFolders.size(); f++) {
+				File pageImageFolder = ((File) pageImageFolders.get(f));
+				String name = pageImageFolder.getName();
+				int pageId;
+				try {
+					pageId = Integer.parseInt(name.substring(name.lastIndexOf('.') + 1));
+				}
+				catch (NumberFormatException nfe) {
+					continue;
+				}
+				File pif = new File(pageImageFolder, (name + "." + IMAGE_FORMAT));
+				if (pif.exists() && (pic.getEntry(pageId) == null)) {
+					PageImageData pid = new PageImageData(new FileInputStream(pif));
+					try {
+						if (!pid.isValid())
+							continue;
+						pic.storePageImage(pageId, pid.read());
+					}
+					finally {
+						pid.close();
+					}
+					pageCount++;
+				}
+				pif.delete();
+				
+				//	move derivatives to their own containers
+				File[] derivativeFiles = pageImageFolder.listFiles();
+				for (int d = 0; d < derivativeFiles.length; d++) {
+					String derivativeName = derivativeFiles[d].getName();
+					if (!derivativeName.startsWith(name + DERIVATIVE_INFIX) || !derivativeName.endsWith("." + IMAGE_FORMAT))
+						continue;
+					String variant = derivativeName.substring((name + DERIVATIVE_INFIX).length(), (derivativeName.length() - ("." + IMAGE_FORMAT).length()));
+					PageImageData pid = new PageImageData(new FileInputStream(derivativeFiles[d]));
+					try {
+						if (TILES_VARIANT.equals(variant) || pid.isValid())
+							this.storeContainerPageImageData(name, variant, pid.read());
+					}
+					finally {
+						pid.close();
+					}
+					derivativeFiles[d].delete();
+				}
+				pageImageFolder.delete();
+			}
+		}
+		finally {
+			pic.release();
+		}
+		return pageCount;
+	}
+	
+	/*
+	 * copy a page image from an input stream to an output stream, checking
+	 * the PNG signature and the CRC of every chunk along the way, and stopping
+	 * after the IEND chunk, so the input stream is not read any further than
+	 * the image data actually extends
+	 */
+	private static void copyPageImage(InputStream imageIn, OutputStream imageOut) throws IOException {
+		DataInputStream dataIn = new DataInputStream(imageIn);
+		
+		//	copy header
+		byte[] header = new byte[PAGE_IMAGE_HEADER_SIZE];
+		dataIn.readFully(header);
+		imageOut.write(header);
+		
+		//	check and copy signature
+		byte[] signature = new byte[PNG_SIGNATURE.length];
+		dataIn.readFully(signature);
+		if (!Arrays.equals(PNG_SIGNATURE, signature))
+			throw new IOException("Invalid PNG signature");
+		imageOut.write(signature);
+		
+		//	check and copy chunks
+		DataOutputStream dataOut = new DataOutputStream(imageOut);
+		CRC32 crc = new CRC32();
+		byte[] type = new byte[4];
+		byte[] buffer = new byte[8192];
+		for (boolean first = true;; first = false) {
+			int length = dataIn.readInt();
+			if (length < 0)
+				throw new IOException("Invalid PNG chunk length " + length);
+			dataIn.readFully(type);
+			String typeString = new String(type, "US-ASCII");
+			if (first && !"IHDR".equals(typeString))
+				throw new IOException("Invalid PNG, first chunk is " + typeString);
+			dataOut.writeInt(length);
+			dataOut.write(type);
+			crc.reset();
+			crc.update(type);
+			for (int remaining = length; remaining > 0;) {
+				int read = dataIn.read(buffer, 0, Math.min(remaining, buffer.length));
+				if (read == -1)
+					throw new EOFException("Premature end of PNG chunk " + typeString);
+				crc.update(buffer, 0, read);
+				dataOut.write(buffer, 0, read);
+				remaining -= read;
+			}
+			int chunkCrc = dataIn.readInt();
+			if (chunkCrc != ((int) crc.getValue()))
+				throw new IOException("Invalid CRC in PNG chunk " + typeString);
+			dataOut.writeInt(chunkCrc);
+			if ("IEND".equals(typeString))
+				break;
+		}
+		dataOut.flush();
 	}
 	
 	/* (non-Javadoc)
 	 * @see de.uka.ipd.idaho.gamta.util.imaging.PageImageSource#isPageImageAvailable(java.lang.String)
 	 */
 	public boolean isPageImageAvailable(String name) {
-		File pif = this.getDocumentPageImageFile(name);
+		String docId = name.substring(0, name.lastIndexOf('.'));
+		int pageId = Integer.parseInt(name.substring(name.lastIndexOf('.') + 1));
+		
+		//	use index if available
+		Boolean indexed = this.isPageImageIndexedAs(docId, pageId);
+		if (indexed != null)
+			return indexed.booleanValue();
+		
+		//	check files otherwise
+		try {
+			PageImageContainer pic = this.getPageImageContainer(docId, false);
+			if (pic != null) try {
+				if (pic.getEntry(pageId) != null)
+					return true;
+			}
+			finally {
+				pic.release();
+			}
+		}
+		catch (IOException ioe) {
+			ioe.printStackTrace(System.out);
+		}
+		File pif = this.getDocumentPageImageFile(name, false);
 		return pif.exists();
 	}
 	
@@ -299,8 +1614,15 @@ public class GoldenGateDIS extends AbstractGoldenGateServerComponent implements
 	 */
 	public PageImageInputStream getPageImageAsStream(String name) throws IOException {
 		try {
-			InputStream imageIn = new FileInputStream(getDocumentPageImageFile(name));
-			return new PageImageInputStream(imageIn, GoldenGateDIS.this);
+			PageImageData pid = this.getPageImageData(name);
+			if (pid == null)
+				return null;
+			try {
+				return new PageImageInputStream(new ByteArrayInputStream(pid.read()), GoldenGateDIS.this);
+			}
+			finally {
+				pid.close();
+			}
 		}
 		catch (IOException ioe) {
 			return null;
@@ -332,10 +1654,18 @@ public class GoldenGateDIS extends AbstractGoldenGateServerComponent implements
 	 * @see de.uka.ipd.idaho.gamta.util.imaging.PageImageStore#storePageImage(java.lang.String, de.uka.ipd.idaho.gamta.util.imaging.PageImage)
 	 */
 	public void storePageImage(String name, PageImage pageImage) throws IOException {
-		FileOutputStream fos = new FileOutputStream(getDocumentPageImageFile(name));
+		if (this.useContainers) {
+			ByteArrayOutputStream pageImageData = new ByteArrayOutputStream();
+			pageImage.write(pageImageData);
+			this.storeContainerPageImageData(name, null, pageImageData.toByteArray());
+			this.pageImageStored(name);
+			return;
+		}
+		FileOutputStream fos = new FileOutputStream(getDocumentPageImageFile(name, true));
 		pageImage.write(fos);
 		fos.flush();
 		fos.close();
+		this.pageImageStored(name);
 	}
 	
 	/* (non-Javadoc)
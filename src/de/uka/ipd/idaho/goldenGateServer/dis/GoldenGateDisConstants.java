@@ -44,6 +44,21 @@ public interface GoldenGateDisConstants extends GoldenGateServerConstants, Imagi
 	/** the command for retrieving images */
 	public static final String GET_IMAGE = "DIS_GET_IMAGE";
 	
+	/** the command for retrieving images in (or close to) a specific resolution, using pre-computed derivatives where available */
+	public static final String GET_IMAGE_AT_DPI = "DIS_GET_IMAGE_AT_DPI";
+	
+	/** the command for retrieving a part of an image, specified by a bounding box, optionally scaled to a specific resolution */
+	public static final String GET_IMAGE_REGION = "DIS_GET_IMAGE_REGION";
+	
+	/** the command for retrieving multiple images of a document in one go, specified as a comma separated list of page IDs and page ID ranges */
+	public static final String GET_IMAGES = "DIS_GET_IMAGES";
+	
+	/** the command for listing the pages of a document that have an image stored, along with size and resolution of each image */
+	public static final String LIST_PAGES = "DIS_LIST_PAGES";
+	
+	/** the command for retrieving size and resolution of an image, without the image proper */
+	public static final String GET_IMAGE_INFO = "DIS_GET_IMAGE_INFO";
+	
 	/** the command for uploading images (requires authentication) */
 	public static final String STORE_IMAGE = "DIS_STORE_IMAGE";
 }
\ No newline at end of file
@@ -0,0 +1,365 @@
+/*
+ * Copyright (c) 2006-2008, IPD Boehm, Universitaet Karlsruhe (TH)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Universitt Karlsruhe (TH) nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY UNIVERSITT KARLSRUHE (TH) AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.uka.ipd.idaho.goldenGateServer.dis;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * A page image container holds the page images of a single document in one
+ * append-only data file, accompanied by an index file that records page ID,
+ * offset, length, and header of each page image stored in the data file.
+ * Storing a page image again appends the new version to the data file and
+ * adds an index entry pointing to it, which then takes precedence over any
+ * earlier one. Reading uses positional I/O on a single file channel, so any
+ * number of threads can read from a container at the same time.<br>
+ * The index is written only after the page image data proper has been forced
+ * to disc, and incomplete trailing index entries are discarded on opening, so
+ * a crash in the middle of storing a page image at most loses that very page
+ * image.<br>
+ * Removing a page image appends an index entry with a length of 0, which
+ * hides any earlier entry for the same page; the data proper stays in the
+ * data file.
+ *
+ * @author sautter
+ */
+class PageImageContainer {
+	
+	/** the suffix of container data files, to append to the document ID */
+	static final String DATA_FILE_SUFFIX = ".pages";
+	
+	/** the suffix of container index files, to append to the document ID */
+	static final String INDEX_FILE_SUFFIX = ".pages.index";
+	
+	/* page ID (4 bytes), offset (8 bytes), length (4 bytes), and page image header */
+	private static final int INDEX_ENTRY_SIZE = (4 + 8 + 4 + GoldenGateDIS.PAGE_IMAGE_HEADER_SIZE);
+	
+	/**
+	 * An entry in the index of a page image container, indicating where the
+	 * data of a page image is located in the container data file.
+	 *
+	 * @author sautter
+	 */
+	static class Entry {
+		
+		/** the ID of the page the image belongs to */
+		final int pageId;
+		
+		/** the offset of the page image data in the container data file */
+		final long offset;
+		
+		/** the length of the page image data (header included) */
+		final int length;
+		
+		/** the page image header */
+		final byte[] header;
+		
+		Entry(int pageId, long offset, int length, byte[] header) {
+			this.pageId = pageId;
+			this.offset = offset;
+			this.length = length;
+			this.header = header;
+		}
+	}
+	
+	/** the ID of the document the container belongs to */
+	final String docId;
+	
+	private File dataFile;
+	private File indexFile;
+	
+	private RandomAccessFile data;
+	private FileChannel dataChannel;
+	private RandomAccessFile index;
+	
+	private HashMap entries = new HashMap();
+	
+	private int users = 0;
+	
+	/**
+	 * Constructor opening an existing container, or creating a new one.
+	 * @param folder the folder the container files are located in
+	 * @param docId the ID of the document whose page images to store
+	 * @throws IOException
+	 */
+	PageImageContainer(File folder, String docId) throws IOException {
+		this.docId = docId;
+		this.dataFile = new File(folder, (docId + DATA_FILE_SUFFIX));
+		this.indexFile = new File(folder, (docId + INDEX_FILE_SUFFIX));
+		
+		this.data = new RandomAccessFile(this.dataFile, "rw");
+		this.dataChannel = this.data.getChannel();
+		long dataSize = this.dataChannel.size();
+		
+		//	read index, ignoring entries pointing beyond the end of the data file, and everything after them
+		int validEntries = 0;
+		if (this.indexFile.exists()) {
+			DataInputStream indexIn = new DataInputStream(new BufferedInputStream(new FileInputStream(this.indexFile)));
+			try {
+				while (true) {
+					int pageId = indexIn.readInt();
+					long offset = indexIn.readLong();
+					int length = indexIn.readInt();
+					byte[] header = new byte[GoldenGateDIS.PAGE_IMAGE_HEADER_SIZE];
+					indexIn.readFully(header);
+					if (dataSize < (offset + length))
+						break;
+					if (length == 0)
+						this.entries.remove(new Integer(pageId));
+					else this.entries.put(new Integer(pageId), new Entry(pageId, offset, length, header));
+					validEntries++;
+				}
+			}
+			catch (EOFException eofe) {
+				//	incomplete trailing entry, or just the end of the index
+			}
+			finally {
+				indexIn.close();
+			}
+		}
+		
+		//	cut off any invalid or incomplete trailing entries, and get ready to append
+		this.index = new RandomAccessFile(this.indexFile, "rw");
+		this.index.setLength(((long) validEntries) * INDEX_ENTRY_SIZE);
+		this.index.seek(this.index.length());
+	}
+	
+	/**
+	 * Check whether or not a container exists for a given document.
+	 * @param folder the folder the container files would be located in
+	 * @param docId the ID of the document
+	 * @return true if the container exists, false otherwise
+	 */
+	static boolean exists(File folder, String docId) {
+		return new File(folder, (docId + INDEX_FILE_SUFFIX)).exists();
+	}
+	
+	/**
+	 * Read the IDs of all pages whose images are stored in a container, in
+	 * ascending order, without opening the container as a whole.
+	 * @param folder the folder the container files are located in
+	 * @param docId the ID of the document
+	 * @return an array holding the page IDs
+	 * @throws IOException
+	 */
+	static int[] readPageIds(File folder, String docId) throws IOException {
+		long dataSize = new File(folder, (docId + DATA_FILE_SUFFIX)).length();
+		BitSet pageIds = new BitSet();
+		DataInputStream indexIn = new DataInputStream(new BufferedInputStream(new FileInputStream(new File(folder, (docId + INDEX_FILE_SUFFIX)))));
+		try {
+			while (true) {
+				int pageId = indexIn.readInt();
+				long offset = indexIn.readLong();
+				int length = indexIn.readInt();
+				indexIn.skipBytes(GoldenGateDIS.PAGE_IMAGE_HEADER_SIZE);
+				if (dataSize < (offset + length))
+					break;
+				if (length == 0)
+					pageIds.clear(pageId);
+				else pageIds.set(pageId);
+			}
+		}
+		catch (EOFException eofe) {
+			//	incomplete trailing entry, or just the end of the index
+		}
+		finally {
+			indexIn.close();
+		}
+		int[] pageIdArray = new int[pageIds.cardinality()];
+		for (int p = 0, pageId = pageIds.nextSetBit(0); pageId != -1; p++, pageId = pageIds.nextSetBit(pageId + 1))
+			pageIdArray[p] = pageId;
+		return pageIdArray;
+	}
+	
+	/**
+	 * Retrieve the index entry for the image of some page.
+	 * @param pageId the ID of the page
+	 * @return the index entry, or null, if there is no image for the argument
+	 *         page in the container
+	 */
+	synchronized Entry getEntry(int pageId) {
+		return ((Entry) this.entries.get(new Integer(pageId)));
+	}
+	
+	/**
+	 * Retrieve the IDs of all pages whose images are stored in the container,
+	 * in ascending order.
+	 * @return an array holding the page IDs
+	 */
+	synchronized int[] getPageIds() {
+		int[] pageIds = new int[this.entries.size()];
+		int p = 0;
+		for (Iterator pit = this.entries.keySet().iterator(); pit.hasNext();)
+			pageIds[p++] = ((Integer) pit.next()).intValue();
+		Arrays.sort(pageIds);
+		return pageIds;
+	}
+	
+	/**
+	 * Retrieve the channel of the container data file, to read page image data
+	 * from via positional reads or transfers. Client code must not modify the
+	 * position of the channel, nor write to it.
+	 * @return the data file channel
+	 */
+	FileChannel getDataChannel() {
+		return this.dataChannel;
+	}
+	
+	/**
+	 * Read the data of a page image (header and PNG data) into a byte array.
+	 * @param entry the index entry of the page image
+	 * @return an array holding the page image data
+	 * @throws IOException
+	 */
+	byte[] readPageImage(Entry entry) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(entry.length);
+		while (buffer.hasRemaining()) {
+			if (this.dataChannel.read(buffer, (entry.offset + buffer.position())) == -1)
+				throw new EOFException("Premature end of data for page " + entry.pageId + " in document " + this.docId);
+		}
+		return buffer.array();
+	}
+	
+	/**
+	 * Store the image of a page in the container. The argument array has to
+	 * hold the complete page image data, i.e., the header and the PNG data.
+	 * @param pageId the ID of the page the image belongs to
+	 * @param pageImageData the page image data
+	 * @throws IOException
+	 */
+	synchronized void storePageImage(int pageId, byte[] pageImageData) throws IOException {
+		if (pageImageData.length < GoldenGateDIS.PAGE_IMAGE_HEADER_SIZE)
+			throw new IOException("Invalid image data for page " + pageId + " in document " + this.docId);
+		
+		//	append data and make sure it's on disc
+		long offset = this.dataChannel.size();
+		ByteBuffer buffer = ByteBuffer.wrap(pageImageData);
+		while (buffer.hasRemaining())
+			this.dataChannel.write(buffer, (offset + buffer.position()));
+		this.dataChannel.force(false);
+		
+		//	append index entry
+		byte[] header = new byte[GoldenGateDIS.PAGE_IMAGE_HEADER_SIZE];
+		System.arraycopy(pageImageData, 0, header, 0, header.length);
+		Entry entry = new Entry(pageId, offset, pageImageData.length, header);
+		ByteArrayOutputStream indexBytes = new ByteArrayOutputStream(INDEX_ENTRY_SIZE);
+		DataOutputStream indexOut = new DataOutputStream(indexBytes);
+		indexOut.writeInt(entry.pageId);
+		indexOut.writeLong(entry.offset);
+		indexOut.writeInt(entry.length);
+		indexOut.write(entry.header);
+		indexOut.flush();
+		this.index.write(indexBytes.toByteArray());
+		
+		//	make new entry visible to readers
+		this.entries.put(new Integer(pageId), entry);
+	}
+	
+	/**
+	 * Remove the image of a page from the container. This appends an index
+	 * entry marking the page image as removed, which takes precedence over
+	 * any earlier entry for the same page, even after re-opening.
+	 * @param pageId the ID of the page whose image to remove
+	 * @return true if there was an image to remove, false otherwise
+	 * @throws IOException
+	 */
+	synchronized boolean removePageImage(int pageId) throws IOException {
+		if (!this.entries.containsKey(new Integer(pageId)))
+			return false;
+		
+		//	append index entry with zero length
+		ByteArrayOutputStream indexBytes = new ByteArrayOutputStream(INDEX_ENTRY_SIZE);
+		DataOutputStream indexOut = new DataOutputStream(indexBytes);
+		indexOut.writeInt(pageId);
+		indexOut.writeLong(0);
+		indexOut.writeInt(0);
+		indexOut.write(new byte[GoldenGateDIS.PAGE_IMAGE_HEADER_SIZE]);
+		indexOut.flush();
+		this.index.write(indexBytes.toByteArray());
+		
+		//	hide removed entry from readers
+		this.entries.remove(new Integer(pageId));
+		return true;
+	}
+	
+	/**
+	 * Register a user of the container. As long as a container has users, it
+	 * must not be closed.
+	 */
+	synchronized void acquire() {
+		this.users++;
+	}
+	
+	/**
+	 * Unregister a user of the container.
+	 */
+	synchronized void release() {
+		this.users--;
+	}
+	
+	/**
+	 * Check whether or not the container currently has any users.
+	 * @return true if the container is in use, false otherwise
+	 */
+	synchronized boolean isInUse() {
+		return (this.users != 0);
+	}
+	
+	/**
+	 * Close the container, releasing the underlying files. This method must
+	 * not be called while the container is in use.
+	 */
+	synchronized void close() {
+		try {
+			this.data.close();
+		}
+		catch (IOException ioe) {
+			ioe.printStackTrace(System.out);
+		}
+		try {
+			this.index.close();
+		}
+		catch (IOException ioe) {
+			ioe.printStackTrace(System.out);
+		}
+	}
+}
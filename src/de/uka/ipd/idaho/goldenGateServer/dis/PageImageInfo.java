@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2006-2008, IPD Boehm, Universitaet Karlsruhe (TH)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Universitt Karlsruhe (TH) nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY UNIVERSITT KARLSRUHE (TH) AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.uka.ipd.idaho.goldenGateServer.dis;
+
+/**
+ * Metadata of a stored page image, i.e., the actual size of the image, plus
+ * the original size and resolution, the current resolution, and the edges cut
+ * off, as recorded in the page image header. This allows client code to plan
+ * fetching and scaling page images without transferring any pixel data.
+ * 
+ * @author sautter
+ */
+public class PageImageInfo {
+	
+	/** the ID of the page the image belongs to */
+	public final int pageId;
+	
+	/** the width of the image, in pixels */
+	public final int width;
+	
+	/** the height of the image, in pixels */
+	public final int height;
+	
+	/** the original width of the page, in pixels */
+	public final int originalWidth;
+	
+	/** the original height of the page, in pixels */
+	public final int originalHeight;
+	
+	/** the original resolution of the page */
+	public final int originalDpi;
+	
+	/** the current resolution of the image */
+	public final int currentDpi;
+	
+	/** the number of pixels cut off at the left edge of the page */
+	public final int leftEdge;
+	
+	/** the number of pixels cut off at the right edge of the page */
+	public final int rightEdge;
+	
+	/** the number of pixels cut off at the top edge of the page */
+	public final int topEdge;
+	
+	/** the number of pixels cut off at the bottom edge of the page */
+	public final int bottomEdge;
+	
+	/** Constructor
+	 * @param pageId the ID of the page the image belongs to
+	 * @param width the width of the image
+	 * @param height the height of the image
+	 * @param originalWidth the original width of the page
+	 * @param originalHeight the original height of the page
+	 * @param originalDpi the original resolution of the page
+	 * @param currentDpi the current resolution of the image
+	 * @param leftEdge the number of pixels cut off at the left edge
+	 * @param rightEdge the number of pixels cut off at the right edge
+	 * @param topEdge the number of pixels cut off at the top edge
+	 * @param bottomEdge the number of pixels cut off at the bottom edge
+	 */
+	public PageImageInfo(int pageId, int width, int height, int originalWidth, int originalHeight, int originalDpi, int currentDpi, int leftEdge, int rightEdge, int topEdge, int bottomEdge) {
+		this.pageId = pageId;
+		this.width = width;
+		this.height = height;
+		this.originalWidth = originalWidth;
+		this.originalHeight = originalHeight;
+		this.originalDpi = originalDpi;
+		this.currentDpi = currentDpi;
+		this.leftEdge = leftEdge;
+		this.rightEdge = rightEdge;
+		this.topEdge = topEdge;
+		this.bottomEdge = bottomEdge;
+	}
+	
+	/**
+	 * Produce a single-line representation of the page image info, which can
+	 * be parsed back by the <code>parse()</code> method.
+	 * @see java.lang.Object#toString()
+	 */
+	public String toString() {
+		return (this.pageId + " " + this.width + " " + this.height + " " + this.originalWidth + " " + this.originalHeight + " " + this.originalDpi + " " + this.currentDpi + " " + this.leftEdge + " " + this.rightEdge + " " + this.topEdge + " " + this.bottomEdge);
+	}
+	
+	/**
+	 * Parse a page image info from its single-line representation, as produced
+	 * by the <code>toString()</code> method.
+	 * @param data the string to parse
+	 * @return the page image info
+	 * @throws IllegalArgumentException
+	 */
+	public static PageImageInfo parse(String data) throws IllegalArgumentException {
+		String[] values = data.trim().split("\\s+");
+		if (values.length != 11)
+			throw new IllegalArgumentException("Invalid page image info: " + data);
+		int[] intValues = new int[values.length];
+		for (int v = 0; v < values.length; v++) try {
+			intValues[v] = Integer.parseInt(values[v]);
+		}
+		catch (NumberFormatException nfe) {
+			throw new IllegalArgumentException("Invalid page image info: " + data);
+		}
+		return new PageImageInfo(intValues[0], intValues[1], intValues[2], intValues[3], intValues[4], intValues[5], intValues[6], intValues[7], intValues[8], intValues[9], intValues[10]);
+	}
+}
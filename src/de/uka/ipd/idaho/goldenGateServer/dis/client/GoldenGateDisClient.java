@@ -28,27 +28,30 @@
 
 package de.uka.ipd.idaho.goldenGateServer.dis.client;
 
-import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
 
+import de.uka.ipd.idaho.gamta.util.imaging.BoundingBox;
+import de.uka.ipd.idaho.gamta.util.imaging.PageImage;
 import de.uka.ipd.idaho.gamta.util.imaging.PageImageInputStream;
 import de.uka.ipd.idaho.gamta.util.imaging.PageImageSource;
 import de.uka.ipd.idaho.gamta.util.imaging.PageImageSource.AbstractPageImageSource;
 import de.uka.ipd.idaho.goldenGateServer.client.ServerConnection;
 import de.uka.ipd.idaho.goldenGateServer.client.ServerConnection.Connection;
 import de.uka.ipd.idaho.goldenGateServer.dis.GoldenGateDisConstants;
+import de.uka.ipd.idaho.goldenGateServer.dis.PageImageInfo;
 import de.uka.ipd.idaho.goldenGateServer.util.BufferedLineInputStream;
 import de.uka.ipd.idaho.goldenGateServer.util.BufferedLineOutputStream;
 //import de.uka.ipd.idaho.goldenGateServer.util.Base64InputStream;
@@ -63,9 +66,15 @@ public class GoldenGateDisClient extends AbstractPageImageSource implements Gold
 	
 	private ServerConnection serverConnection = null;
 	
-	private File cacheFolder = null;
+	private GoldenGateDisClientCache cache = null;
+	private long cacheQuota = 0;
+	private int cacheLowWaterMark = 90;
 	private boolean cacheSynchronized = false;
 	
+	private GoldenGateDisClientPrefetcher prefetcher = new GoldenGateDisClientPrefetcher(this);
+	
+	private volatile GoldenGateDisClientSlabCache offHeapCache = null;
+	
 	/**
 	 * Constructor
 	 * @param serverConnection the ServerConnection to use for communication
@@ -83,22 +92,228 @@ public class GoldenGateDisClient extends AbstractPageImageSource implements Gold
 		return this.serverConnection.getConnection();
 	}
 	
+	/*
+	 * open a connection to the backing DIS, waiting for one of the available
+	 * connection slots if the number of connections is limited; each
+	 * connection obtained from this method has to go back through the
+	 * closeConnection() method, so to free up its slot
+	 */
+	Connection openConnection() throws IOException {
+		
+		//	wait for free connection slot
+		synchronized (this.connectionLock) {
+			if ((0 < this.maxConnections) && (this.maxConnections <= this.activeConnections)) {
+				long waitStart = System.currentTimeMillis();
+				long waitEnd = (waitStart + this.connectionWaitTimeout);
+				this.connectionWaits++;
+				while ((0 < this.maxConnections) && (this.maxConnections <= this.activeConnections)) {
+					long waitTime = (waitEnd - System.currentTimeMillis());
+					if ((this.connectionWaitTimeout > 0) && (waitTime <= 0)) {
+						this.connectionWaitTime += (System.currentTimeMillis() - waitStart);
+						this.connectionTimeouts++;
+						throw new IOException("Timeout waiting for connection to backing DIS");
+					}
+					try {
+						this.connectionLock.wait((this.connectionWaitTimeout > 0) ? waitTime : 0);
+					} catch (InterruptedException ie) {}
+				}
+				this.connectionWaitTime += (System.currentTimeMillis() - waitStart);
+			}
+			this.activeConnections++;
+			this.peakActiveConnections = Math.max(this.peakActiveConnections, this.activeConnections);
+		}
+		
+		//	open connection, and free slot right away if that fails
+		try {
+			Connection con = this.getConnection();
+			synchronized (this.connectionLock) {
+				this.connectionsOpened++;
+			}
+			return con;
+		}
+		catch (IOException ioe) {
+			this.releaseConnectionSlot(true);
+			throw ioe;
+		}
+		catch (RuntimeException re) {
+			this.releaseConnectionSlot(true);
+			throw re;
+		}
+	}
+	
+	/*
+	 * close a connection obtained from openConnection(), freeing up its slot
+	 */
+	void closeConnection(Connection con) {
+		try {
+			con.close();
+		}
+		catch (IOException ioe) {
+			System.out.println("GoldenGateDisClient: error closing connection: " + ioe.getMessage());
+		}
+		finally {
+			this.releaseConnectionSlot(false);
+		}
+	}
+	
+	private void releaseConnectionSlot(boolean failed) {
+		synchronized (this.connectionLock) {
+			this.activeConnections--;
+			if (failed)
+				this.connectionFailures++;
+			this.connectionLock.notify();
+		}
+	}
+	
+	private Object connectionLock = new Object();
+	private int maxConnections = 0;
+	private int connectionWaitTimeout = 0;
+	private int activeConnections = 0;
+	private int peakActiveConnections = 0;
+	private long connectionsOpened = 0;
+	private long connectionWaits = 0;
+	private long connectionWaitTime = 0;
+	private long connectionTimeouts = 0;
+	private long connectionFailures = 0;
+	
+	/**
+	 * A stream reading a response from the backing DIS. The underlying
+	 * connection is closed as soon as the end of the response is reached, or
+	 * when the stream is closed, whichever comes first.
+	 * 
+	 * @author sautter
+	 */
+	private class ConnectionInputStream extends FilterInputStream {
+		private Connection connection;
+		ConnectionInputStream(InputStream in, Connection connection) {
+			super(in);
+			this.connection = connection;
+		}
+		public int read() throws IOException {
+			if (this.connection == null)
+				return -1;
+			int read = super.read();
+			if (read == -1)
+				this.close();
+			return read;
+		}
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (this.connection == null)
+				return -1;
+			int read = super.read(b, off, len);
+			if (read == -1)
+				this.close();
+			return read;
+		}
+		public int available() throws IOException {
+			return ((this.connection == null) ? 0 : super.available());
+		}
+		public void close() throws IOException {
+			if (this.connection == null)
+				return;
+			closeConnection(this.connection);
+			this.connection = null;
+		}
+	}
+	
+	/**
+	 * Statistics on the connections to the backing DIS.
+	 * 
+	 * @author sautter
+	 */
+	public static class ConnectionStats {
+		
+		/** the maximum number of parallel connections (0 means unlimited) */
+		public final int maxConnections;
+		
+		/** the number of connections currently open */
+		public final int activeConnections;
+		
+		/** the maximum number of connections open at the same time so far */
+		public final int peakActiveConnections;
+		
+		/** the number of connections opened so far */
+		public final long connectionsOpened;
+		
+		/** the number of times a connection request had to wait for a free slot */
+		public final long connectionWaits;
+		
+		/** the total time connection requests spent waiting for a free slot, in milliseconds */
+		public final long connectionWaitTime;
+		
+		/** the number of connection requests that timed out waiting for a free slot */
+		public final long connectionTimeouts;
+		
+		/** the number of connection attempts that failed */
+		public final long connectionFailures;
+		
+		ConnectionStats(int maxConnections, int activeConnections, int peakActiveConnections, long connectionsOpened, long connectionWaits, long connectionWaitTime, long connectionTimeouts, long connectionFailures) {
+			this.maxConnections = maxConnections;
+			this.activeConnections = activeConnections;
+			this.peakActiveConnections = peakActiveConnections;
+			this.connectionsOpened = connectionsOpened;
+			this.connectionWaits = connectionWaits;
+			this.connectionWaitTime = connectionWaitTime;
+			this.connectionTimeouts = connectionTimeouts;
+			this.connectionFailures = connectionFailures;
+		}
+		
+		public String toString() {
+			return ("active " + this.activeConnections + "/" + ((this.maxConnections < 1) ? "unlimited" : ("" + this.maxConnections)) + " (peak " + this.peakActiveConnections + "), opened " + this.connectionsOpened + ", waits " + this.connectionWaits + " (" + this.connectionWaitTime + "ms), timeouts " + this.connectionTimeouts + ", failures " + this.connectionFailures);
+		}
+	}
+	
+	/**
+	 * Retrieve statistics on the connections to the backing DIS.
+	 * @return a snapshot of the connection statistics
+	 */
+	public ConnectionStats getConnectionStats() {
+		synchronized (this.connectionLock) {
+			return new ConnectionStats(this.maxConnections, this.activeConnections, this.peakActiveConnections, this.connectionsOpened, this.connectionWaits, this.connectionWaitTime, this.connectionTimeouts, this.connectionFailures);
+		}
+	}
+	
+	/**
+	 * Limit the number of connections to the backing DIS open at the same
+	 * time. Further requests wait for an open connection to be closed. This
+	 * prevents bursts of requests from flooding the backing DIS with parallel
+	 * connections. A value of 0 or less removes the limit.
+	 * @param maxConnections the maximum number of parallel connections
+	 */
+	public void setMaxConnections(int maxConnections) {
+		synchronized (this.connectionLock) {
+			this.maxConnections = maxConnections;
+			this.connectionLock.notifyAll();
+		}
+	}
+	
+	/**
+	 * Set the maximum time a request waits for a free connection if the
+	 * number of parallel connections is limited. Requests waiting longer fail
+	 * with an IOException. A value of 0 or less means to wait indefinitely.
+	 * @param connectionWaitTimeout the maximum wait time, in milliseconds
+	 */
+	public void setConnectionWaitTimeout(int connectionWaitTimeout) {
+		this.connectionWaitTimeout = connectionWaitTimeout;
+	}
+	
 	/* (non-Javadoc)
 	 * @see de.uka.ipd.idaho.gamta.util.imaging.PageImageSource#isPageImageAvailable(java.lang.String)
 	 */
 	public boolean isPageImageAvailable(String name) {
 		
 		//	check cache
-		if (this.cacheFolder != null) {
-			File picf = this.getPageImageCacheFile(name);
-			if (picf.exists())
-				return true;
-		}
+		if ((this.cache != null) && this.cache.isCached(name, 0))
+			return true;
+		
+		//	check whether image is known to be missing
+		if (this.isKnownMissing(name))
+			return false;
 		
 		//	check backing server
 		Connection con = null;
 		try {
-			con = this.getConnection();
+			con = this.openConnection();
 			BufferedWriter bw = con.getWriter();
 			
 			bw.write(CHECK_IMAGE_AVAILABLE);
@@ -109,15 +324,18 @@ public class GoldenGateDisClient extends AbstractPageImageSource implements Gold
 			
 			BufferedReader br = con.getReader();
 			String error = br.readLine();
-			return (CHECK_IMAGE_AVAILABLE.equals(error));
+			if (CHECK_IMAGE_AVAILABLE.equals(error))
+				return true;
+			if (isMissingError(error))
+				this.pageImageMissing(name);
+			return false;
 		}
 		catch (IOException e) {
 			return false;
 		}
 		finally {
-			if (con != null) try {
-				con.close();
-			} catch (IOException e) {}
+			if (con != null)
+				this.closeConnection(con);
 		}
 	}
 	
@@ -125,156 +343,983 @@ public class GoldenGateDisClient extends AbstractPageImageSource implements Gold
 	 * @see de.uka.ipd.idaho.gamta.util.imaging.PageImageSource#getPageImageAsStream(java.lang.String)
 	 */
 	public PageImageInputStream getPageImageAsStream(String name) throws IOException {
-		if (this.cacheFolder == null)
-			return new PageImageInputStream(this.getPageImageInputStream(name), this);
+		return this.getPageImageAsStreamForDpi(name, 0);
+	}
+	
+	/**
+	 * Retrieve a page image in or close to a specific resolution. If the
+	 * backing GoldenGATE DIS holds pre-computed derivatives of the requested
+	 * page image, the returned image is the one with the lowest resolution at
+	 * or above the argument one. Otherwise, or if the argument resolution is 0
+	 * or less, the returned image is the original page image. In either case,
+	 * client code has to check the resolution of the returned image, and scale
+	 * it if required.
+	 * @param name the name of the page image
+	 * @param dpi the desired resolution
+	 * @return the page image, as a stream
+	 * @throws IOException
+	 */
+	public PageImageInputStream getPageImageAsStreamForDpi(String name, int dpi) throws IOException {
+		if (dpi < 0)
+			dpi = 0;
+		if (this.isKnownMissing(name))
+			throw new IOException(getMissingMessage(name));
+		if (this.cache != null)
+			this.prefetcher.accessed(name, dpi);
+		
+		//	try off-heap cache first (no need to synchronize, as this tier is only ever filled with complete page images)
+		GoldenGateDisClientSlabCache offHeapCache = this.offHeapCache;
+		if (offHeapCache != null) {
+			InputStream imageIn = offHeapCache.getInputStream(name, dpi);
+			if (imageIn != null)
+				return new PageImageInputStream(imageIn, this);
+		}
+		
+		if (this.cache == null)
+			return new PageImageInputStream(this.cachePageImageInputStream(this.getPageImageInputStream(name, dpi), name, dpi), this);
 		else if (this.cacheSynchronized)
-			return this.getPageImageAsStreamSynchronized(name);
-		else return this.getPageImageAsStreamUnSynchronized(name);
+			return this.getPageImageAsStreamSynchronized(name, dpi);
+		else return this.getPageImageAsStreamUnSynchronized(name, dpi);
 	}
 	
-	private PageImageInputStream getPageImageAsStreamSynchronized(final String name) throws IOException {
+	/**
+	 * Retrieve a part of a page image, optionally scaled to a specific
+	 * resolution. The bounding box refers to the original resolution of the
+	 * page image, just like in <code>PageImage.getSubImage()</code>. The
+	 * backing GoldenGATE DIS sends only the requested part of the page image,
+	 * assembled from tiles if it has the page image stored in tiles. Parts of
+	 * page images are not cached.
+	 * @param name the name of the page image
+	 * @param box the bounding box of the part to retrieve
+	 * @param dpi the resolution to scale the part to (0 for no scaling)
+	 * @return the page image part, as a stream
+	 * @throws IOException
+	 */
+	public PageImageInputStream getPageImageRegionAsStream(String name, BoundingBox box, int dpi) throws IOException {
+		if (this.isKnownMissing(name))
+			throw new IOException(getMissingMessage(name));
+		final Connection con = this.openConnection();
+		BufferedLineOutputStream blos = con.getOutputStream();
 		
-		//	check cache status
-		final Object cacheMarker;
-		synchronized (this.cacheMarkers) {
-			cacheMarker = this.cacheMarkers.get(name);
+		blos.writeLine(GET_IMAGE_REGION);
+		blos.writeLine(name);
+		blos.writeLine(box.toString());
+		blos.writeLine("" + dpi);
+		blos.flush();
+		
+		BufferedLineInputStream blis = con.getInputStream();
+		String error = blis.readLine();
+		if (GET_IMAGE_REGION.equals(error))
+			return new PageImageInputStream(new ConnectionInputStream(blis, con), this);
+		
+		else {
+			this.closeConnection(con);
+			throw new IOException(error);
+		}
+	}
+	
+	/**
+	 * Retrieve the metadata of all page images stored for a document, i.e.,
+	 * the IDs of the pages, plus size and resolution of each image. Results
+	 * are cached for the page image info TTL, so client code can plan fetching
+	 * page images without any further round trips.
+	 * @param docId the ID of the document
+	 * @return an array holding the page image infos, in page ID order
+	 * @throws IOException
+	 */
+	public PageImageInfo[] getPageImageInfos(String docId) throws IOException {
+		
+		//	do cache lookup
+		PageImageInfo[] piis;
+		synchronized (this.pageImageInfoCache) {
+			CachedPageImageInfos cpiis = this.getCachedPageImageInfos(this.pageImageInfoCache, docId);
+			piis = ((cpiis == null) ? null : cpiis.piis);
+		}
+		if (piis != null)
+			return piis.clone();
+		
+		//	get page list from backing DIS
+		Connection con = null;
+		try {
+			con = this.openConnection();
+			BufferedLineOutputStream blos = con.getOutputStream();
 			
-			//	no other thread is caching the requested image ==> it's either completely on disc, or not at all
-			if (cacheMarker == null) {
+			blos.writeLine(LIST_PAGES);
+			blos.writeLine(docId);
+			blos.flush();
+			
+			BufferedLineInputStream blis = con.getInputStream();
+			String error = blis.readLine();
+			if (!LIST_PAGES.equals(error))
+				throw new IOException(error);
+			
+			ArrayList pageImageInfos = new ArrayList();
+			for (String pageImageInfo; (pageImageInfo = blis.readLine()) != null;) {
+				pageImageInfo = pageImageInfo.trim();
+				if (pageImageInfo.length() != 0)
+					pageImageInfos.add(PageImageInfo.parse(pageImageInfo));
+			}
+			piis = ((PageImageInfo[]) pageImageInfos.toArray(new PageImageInfo[pageImageInfos.size()]));
+		}
+		catch (IllegalArgumentException iae) {
+			throw new IOException(iae.getMessage());
+		}
+		finally {
+			if (con != null)
+				this.closeConnection(con);
+		}
+		
+		//	cache page list
+		synchronized (this.pageImageInfoCache) {
+			this.pageImageInfoCache.put(docId, new CachedPageImageInfos(piis));
+		}
+		return piis.clone();
+	}
+	
+	private LinkedHashMap pageImageInfoCache = new LinkedHashMap(16, 0.75f, true) {
+		protected boolean removeEldestEntry(Entry eldest) {
+			return (this.size() > 128);
+		}
+	};
+	
+	/**
+	 * The metadata of all page images stored for a document, or of a single
+	 * page image, together with the time it was fetched from the backing DIS.
+	 */
+	private static class CachedPageImageInfos {
+		final PageImageInfo[] piis;
+		final long cached = System.currentTimeMillis();
+		CachedPageImageInfos(PageImageInfo[] piis) {
+			this.piis = piis;
+		}
+	}
+	
+	/*
+	 * look up cached page image metadata, dropping it if older than the TTL
+	 * (called holding the lock on the page list cache)
+	 */
+	private CachedPageImageInfos getCachedPageImageInfos(LinkedHashMap cache, String key) {
+		CachedPageImageInfos cpiis = ((CachedPageImageInfos) cache.get(key));
+		if ((cpiis != null) && (this.pageImageInfoTtl > 0) && ((System.currentTimeMillis() - cpiis.cached) >= this.pageImageInfoTtl)) {
+			cache.remove(key);
+			return null;
+		}
+		return cpiis;
+	}
+	
+	private int pageImageInfoTtl = (1000 * 60 * 10);
+	
+	/**
+	 * Set how long to cache the metadata of page images, both the page lists
+	 * of whole documents and the metadata of individual page images. After
+	 * this time, the metadata is fetched from the backing DIS anew, so changes
+	 * made to a document elsewhere show within this time. Storing a page image
+	 * through this client drops cached metadata referring to it right away. A
+	 * value of 0 or less means to cache metadata without time limit. The
+	 * default is ten minutes.
+	 * @param pageImageInfoTtl the time to cache page image metadata, in
+	 *            milliseconds
+	 */
+	public void setPageImageInfoTtl(int pageImageInfoTtl) {
+		synchronized (this.pageImageInfoCache) {
+			this.pageImageInfoTtl = pageImageInfoTtl;
+		}
+	}
+	
+	/**
+	 * Retrieve the metadata of a page image, i.e., its size and resolution,
+	 * without fetching the image proper. Results are cached for the page image
+	 * info TTL, so client code can decide how to fetch or serve a page image
+	 * without any further round trips.
+	 * @param name the name of the page image
+	 * @return the page image info, or null if the page image is not available
+	 * @throws IOException
+	 */
+	public PageImageInfo getPageImageInfo(String name) throws IOException {
+		
+		//	do cache lookup
+		synchronized (this.pageImageInfoCache) {
+			CachedPageImageInfos cpiis = this.getCachedPageImageInfos(this.singlePageImageInfoCache, name);
+			if (cpiis != null)
+				return cpiis.piis[0];
+			cpiis = this.getCachedPageImageInfos(this.pageImageInfoCache, name.substring(0, name.lastIndexOf('.')));
+			if (cpiis != null) {
+				PageImageInfo[] piis = cpiis.piis;
+				int pageId = Integer.parseInt(name.substring(name.lastIndexOf('.') + 1));
+				for (int p = 0; p < piis.length; p++) {
+					if (piis[p].pageId == pageId)
+						return piis[p];
+				}
+				return null;
+			}
+		}
+		
+		//	check whether image is known to be missing
+		if (this.isKnownMissing(name))
+			return null;
+		
+		//	get metadata from backing DIS
+		PageImageInfo pii;
+		Connection con = null;
+		try {
+			con = this.openConnection();
+			BufferedLineOutputStream blos = con.getOutputStream();
+			
+			blos.writeLine(GET_IMAGE_INFO);
+			blos.writeLine(name);
+			blos.flush();
+			
+			BufferedLineInputStream blis = con.getInputStream();
+			String error = blis.readLine();
+			if (!GET_IMAGE_INFO.equals(error)) {
+				if (isMissingError(error))
+					this.pageImageMissing(name);
+				return null;
+			}
+			pii = PageImageInfo.parse(blis.readLine());
+		}
+		catch (IllegalArgumentException iae) {
+			throw new IOException(iae.getMessage());
+		}
+		finally {
+			if (con != null)
+				this.closeConnection(con);
+		}
+		
+		//	cache metadata
+		synchronized (this.pageImageInfoCache) {
+			this.singlePageImageInfoCache.put(name, new CachedPageImageInfos(new PageImageInfo[] {pii}));
+		}
+		return pii;
+	}
+	
+	private LinkedHashMap singlePageImageInfoCache = new LinkedHashMap(16, 0.75f, true) {
+		protected boolean removeEldestEntry(Entry eldest) {
+			return (this.size() > 1024);
+		}
+	};
+	
+	/*
+	 * notify the client that a page image was stored (by a subclass that has
+	 * store operations), so to drop any cached data referring to it
+	 */
+	void pageImageStored(String name) {
+		String docId = name.substring(0, name.lastIndexOf('.'));
+		synchronized (this.pageImageInfoCache) {
+			this.pageImageInfoCache.remove(docId);
+			this.singlePageImageInfoCache.remove(name);
+		}
+		synchronized (this.missingPageImages) {
+			this.missingPageImages.remove(name);
+		}
+		if (this.cache != null)
+			this.cache.remove(name);
+		GoldenGateDisClientSlabCache offHeapCache = this.offHeapCache;
+		if (offHeapCache != null)
+			offHeapCache.remove(name);
+	}
+	
+	/*
+	 * check whether a page image is known not to exist, either because the
+	 * backing DIS reported it missing less than the TTL ago, or because it is
+	 * not in the cached page list of its document, provided that page list
+	 * was fetched less than the TTL ago as well (pages added later would be
+	 * reported missing for as long as the page list stays cached otherwise)
+	 */
+	private boolean isKnownMissing(String name) {
+		int split = name.lastIndexOf('.');
+		if (split == -1)
+			return false;
+		
+		//	check recently reported missing page images
+		synchronized (this.missingPageImages) {
+			Long reported = ((Long) this.missingPageImages.get(name));
+			if (reported != null) {
+				if ((System.currentTimeMillis() - reported.longValue()) < this.missingPageImageTtl) {
+					this.missingPageImageHits++;
+					return true;
+				}
+				this.missingPageImages.remove(name);
+			}
+		}
+		
+		//	check cached page list
+		synchronized (this.pageImageInfoCache) {
+			CachedPageImageInfos cpiis = this.getCachedPageImageInfos(this.pageImageInfoCache, name.substring(0, split));
+			if (cpiis == null)
+				return false;
+			if ((System.currentTimeMillis() - cpiis.cached) >= this.missingPageImageTtl)
+				return false;
+			PageImageInfo[] piis = cpiis.piis;
+			int pageId;
+			try {
+				pageId = Integer.parseInt(name.substring(split + 1));
+			}
+			catch (NumberFormatException nfe) {
+				return false;
+			}
+			for (int p = 0; p < piis.length; p++) {
+				if (piis[p].pageId == pageId)
+					return false;
+			}
+		}
+		synchronized (this.missingPageImages) {
+			this.missingPageImageHits++;
+		}
+		return true;
+	}
+	
+	/*
+	 * remember that the backing DIS reported a page image missing
+	 */
+	private void pageImageMissing(String name) {
+		synchronized (this.missingPageImages) {
+			if (this.missingPageImageTtl < 1)
+				return;
+			this.missingPageImages.put(name, new Long(System.currentTimeMillis()));
+			this.missingPageImagesRecorded++;
+		}
+	}
+	
+	/*
+	 * check whether an error response from the backing DIS indicates a page
+	 * image is missing (rather than, e.g., an action unknown to an older DIS)
+	 */
+	private static boolean isMissingError(String error) {
+		return ((error != null) && ("SORRY".equals(error) || error.startsWith("Could not find or load image")));
+	}
+	
+	private static String getMissingMessage(String name) {
+		int split = name.lastIndexOf('.');
+		return ("Could not find or load image of page " + name.substring(split + 1) + " in document " + name.substring(0, split));
+	}
+	
+	private LinkedHashMap missingPageImages = new LinkedHashMap(16, 0.75f, true) {
+		protected boolean removeEldestEntry(Entry eldest) {
+			return (this.size() > 4096);
+		}
+	};
+	private int missingPageImageTtl = (1000 * 60);
+	private long missingPageImageHits = 0;
+	private long missingPageImagesRecorded = 0;
+	
+	/**
+	 * Set how long to remember that the backing DIS reported a page image
+	 * missing. Within this time, requests for the page image fail right away,
+	 * without contacting the backing DIS. Storing the page image through this
+	 * client ends this time right away. A value of 0 or less disables
+	 * remembering missing page images. The default is one minute.
+	 * @param missingPageImageTtl the time to remember missing page images, in
+	 *            milliseconds
+	 */
+	public void setMissingPageImageTtl(int missingPageImageTtl) {
+		synchronized (this.missingPageImages) {
+			this.missingPageImageTtl = missingPageImageTtl;
+			if (this.missingPageImageTtl < 1)
+				this.missingPageImages.clear();
+		}
+	}
+	
+	/**
+	 * Retrieve the number of requests for page images that were answered
+	 * without contacting the backing DIS because the page image was known to
+	 * be missing.
+	 * @return the number of requests for missing page images served locally
+	 */
+	public long getMissingPageImageHits() {
+		synchronized (this.missingPageImages) {
+			return this.missingPageImageHits;
+		}
+	}
+	
+	/**
+	 * Retrieve the number of times the backing DIS reported a page image
+	 * missing, i.e., the number of round trips spent on missing page images.
+	 * @return the number of page images reported missing
+	 */
+	public long getMissingPageImagesRecorded() {
+		synchronized (this.missingPageImages) {
+			return this.missingPageImagesRecorded;
+		}
+	}
+	
+	/**
+	 * An iterator over page images, backed by a single connection to the
+	 * backing GoldenGATE DIS. Client code should close the iterator if it
+	 * does not iterate to the end, so to release the connection.
+	 * 
+	 * @author sautter
+	 */
+	public static interface PageImageInputStreamIterator {
+		
+		/**
+		 * Check if there are further page images.
+		 * @return true if there are further page images, false otherwise
+		 * @throws IOException
+		 */
+		public abstract boolean hasNext() throws IOException;
+		
+		/**
+		 * Retrieve the next page image.
+		 * @return the next page image, as a stream
+		 * @throws IOException
+		 */
+		public abstract PageImageInputStream next() throws IOException;
+		
+		/**
+		 * Retrieve the ID of the page whose image was returned by the most
+		 * recent call to <code>next()</code>.
+		 * @return the ID of the current page
+		 */
+		public abstract int getPageId();
+		
+		/**
+		 * Close the iterator, releasing the underlying connection.
+		 * @throws IOException
+		 */
+		public abstract void close() throws IOException;
+	}
+	
+	/**
+	 * Retrieve the images of a range of pages of a document in one go. Images
+	 * not available from the backing GoldenGATE DIS are omitted from the
+	 * iteration.
+	 * @param docId the ID of the document
+	 * @param firstPageId the ID of the first page
+	 * @param lastPageId the ID of the last page (inclusive)
+	 * @return an iterator over the page images
+	 * @throws IOException
+	 */
+	public PageImageInputStreamIterator getPageImagesAsStreams(String docId, int firstPageId, int lastPageId) throws IOException {
+		int[] pageIds = new int[Math.max(0, (lastPageId - firstPageId + 1))];
+		for (int p = 0; p < pageIds.length; p++)
+			pageIds[p] = (firstPageId + p);
+		return this.getPageImagesAsStreams(docId, pageIds);
+	}
+	
+	/**
+	 * Retrieve the images of a list of pages of a document in one go. Images
+	 * not available from the backing GoldenGATE DIS are omitted from the
+	 * iteration. Images present in the cache are served from there, while all
+	 * others are streamed from the backing GoldenGATE DIS over a single
+	 * connection, and cached along the way. Images that drop out of the cache
+	 * before they are read are fetched individually at the end of the
+	 * iteration, so client code should rely on <code>getPageId()</code>
+	 * rather than on the order of the argument page IDs.
+	 * @param docId the ID of the document
+	 * @param pageIds the IDs of the pages
+	 * @return an iterator over the page images
+	 * @throws IOException
+	 */
+	public PageImageInputStreamIterator getPageImagesAsStreams(String docId, int[] pageIds) throws IOException {
+		
+		//	collect pages not in cache (sticking with the cache we see now, as it might be replaced in the meantime)
+		GoldenGateDisClientCache cache = this.cache;
+		boolean[] fetchPage = new boolean[pageIds.length];
+		StringBuffer fetchPageIds = new StringBuffer();
+		for (int p = 0; p < pageIds.length; p++) {
+			if ((cache != null) && cache.contains(PageImage.getPageImageName(docId, pageIds[p]), 0))
+				continue;
+			fetchPage[p] = true;
+			if (fetchPageIds.length() != 0)
+				fetchPageIds.append(',');
+			fetchPageIds.append(pageIds[p]);
+		}
+		
+		//	everything in cache
+		if (fetchPageIds.length() == 0)
+			return new BatchPageImageInputStreamIterator(docId, pageIds, fetchPage, cache, null, null);
+		
+		//	request missing pages from backing DIS
+		Connection con = this.openConnection();
+		BufferedLineOutputStream blos = con.getOutputStream();
+		
+		blos.writeLine(GET_IMAGES);
+		blos.writeLine(docId);
+		blos.writeLine(fetchPageIds.toString());
+		blos.flush();
+		
+		BufferedLineInputStream blis = con.getInputStream();
+		String error = blis.readLine();
+		if (GET_IMAGES.equals(error))
+			return new BatchPageImageInputStreamIterator(docId, pageIds, fetchPage, cache, con, new DataInputStream(blis));
+		
+		else {
+			this.closeConnection(con);
+			throw new IOException(error);
+		}
+	}
+	
+	private class BatchPageImageInputStreamIterator implements PageImageInputStreamIterator {
+		private String docId;
+		private int[] pageIds;
+		private boolean[] fetchPage;
+		private GoldenGateDisClientCache cache;
+		private int pageIndex = 0;
+		private ArrayList refetchPageIds = new ArrayList();
+		
+		private Connection connection;
+		private DataInputStream dataIn;
+		private int dataPageId = -2;
+		
+		private PageImageInputStream next = null;
+		private int nextPageId = -1;
+		private int pageId = -1;
+		
+		BatchPageImageInputStreamIterator(String docId, int[] pageIds, boolean[] fetchPage, GoldenGateDisClientCache cache, Connection connection, DataInputStream dataIn) {
+			this.docId = docId;
+			this.pageIds = pageIds;
+			this.fetchPage = fetchPage;
+			this.cache = cache;
+			this.connection = connection;
+			this.dataIn = dataIn;
+		}
+		public boolean hasNext() throws IOException {
+			while ((this.next == null) && (this.pageIndex < this.pageIds.length)) {
+				int pageId = this.pageIds[this.pageIndex];
+				boolean fetchPage = this.fetchPage[this.pageIndex];
+				this.pageIndex++;
+				String name = PageImage.getPageImageName(this.docId, pageId);
 				
-				//	try returning cached image
-				try {
-					return new PageImageInputStream(new FileInputStream(this.getPageImageCacheFile(name)), this);
+				//	page image in cache (unless evicted or damaged since we checked, then fetch it individually once we're through)
+				if (!fetchPage) {
+					byte[] data = this.cache.read(name, 0);
+					if (data == null)
+						this.refetchPageIds.add(new Integer(pageId));
+					else {
+						this.next = new PageImageInputStream(new ByteArrayInputStream(data), GoldenGateDisClient.this);
+						this.nextPageId = pageId;
+					}
+					continue;
 				}
 				
-				//	cache miss ==> indicate image in process of being cache
-				catch (FileNotFoundException fnfe) {
-					this.cacheMarkers.put(name, CACHING);
+				//	end of data reached
+				if (this.dataIn == null)
+					continue;
+				
+				//	peek ID of next page image coming from backing DIS
+				if (this.dataPageId == -2)
+					this.dataPageId = this.dataIn.readInt();
+				if (this.dataPageId == -1) {
+					this.close();
+					pageImageMissing(name);
+					continue;
+				}
+				
+				//	page image not available from backing DIS
+				if (this.dataPageId != pageId) {
+					pageImageMissing(name);
+					continue;
+				}
+				
+				//	read page image data
+				byte[] data = new byte[this.dataIn.readInt()];
+				this.dataIn.readFully(data);
+				this.dataPageId = -2;
+				
+				//	cache page image
+				if (this.cache != null)
+					this.cache.store(name, 0, data);
+				this.next = new PageImageInputStream(new ByteArrayInputStream(data), GoldenGateDisClient.this);
+				this.nextPageId = pageId;
+			}
+			
+			//	release connection as soon as we're through
+			if (this.next == null)
+				this.close();
+			
+			//	fetch page images that dropped out of the cache individually (only now, so we don't hold two connections at once)
+			while ((this.next == null) && (this.refetchPageIds.size() != 0)) {
+				int pageId = ((Integer) this.refetchPageIds.remove(0)).intValue();
+				try {
+					this.next = getPageImageAsStream(PageImage.getPageImageName(this.docId, pageId));
+					this.nextPageId = pageId;
+				}
+				catch (IOException ioe) {
+					if (!isMissingError(ioe.getMessage()))
+						throw ioe;
 				}
 			}
+			return (this.next != null);
+		}
+		public PageImageInputStream next() throws IOException {
+			if (!this.hasNext())
+				throw new NoSuchElementException();
+			PageImageInputStream next = this.next;
+			this.next = null;
+			this.pageId = this.nextPageId;
+			return next;
+		}
+		public int getPageId() {
+			return this.pageId;
 		}
+		public void close() throws IOException {
+			this.dataIn = null;
+			if (this.connection != null)
+				closeConnection(this.connection);
+			this.connection = null;
+		}
+	}
+	
+	/*
+	 * fetch a page image into the cache on behalf of the prefetcher, unless
+	 * it is in the cache already, or known not to exist
+	 */
+	boolean prefetchPageImage(String name, int dpi) throws IOException {
+		if ((this.cache == null) || this.cache.isCached(name, dpi))
+			return false;
 		
-		//	another thread is in the process of caching the requested image
-		if (cacheMarker == CACHING) {
-			
-			//	wait a little for other thread to finish caching
-			try {
-				Thread.sleep(100);
-			} catch (InterruptedException ie) {}
+		//	avoid prefetching beyond last page, or into gaps
+		if (this.isKnownMissing(name))
+			return false;
+		
+		//	fetch page image through cache, and read it to the end, so it's stored
+		PageImageInputStream piis = (this.cacheSynchronized ? this.getPageImageAsStreamSynchronized(name, dpi) : this.getPageImageAsStreamUnSynchronized(name, dpi));
+		try {
+			byte[] buffer = new byte[1024];
+			while (piis.read(buffer, 0, buffer.length) != -1) {}
+		}
+		finally {
+			piis.close();
+		}
+		return true;
+	}
+	
+	private PageImageInputStream getPageImageAsStreamSynchronized(String name, int dpi) throws IOException {
+		
+		//	check cache status
+		String cacheName = (name + ((dpi == 0) ? "" : ("@" + dpi)));
+		PendingFetch pendingFetch;
+		PendingFetch ownFetch = null;
+		synchronized (this.pendingFetches) {
+			pendingFetch = ((PendingFetch) this.pendingFetches.get(cacheName));
 			
-			//	and recurse to repeat cache lookup
-			return getPageImageAsStreamSynchronized(name);
+			//	no other thread is caching the requested image ==> it's either completely on disc, or not at all
+			if (pendingFetch == null) {
+				
+				//	try returning cached image
+				InputStream imageIn = this.getCachedPageImageInputStream(name, dpi);
+				if (imageIn != null)
+					return new PageImageInputStream(imageIn, this);
+				
+				//	cache miss ==> indicate image in process of being cached, and fetch it ourselves
+				ownFetch = new PendingFetch();
+				this.pendingFetches.put(cacheName, ownFetch);
+			}
 		}
 		
-		//	fetch image from backing DIS
-		InputStream imageIn = this.getPageImageInputStream(name);
+		//	another thread is in the process of fetching the requested image, wait for it and share the data
+		if (ownFetch == null)
+			return new PageImageInputStream(new ByteArrayInputStream(pendingFetch.getData(name, this.fetchWaitTimeout)), this);
 		
-		//	cache image
-		FileOutputStream cacheOut = new FileOutputStream(this.getPageImageCacheFile(name));
-		ByteArrayOutputStream memOut = new ByteArrayOutputStream();
-		byte[] buffer = new byte[1024];
-		int read;
-		while ((read = imageIn.read(buffer, 0, buffer.length)) != -1) {
-			cacheOut.write(buffer, 0, read);
-			memOut.write(buffer, 0, read);
+		//	fetch image from backing DIS
+		try {
+			InputStream imageIn = this.getPageImageInputStream(name, dpi);
+			ByteArrayOutputStream memOut = new ByteArrayOutputStream();
+			try {
+				byte[] buffer = new byte[1024];
+				for (int read; (read = imageIn.read(buffer, 0, buffer.length)) != -1;)
+					memOut.write(buffer, 0, read);
+			}
+			finally {
+				imageIn.close();
+			}
+			byte[] data = memOut.toByteArray();
+			
+			//	cache image (failing to do so does not affect the data we have in memory)
+			this.cachePageImage(name, dpi, data);
+			
+			//	hand data to waiting threads and return image
+			ownFetch.setData(data);
+			return new PageImageInputStream(new ByteArrayInputStream(data), this);
+		}
+		catch (IOException ioe) {
+			ownFetch.setError(ioe);
+			throw ioe;
+		}
+		catch (RuntimeException re) {
+			ownFetch.setError(new IOException(re.getMessage()));
+			throw re;
 		}
-		cacheOut.flush();
-		cacheOut.close();
-		memOut.flush();
-		memOut.close();
 		
-		//	remove marker and return image
-		synchronized (this.cacheMarkers) {
-			this.cacheMarkers.remove(name);
-			return new PageImageInputStream(new ByteArrayInputStream(memOut.toByteArray()), this);
+		//	remove marker (with image completely on disc, or failed), and make sure waiting threads get to go on even after an Error
+		finally {
+			synchronized (this.pendingFetches) {
+				this.pendingFetches.remove(cacheName);
+			}
+			ownFetch.abandon();
 		}
 	}
 	
-	private HashMap cacheMarkers = new HashMap();
-	private static final Object CACHING = new Object();
+	private HashMap pendingFetches = new HashMap();
+	private int fetchWaitTimeout = 0;
 	
-	private PageImageInputStream getPageImageAsStreamUnSynchronized(String name) throws IOException {
-		InputStream imageIn = this.getCachedPageImageInputStream(name);
+	/**
+	 * The pending fetch of a page image, which threads requesting the same
+	 * page image can wait on, so the page image is fetched only once, and all
+	 * threads are served from the same data the moment it arrives.
+	 * 
+	 * @author sautter
+	 */
+	private static class PendingFetch {
+		private byte[] data = null;
+		private IOException error = null;
+		synchronized void setData(byte[] data) {
+			this.data = data;
+			this.notifyAll();
+		}
+		synchronized void setError(IOException error) {
+			this.error = error;
+			this.notifyAll();
+		}
+		synchronized void abandon() {
+			if ((this.data == null) && (this.error == null))
+				this.setError(new IOException("fetch aborted"));
+		}
+		synchronized byte[] getData(String name, int timeout) throws IOException {
+			long waitEnd = (System.currentTimeMillis() + timeout);
+			while ((this.data == null) && (this.error == null)) {
+				long waitTime = (waitEnd - System.currentTimeMillis());
+				if ((timeout > 0) && (waitTime <= 0))
+					throw new IOException("Timeout waiting for page image " + name);
+				try {
+					this.wait((timeout > 0) ? waitTime : 0);
+				} catch (InterruptedException ie) {}
+			}
+			if (this.error != null)
+				throw new IOException("Could not fetch page image " + name + ": " + this.error.getMessage());
+			return this.data;
+		}
+	}
+	
+	private PageImageInputStream getPageImageAsStreamUnSynchronized(String name, int dpi) throws IOException {
+		InputStream imageIn = this.getCachedPageImageInputStream(name, dpi);
 		if (imageIn == null) {
-			imageIn = this.getPageImageInputStream(name);
-			imageIn = this.cachePageImageInputStream(imageIn, name);
+			imageIn = this.getPageImageInputStream(name, dpi);
+			imageIn = this.cachePageImageInputStream(imageIn, name, dpi);
 		}
 		return new PageImageInputStream(imageIn, this);
 	}
 	
-	private InputStream cachePageImageInputStream(InputStream imageIn, String name) {
-		if (this.cacheFolder == null)
+	private InputStream cachePageImageInputStream(InputStream imageIn, String name, int dpi) {
+		if ((this.cache == null) && (this.offHeapCache == null))
 			return imageIn;
-		try {
-			final OutputStream imageOut = new BufferedOutputStream(new FileOutputStream(this.getPageImageCacheFile(name)));
-			return new FilterInputStream(imageIn) {
-				public void close() throws IOException {
-					byte[] buffer = new byte[1024];
-					int read;
-					do {
-						read = this.read(buffer, 0, buffer.length);
-					} while (read != -1);
-					imageOut.flush();
-					imageOut.close();
-					
-					super.close();
+		return new CacheFillInputStream(imageIn, name, dpi);
+	}
+	
+	/*
+	 * store a page image in the off-heap cache (if complete) and disc cache,
+	 * whichever are enabled, logging rather than throwing any errors
+	 */
+	private void cachePageImage(String name, int dpi, byte[] data) {
+		GoldenGateDisClientSlabCache offHeapCache = this.offHeapCache;
+		if ((offHeapCache != null) && GoldenGateDisClientCache.isComplete(data))
+			offHeapCache.store(name, dpi, data);
+		if (this.cache != null) try {
+			this.cache.store(name, dpi, data);
+		}
+		catch (IOException ioe) {
+			System.out.println("GoldenGateDisClient: error caching page image " + name + ((dpi == 0) ? "" : ("@" + dpi)) + ": " + ioe.getMessage());
+		}
+	}
+	
+	/**
+	 * A stream passing through a page image fetched from the backing DIS,
+	 * keeping a copy of the data to store in the cache once the page image is
+	 * complete. If the consumer closes the stream before the end of the page
+	 * image, the rest is fetched in the background within the configured
+	 * budget, or the page image is not cached, but the consumer never has to
+	 * wait for the rest. If reading fails, the page image is not cached.
+	 * 
+	 * @author sautter
+	 */
+	private class CacheFillInputStream extends FilterInputStream {
+		private String name;
+		private int dpi;
+		private ByteArrayOutputStream imageOut = new ByteArrayOutputStream();
+		private boolean complete = false;
+		private boolean failed = false;
+		private boolean closed = false;
+		CacheFillInputStream(InputStream in, String name, int dpi) {
+			super(in);
+			this.name = name;
+			this.dpi = dpi;
+		}
+		public int read() throws IOException {
+			try {
+				int read = super.read();
+				if (read == -1)
+					this.complete = true;
+				else this.imageOut.write(read);
+				return read;
+			}
+			catch (IOException ioe) {
+				this.failed = true;
+				throw ioe;
+			}
+		}
+		public int read(byte[] b, int off, int len) throws IOException {
+			try {
+				int read = super.read(b, off, len);
+				if (read == -1)
+					this.complete = true;
+				else this.imageOut.write(b, off, read);
+				return read;
+			}
+			catch (IOException ioe) {
+				this.failed = true;
+				throw ioe;
+			}
+		}
+		public void close() throws IOException {
+			if (this.closed)
+				return;
+			this.closed = true;
+			
+			//	reading failed, don't cache
+			if (this.failed) {
+				this.dropFill("reading failed");
+				super.close();
+			}
+			
+			//	image complete (consumers decoding the image don't necessarily read up to the end of the stream)
+			else if (this.complete || GoldenGateDisClientCache.isComplete(this.imageOut.toByteArray())) {
+				super.close();
+				this.store();
+			}
+			
+			//	consumer abandoned image, complete it in background if possible
+			else if (!completeCacheFill(this)) {
+				this.dropFill("abandoned after " + this.imageOut.size() + " bytes");
+				super.close();
+			}
+		}
+		
+		/* read the rest of the image within the configured budget, and then
+		 * store it or give up on it (called on a background thread) */
+		void completeFill(int maxBytes, int timeout) {
+			long deadline = ((timeout > 0) ? (System.currentTimeMillis() + timeout) : Long.MAX_VALUE);
+			int remainingBytes = maxBytes;
+			String dropReason = null;
+			try {
+				byte[] buffer = new byte[1024];
+				while (true) {
+					int read = super.read(buffer, 0, ((int) Math.min(buffer.length, (remainingBytes + 1L))));
+					if (read == -1)
+						break;
+					this.imageOut.write(buffer, 0, read);
+					remainingBytes -= read;
+					if (remainingBytes < 0) {
+						dropReason = ("image exceeds background completion budget of " + maxBytes + " bytes");
+						break;
+					}
+					if (System.currentTimeMillis() > deadline) {
+						dropReason = ("background completion timed out after " + timeout + "ms");
+						break;
+					}
 				}
-				public int read() throws IOException {
-					int read = super.read();
-					if (read != -1)
-						imageOut.write(read);
-					return read;
+			}
+			catch (IOException ioe) {
+				dropReason = ("reading failed in background: " + ioe.getMessage());
+			}
+			catch (RuntimeException re) {
+				dropReason = ("reading failed in background: " + re.getMessage());
+			}
+			finally {
+				try {
+					super.close();
 				}
-				public int read(byte[] b, int off, int len) throws IOException {
-					int read = super.read(b, off, len);
-					if (read != -1)
-						imageOut.write(b, off, read);
-					return read;
+				catch (IOException ioe) {
+					System.out.println("GoldenGateDisClient: error closing cache fill for page image " + this.name + ": " + ioe.getMessage());
 				}
-			};
+			}
+			if (dropReason == null)
+				this.store();
+			else this.dropFill(dropReason);
 		}
-		catch (IOException ioe) {
-			ioe.printStackTrace(System.out);
-			return imageIn;
+		
+		private void store() {
+			cachePageImage(this.name, this.dpi, this.imageOut.toByteArray());
+		}
+		
+		private void dropFill(String reason) {
+			if (cache != null)
+				cache.dropFill(this.name, this.dpi, reason);
 		}
 	}
 	
-	private InputStream getCachedPageImageInputStream(String name) {
-		if (this.cacheFolder == null)
-			return null;
-		try {
-			return new FileInputStream(this.getPageImageCacheFile(name));
+	/*
+	 * hand a cache fill abandoned by its consumer to a background thread to
+	 * complete, unless background completion is disabled, or too many fills
+	 * are already being completed
+	 */
+	private boolean completeCacheFill(final CacheFillInputStream cfis) {
+		final int maxBytes;
+		final int timeout;
+		synchronized (this.cacheFillLock) {
+			if ((this.cacheFillCompletionBudget < 1) || (this.activeCacheFillCompletions >= MAX_CACHE_FILL_COMPLETIONS))
+				return false;
+			this.activeCacheFillCompletions++;
+			maxBytes = this.cacheFillCompletionBudget;
+			timeout = this.cacheFillCompletionTimeout;
 		}
-		catch (FileNotFoundException fnfe) {
+		Thread completer = new Thread("DisCacheFillCompleter") {
+			public void run() {
+				try {
+					cfis.completeFill(maxBytes, timeout);
+				}
+				finally {
+					synchronized (cacheFillLock) {
+						activeCacheFillCompletions--;
+					}
+				}
+			}
+		};
+		completer.setDaemon(true);
+		completer.start();
+		return true;
+	}
+	
+	private static final int MAX_CACHE_FILL_COMPLETIONS = 4;
+	private Object cacheFillLock = new Object();
+	private int activeCacheFillCompletions = 0;
+	private int cacheFillCompletionBudget = (1024 * 1024 * 4);
+	private int cacheFillCompletionTimeout = (1000 * 10);
+	
+	private InputStream getCachedPageImageInputStream(String name, int dpi) {
+		if (this.cache == null)
 			return null;
-		}
+		byte[] data = this.cache.get(name, dpi);
+		if (data == null)
+			return null;
+		
+		//	promote page image to off-heap cache
+		GoldenGateDisClientSlabCache offHeapCache = this.offHeapCache;
+		if (offHeapCache != null)
+			offHeapCache.store(name, dpi, data);
+		return new ByteArrayInputStream(data);
 	}
 	
-	private InputStream getPageImageInputStream(String name) throws IOException {
-		final Connection con = this.getConnection();
+	private InputStream getPageImageInputStream(String name, int dpi) throws IOException {
+		final Connection con = this.openConnection();
 		BufferedLineOutputStream blos = con.getOutputStream();
 		
-		blos.writeLine(GET_IMAGE);
+		String command = ((dpi == 0) ? GET_IMAGE : GET_IMAGE_AT_DPI);
+		blos.writeLine(command);
 		blos.writeLine(name);
+		if (dpi != 0)
+			blos.writeLine("" + dpi);
 		blos.flush();
 		
 		BufferedLineInputStream blis = con.getInputStream();
 		String error = blis.readLine();
-		if (GET_IMAGE.equals(error))
-			return new FilterInputStream(blis) {
-				private Connection connection = con;
-				public void close() throws IOException {
-					this.connection.close();
-					this.connection = null;
-				}
-				protected void finalize() throws Throwable {
-					if (this.connection != null)
-						this.connection.close();
-				}
-			};
+		if (command.equals(error))
+			return new ConnectionInputStream(blis, con);
 		
 		else {
-			con.close();
+			this.closeConnection(con);
+			if (isMissingError(error))
+				this.pageImageMissing(name);
 			throw new IOException(error);
 		}
 	}
@@ -309,20 +1354,13 @@ public class GoldenGateDisClient extends AbstractPageImageSource implements Gold
 //		}
 //	}
 	
-	private File getPageImageCacheFile(String name) {
-		File pageImageFolder = new File(this.cacheFolder, name);
-		if (!pageImageFolder.exists())
-			pageImageFolder.mkdir();
-		return new File(pageImageFolder, (name + "." + IMAGE_FORMAT));
-	}
-	
 	/**
 	 * Test whether caching is enabled for this GoldenGATE DIS Client, i.e.,
 	 * whether the cache folder is set to a valid directory.
 	 * @return true is caching is anabled, false otherwise
 	 */
 	public boolean isCachingEnabled() {
-		return (this.cacheFolder != null);
+		return (this.cache != null);
 	}
 	
 	/**
@@ -337,17 +1375,339 @@ public class GoldenGateDisClient extends AbstractPageImageSource implements Gold
 		if ((cacheFolder != null) && cacheFolder.exists() && !cacheFolder.isDirectory())
 			cacheFolder = null;
 		
-		//	set cache folder
-		this.cacheFolder = cacheFolder;
-		
 		//	make sure cache folder exists, disable cache if creation fails
-		if (this.cacheFolder != null) {
-			this.cacheFolder.mkdirs();
-			if (!this.cacheFolder.exists() || !this.cacheFolder.isDirectory())
-				this.cacheFolder = null;
+		if (cacheFolder != null) {
+			cacheFolder.mkdirs();
+			if (!cacheFolder.exists() || !cacheFolder.isDirectory())
+				cacheFolder = null;
+		}
+		
+		//	cache folder unchanged, keep cache
+		if ((this.cache != null) && this.cache.getFolder().equals(cacheFolder))
+			return;
+		
+		//	shut down previous cache (persisting its index)
+		if (this.cache != null)
+			this.cache.shutdown();
+		
+		//	set up cache for new folder
+		if (cacheFolder == null)
+			this.cache = null;
+		else {
+			this.cache = new GoldenGateDisClientCache(cacheFolder);
+			this.cache.setMaxBytes(this.cacheQuota);
+			this.cache.setLowWaterMark(this.cacheLowWaterMark);
+		}
+	}
+	
+	/**
+	 * Set the maximum number of bytes the cache may occupy on disc. If the
+	 * cached images exceed this quota, a background thread evicts the least
+	 * recently used ones until the cache is down to the low water mark. A
+	 * value of 0 or less means the cache grows without limit.
+	 * @param cacheQuota the cache quota, in bytes
+	 */
+	public void setCacheQuota(long cacheQuota) {
+		this.cacheQuota = cacheQuota;
+		if (this.cache != null)
+			this.cache.setMaxBytes(this.cacheQuota);
+	}
+	
+	/**
+	 * Set the percentage of the cache quota to evict cached images down to
+	 * once the quota is exceeded. Evicting a little more than necessary keeps
+	 * the cache from sweeping on every single image stored. The default value
+	 * is 90.
+	 * @param cacheLowWaterMark the low water mark, in percent of the quota
+	 */
+	public void setCacheLowWaterMark(int cacheLowWaterMark) {
+		this.cacheLowWaterMark = cacheLowWaterMark;
+		if (this.cache != null)
+			this.cache.setLowWaterMark(this.cacheLowWaterMark);
+	}
+	
+	/**
+	 * Set how many more bytes of a page image to fetch in the background if
+	 * client code closes a stream obtained from the backing DIS before the end
+	 * of the page image, so to complete the page image for the cache anyway.
+	 * Page images exceeding this budget are not cached. A value of 0 or less
+	 * disables background completion, so abandoned page images are never
+	 * cached. The default is 4 MB.
+	 * @param cacheFillCompletionBudget the budget for background completion,
+	 *            in bytes
+	 */
+	public void setCacheFillCompletionBudget(int cacheFillCompletionBudget) {
+		synchronized (this.cacheFillLock) {
+			this.cacheFillCompletionBudget = cacheFillCompletionBudget;
+		}
+	}
+	
+	/**
+	 * Set the maximum time to spend completing an abandoned page image in the
+	 * background. Page images taking longer are not cached. A value of 0 or
+	 * less means no time limit. The default is 10 seconds.
+	 * @param cacheFillCompletionTimeout the time limit for background
+	 *            completion, in milliseconds
+	 */
+	public void setCacheFillCompletionTimeout(int cacheFillCompletionTimeout) {
+		synchronized (this.cacheFillLock) {
+			this.cacheFillCompletionTimeout = cacheFillCompletionTimeout;
 		}
 	}
 	
+	/**
+	 * Set the number of page images to fetch into the cache ahead of time once
+	 * client code is found to request the page images of a document one after
+	 * another in ascending order. Prefetching happens in the background, and
+	 * prefetches not yet started are cancelled as soon as access jumps to
+	 * some other part of the document. This setting has an effect only if
+	 * caching is enabled. A value of 0 or less disables prefetching, which is
+	 * the default.
+	 * @param prefetchDepth the number of page images to fetch ahead
+	 */
+	public void setPrefetchDepth(int prefetchDepth) {
+		this.prefetcher.setDepth(prefetchDepth);
+	}
+	
+	/**
+	 * Set the number of background threads prefetching page images. The
+	 * default is 2.
+	 * @param prefetchThreads the number of prefetch threads
+	 */
+	public void setPrefetchThreads(int prefetchThreads) {
+		this.prefetcher.setThreads(prefetchThreads);
+	}
+	
+	/**
+	 * Statistics on prefetching.
+	 * 
+	 * @author sautter
+	 */
+	public static class PrefetchStats {
+		
+		/** the number of page images fetched ahead (0 means prefetching is disabled) */
+		public final int depth;
+		
+		/** the number of prefetches waiting to be started */
+		public final int queued;
+		
+		/** the number of prefetches scheduled so far */
+		public final long scheduled;
+		
+		/** the number of page images prefetched so far */
+		public final long completed;
+		
+		/** the number of prefetches skipped because the page image was cached already, or does not exist */
+		public final long skipped;
+		
+		/** the number of prefetches that failed */
+		public final long failed;
+		
+		/** the number of prefetches cancelled before they started because access jumped elsewhere */
+		public final long cancelled;
+		
+		/** the number of prefetches not scheduled because the queue was full */
+		public final long rejected;
+		
+		/** the number of prefetched page images that were requested afterwards */
+		public final long used;
+		
+		/** the number of prefetched page images that were not requested while tracked */
+		public final long wasted;
+		
+		PrefetchStats(int depth, int queued, long scheduled, long completed, long skipped, long failed, long cancelled, long rejected, long used, long wasted) {
+			this.depth = depth;
+			this.queued = queued;
+			this.scheduled = scheduled;
+			this.completed = completed;
+			this.skipped = skipped;
+			this.failed = failed;
+			this.cancelled = cancelled;
+			this.rejected = rejected;
+			this.used = used;
+			this.wasted = wasted;
+		}
+		
+		public String toString() {
+			return ("depth " + this.depth + ", queued " + this.queued + ", scheduled " + this.scheduled + ", completed " + this.completed + ", skipped " + this.skipped + ", failed " + this.failed + ", cancelled " + this.cancelled + ", rejected " + this.rejected + ", used " + this.used + ", wasted " + this.wasted);
+		}
+	}
+	
+	/**
+	 * Retrieve statistics on prefetching.
+	 * @return a snapshot of the prefetch statistics
+	 */
+	public PrefetchStats getPrefetchStats() {
+		return this.prefetcher.getStats();
+	}
+	
+	/**
+	 * Statistics on the disc cache.
+	 * 
+	 * @author sautter
+	 */
+	public static class DiscCacheStats {
+		
+		/** the cache quota, in bytes (0 means unlimited) */
+		public final long maxBytes;
+		
+		/** the number of bytes occupied by the cache segments on disc */
+		public final long discBytes;
+		
+		/** the number of cache segments */
+		public final int segments;
+		
+		/** the number of bytes of the page images currently cached */
+		public final long bytes;
+		
+		/** the number of page images currently cached */
+		public final int entries;
+		
+		/** the number of lookups that found the requested image in the cache */
+		public final long hits;
+		
+		/** the number of lookups that did not find the requested image in the cache */
+		public final long misses;
+		
+		/** the number of page images evicted from the cache */
+		public final long evictions;
+		
+		/** the number of bytes evicted from the cache */
+		public final long evictedBytes;
+		
+		/** the number of segments compacted so far */
+		public final long compactions;
+		
+		/** the number of page images not cached because they were incomplete or abandoned */
+		public final long droppedFills;
+		
+		/** the number of cached page images dropped because of a checksum mismatch */
+		public final long corruptRecords;
+		
+		DiscCacheStats(long maxBytes, long discBytes, int segments, long bytes, int entries, long hits, long misses, long evictions, long evictedBytes, long compactions, long droppedFills, long corruptRecords) {
+			this.maxBytes = maxBytes;
+			this.discBytes = discBytes;
+			this.segments = segments;
+			this.bytes = bytes;
+			this.entries = entries;
+			this.hits = hits;
+			this.misses = misses;
+			this.evictions = evictions;
+			this.evictedBytes = evictedBytes;
+			this.compactions = compactions;
+			this.droppedFills = droppedFills;
+			this.corruptRecords = corruptRecords;
+		}
+		
+		public String toString() {
+			return ("cached " + this.entries + " images (" + this.bytes + " bytes) in " + this.segments + " segments, " + this.discBytes + "/" + ((this.maxBytes < 1) ? "unlimited" : ("" + this.maxBytes)) + " bytes on disc, hits " + this.hits + ", misses " + this.misses + ", evictions " + this.evictions + " (" + this.evictedBytes + " bytes), compactions " + this.compactions + ", dropped fills " + this.droppedFills + ", corrupt records " + this.corruptRecords);
+		}
+	}
+	
+	/**
+	 * Retrieve statistics on the disc cache.
+	 * @return a snapshot of the disc cache statistics, or null if caching is
+	 *         disabled
+	 */
+	public DiscCacheStats getDiscCacheStats() {
+		return ((this.cache == null) ? null : this.cache.getStats());
+	}
+	
+	/**
+	 * Set the number of bytes of memory outside the Java heap to use for
+	 * caching encoded page images. This cache tier sits in front of the disc
+	 * cache and serves frequently requested page images without disc access
+	 * and without adding to garbage collection effort. Page images larger
+	 * than 4 MB are not held in this tier. Memory is allocated in slabs of 4
+	 * MB, so the budget is rounded down to a multiple of 4 MB, and a budget
+	 * below 4 MB disables the tier. Changing the budget discards the current
+	 * content of the tier. A value of 0 or less disables the tier, which is
+	 * the default.
+	 * @param offHeapCacheBudget the off-heap cache budget, in bytes
+	 */
+	public void setOffHeapCacheBudget(long offHeapCacheBudget) {
+		GoldenGateDisClientSlabCache offHeapCache = this.offHeapCache;
+		if (offHeapCacheBudget < 1)
+			this.offHeapCache = null;
+		else if (offHeapCacheBudget < GoldenGateDisClientSlabCache.SLAB_SIZE) {
+			System.out.println("GoldenGateDisClient: off-heap cache budget of " + offHeapCacheBudget + " bytes is below the slab size of " + GoldenGateDisClientSlabCache.SLAB_SIZE + " bytes, disabling off-heap cache");
+			this.offHeapCache = null;
+		}
+		else if ((offHeapCache == null) || (offHeapCache.getBudget() != offHeapCacheBudget))
+			this.offHeapCache = new GoldenGateDisClientSlabCache(offHeapCacheBudget);
+	}
+	
+	/**
+	 * Statistics on the off-heap cache.
+	 * 
+	 * @author sautter
+	 */
+	public static class OffHeapCacheStats {
+		
+		/** the off-heap cache budget, in bytes */
+		public final long budget;
+		
+		/** the number of bytes allocated for slabs so far */
+		public final long allocatedBytes;
+		
+		/** the number of bytes of the page images currently cached */
+		public final long bytes;
+		
+		/** the number of page images currently cached */
+		public final int entries;
+		
+		/** the number of lookups that found the requested image in the cache */
+		public final long hits;
+		
+		/** the number of lookups that did not find the requested image in the cache */
+		public final long misses;
+		
+		/** the number of page images evicted from the cache */
+		public final long evictions;
+		
+		/** the number of page images not cached because they were too large, or no chunk was available */
+		public final long rejected;
+		
+		OffHeapCacheStats(long budget, long allocatedBytes, long bytes, int entries, long hits, long misses, long evictions, long rejected) {
+			this.budget = budget;
+			this.allocatedBytes = allocatedBytes;
+			this.bytes = bytes;
+			this.entries = entries;
+			this.hits = hits;
+			this.misses = misses;
+			this.evictions = evictions;
+			this.rejected = rejected;
+		}
+		
+		public String toString() {
+			return ("cached " + this.entries + " images (" + this.bytes + " bytes) in " + this.allocatedBytes + "/" + this.budget + " bytes off heap, hits " + this.hits + ", misses " + this.misses + ", evictions " + this.evictions + ", rejected " + this.rejected);
+		}
+	}
+	
+	/**
+	 * Retrieve statistics on the off-heap cache.
+	 * @return a snapshot of the off-heap cache statistics, or null if the
+	 *         off-heap cache is disabled
+	 */
+	public OffHeapCacheStats getOffHeapCacheStats() {
+		GoldenGateDisClientSlabCache offHeapCache = this.offHeapCache;
+		return ((offHeapCache == null) ? null : offHeapCache.getStats());
+	}
+	
+	/**
+	 * Shut down the client, stopping prefetching and any background activity
+	 * of the disc cache, persisting the cache index, and releasing the
+	 * off-heap cache. Client code should call this method when it no
+	 * longer needs the client.
+	 */
+	public void shutdown() {
+		this.prefetcher.shutdown();
+		if (this.cache != null)
+			this.cache.shutdown();
+		this.cache = null;
+		this.offHeapCache = null;
+	}
+	
 	/**
 	 * Set caching operations to be or not to be synchronized. Synchronizing
 	 * cache operations prevents fetching images from the backing DIS multiple
@@ -361,4 +1721,15 @@ public class GoldenGateDisClient extends AbstractPageImageSource implements Gold
 	public void setCacheSynchronized(boolean cacheSynchronized) {
 		this.cacheSynchronized = cacheSynchronized;
 	}
+	
+	/**
+	 * Set the maximum time a thread waits for another thread fetching the same
+	 * image from the backing DIS if caching is synchronized. Threads waiting
+	 * longer fail with an IOException. A value of 0 or less means to wait
+	 * until the fetch completes.
+	 * @param fetchWaitTimeout the maximum wait time, in milliseconds
+	 */
+	public void setFetchWaitTimeout(int fetchWaitTimeout) {
+		this.fetchWaitTimeout = fetchWaitTimeout;
+	}
 }
\ No newline at end of file
@@ -66,7 +66,7 @@ public class GoldenGateDisClientAuth extends GoldenGateDisClient implements Page
 	public void storePageImage(String name, PageImage pageImage) throws IOException {
 		Connection con = null;
 		try {
-			con = this.getConnection();
+			con = this.openConnection();
 			BufferedLineOutputStream blos = con.getOutputStream();
 			
 			//	indicate image upload coming
@@ -86,10 +86,11 @@ public class GoldenGateDisClientAuth extends GoldenGateDisClient implements Page
 			String error = blis.readLine();
 			if (!STORE_IMAGE.equals(error))
 				throw new IOException(error);
+			this.pageImageStored(name);
 		}
 		finally {
 			if (con != null)
-				con.close();
+				this.closeConnection(con);
 		}
 	}
 //	public void storePageImage(String name, PageImage pageImage) throws IOException {
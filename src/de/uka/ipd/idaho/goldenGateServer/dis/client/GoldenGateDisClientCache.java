@@ -0,0 +1,987 @@
+/*
+ * Copyright (c) 2006-2008, IPD Boehm, Universitaet Karlsruhe (TH)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Universitt Karlsruhe (TH) nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY UNIVERSITT KARLSRUHE (TH) AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.uka.ipd.idaho.goldenGateServer.dis.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import de.uka.ipd.idaho.goldenGateServer.dis.GoldenGateDisConstants;
+import de.uka.ipd.idaho.goldenGateServer.dis.client.GoldenGateDisClient.DiscCacheStats;
+
+/**
+ * Disc cache for page images fetched from a backing GoldenGATE DIS. The cache
+ * stores page images in append-only segment files, each holding many images,
+ * and keeps an in-memory index pointing to the location of each image, so a
+ * lookup takes a single positional read. Once a segment reaches its maximum
+ * size, the cache seals it with a footer listing its records, from which the
+ * index is rebuilt on startup; a segment left unsealed by a crash is scanned
+ * record by record instead. Removing an image from the cache appends a
+ * tombstone record, so the image does not come back on the next startup.
+ * Each record carries a CRC32 checksum of its data, which is verified on every
+ * read, and the cache accepts only complete PNG images, so neither a crash in
+ * the middle of an append nor a truncated response from the backing DIS can
+ * result in a damaged image being served from the cache.<br>
+ * The index is kept in least-recently-used order, which the cache persists in
+ * the cache folder, so it survives restarts. If the segments exceed a byte
+ * quota, a background sweeper thread evicts the least recently used images
+ * until their total size is down to a low water mark, and then compacts the
+ * segments with the most space occupied by evicted or replaced images, copying
+ * the remaining images to the current segment and deleting the old one.
+ *
+ * @author sautter
+ */
+class GoldenGateDisClientCache implements GoldenGateDisConstants {
+	
+	/** the name of the file the least-recently-used order is persisted in */
+	static final String INDEX_FILE_NAME = "cache.index";
+	
+	/** the prefix of segment file names, followed by the segment number */
+	static final String SEGMENT_FILE_PREFIX = "segment-";
+	
+	/** the suffix of segment file names */
+	static final String SEGMENT_FILE_SUFFIX = ".data";
+	
+	private static final int SWEEP_INTERVAL = (1000 * 60);
+	
+	private static final long MAX_SEGMENT_SIZE = (1024 * 1024 * 64);
+	
+	/* record header: magic number, key length, key, data length (-1 for tombstones), data checksum */
+	private static final int RECORD_MAGIC = 0x44495352;
+	
+	/* segment trailer: footer offset, number of footer entries, magic number */
+	private static final int FOOTER_MAGIC = 0x44495346;
+	private static final int TRAILER_SIZE = (8 + 4 + 4);
+	
+	/* bytes a record occupies in addition to its data and (twice) its key: header fields, plus offset and other fields in footer */
+	private static final int RECORD_OVERHEAD = ((4 + 4 + 4 + 4) + (4 + 8 + 4 + 4));
+	
+	/* minimum share of dead space (in percent) for a segment to be compacted if the cache is within its quota */
+	private static final int COMPACTION_THRESHOLD = 25;
+	
+	/* the IEND chunk every complete PNG image ends with (length, type, and CRC) */
+	private static final byte[] PNG_END = {0, 0, 0, 0, 'I', 'E', 'N', 'D', ((byte) 0xAE), ((byte) 0x42), ((byte) 0x60), ((byte) 0x82)};
+	
+	private File folder;
+	
+	private LinkedHashMap entries = new LinkedHashMap(1024, 0.75f, true);
+	private long bytes = 0;
+	private long liveDiscBytes = 0; // bytes on disc occupied by live records, including their overhead
+	private boolean indexDirty = false;
+	
+	private Object writeLock = new Object();
+	private ArrayList segments = new ArrayList();
+	private Segment activeSegment;
+	private volatile long discBytes = 0;
+	
+	private long maxBytes = 0;
+	private int lowWaterMark = 90;
+	
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+	private long evictedBytes = 0;
+	private long compactions = 0;
+	private long droppedFills = 0;
+	private long corruptRecords = 0;
+	
+	private Sweeper sweeper;
+	
+	/**
+	 * A segment file, holding the records of many page images.
+	 *
+	 * @author sautter
+	 */
+	private static class Segment {
+		final int number;
+		final File file;
+		final RandomAccessFile raf;
+		final FileChannel channel;
+		long size;
+		long liveBytes = 0;
+		boolean sealed = false;
+		ArrayList records = new ArrayList();
+		Segment(File folder, int number) throws IOException {
+			this.number = number;
+			this.file = new File(folder, (SEGMENT_FILE_PREFIX + number + SEGMENT_FILE_SUFFIX));
+			this.raf = new RandomAccessFile(this.file, "rw");
+			this.channel = this.raf.getChannel();
+			this.size = this.channel.size();
+		}
+		void close() {
+			try {
+				this.raf.close();
+			}
+			catch (IOException ioe) {
+				ioe.printStackTrace(System.out);
+			}
+		}
+	}
+	
+	/**
+	 * A record in a segment, i.e., either a page image, or a tombstone
+	 * indicating a page image was removed from the cache.
+	 *
+	 * @author sautter
+	 */
+	private static class Record {
+		final String key;
+		final Segment segment;
+		final long offset; // offset of the data proper
+		final int length; // -1 for tombstones
+		final int checksum;
+		final int footprint; // bytes on disc, including header and footer entry (keys are page image names, so one byte per char)
+		Record(String key, Segment segment, long offset, int length, int checksum) {
+			this.key = key;
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+			this.checksum = checksum;
+			this.footprint = (Math.max(0, length) + RECORD_OVERHEAD + (2 * key.length()));
+		}
+	}
+	
+	/**
+	 * Constructor
+	 * @param folder the folder to store the cache segments in
+	 */
+	GoldenGateDisClientCache(File folder) {
+		this.folder = folder;
+		this.loadSegments();
+		this.loadIndex();
+		this.sweeper = new Sweeper();
+		this.sweeper.start();
+	}
+	
+	/**
+	 * Retrieve the folder the cache stores its segments in.
+	 * @return the cache folder
+	 */
+	File getFolder() {
+		return this.folder;
+	}
+	
+	/**
+	 * Set the byte quota of the cache. A value of 0 or less means the cache
+	 * grows without limit.
+	 * @param maxBytes the maximum number of bytes to keep on disc
+	 */
+	void setMaxBytes(long maxBytes) {
+		synchronized (this.entries) {
+			this.maxBytes = maxBytes;
+			this.entries.notify();
+		}
+	}
+	
+	/**
+	 * Set the low water mark of the cache, i.e., the percentage of the byte
+	 * quota to evict down to once the quota is exceeded.
+	 * @param lowWaterMark the low water mark, in percent of the quota
+	 */
+	void setLowWaterMark(int lowWaterMark) {
+		this.lowWaterMark = Math.max(0, Math.min(100, lowWaterMark));
+	}
+	
+	private static String getKey(String name, int dpi) {
+		return (name + ((dpi == 0) ? "" : ("@" + dpi)));
+	}
+	
+	/**
+	 * Check whether or not a page image is in the cache, without counting as
+	 * an access to the page image.
+	 * @param name the name of the page image
+	 * @param dpi the resolution the page image was fetched in (0 for original)
+	 * @return true if the page image is in the cache, false otherwise
+	 */
+	boolean isCached(String name, int dpi) {
+		synchronized (this.entries) {
+			return this.entries.containsKey(getKey(name, dpi));
+		}
+	}
+	
+	/**
+	 * Check whether or not a page image is in the cache. This method counts
+	 * as an access to the page image, so client code should use it only if
+	 * it is actually about to read the page image.
+	 * @param name the name of the page image
+	 * @param dpi the resolution the page image was fetched in (0 for original)
+	 * @return true if the page image is in the cache, false otherwise
+	 */
+	boolean contains(String name, int dpi) {
+		synchronized (this.entries) {
+			boolean found = (this.entries.get(getKey(name, dpi)) != null);
+			if (found) {
+				this.hits++;
+				this.indexDirty = true;
+			}
+			else this.misses++;
+			return found;
+		}
+	}
+	
+	/**
+	 * Retrieve the data of a page image from the cache, counting towards hits
+	 * or misses.
+	 * @param name the name of the page image
+	 * @param dpi the resolution the page image was fetched in (0 for original)
+	 * @return the page image data, or null, if the page image is not in the
+	 *         cache
+	 */
+	byte[] get(String name, int dpi) {
+		byte[] data = this.read(name, dpi);
+		synchronized (this.entries) {
+			if (data == null)
+				this.misses++;
+			else this.hits++;
+		}
+		return data;
+	}
+	
+	/**
+	 * Read the data of a page image from the cache, without counting towards
+	 * hits or misses. Client code should use this method only after checking
+	 * for the page image via <code>contains()</code>.
+	 * @param name the name of the page image
+	 * @param dpi the resolution the page image was fetched in (0 for original)
+	 * @return the page image data, or null, if the page image is not in the
+	 *         cache
+	 */
+	byte[] read(String name, int dpi) {
+		Record record;
+		synchronized (this.entries) {
+			record = ((Record) this.entries.get(getKey(name, dpi)));
+			if (record != null)
+				this.indexDirty = true;
+		}
+		if (record == null)
+			return null;
+		
+		//	segment might be closed by compaction while we're reading, so treat any failure as a miss
+		byte[] data;
+		try {
+			data = readData(record);
+		}
+		catch (IOException ioe) {
+			return null;
+		}
+		
+		//	verify checksum, and drop damaged record
+		if (getChecksum(data, data.length) == record.checksum)
+			return data;
+		System.out.println("GoldenGateDisClientCache: checksum mismatch for " + record.key + " in " + record.segment.file.getName() + ", dropping it");
+		boolean dropped = false;
+		synchronized (this.entries) {
+			if (this.entries.get(record.key) == record) {
+				this.entries.remove(record.key);
+				this.unAccount(record);
+				this.corruptRecords++;
+				dropped = true;
+			}
+		}
+		if (dropped) {
+			ArrayList keys = new ArrayList(1);
+			keys.add(record.key);
+			this.appendTombstones(keys);
+		}
+		return null;
+	}
+	
+	private static byte[] readData(Record record) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(record.length);
+		while (buffer.hasRemaining()) {
+			if (record.segment.channel.read(buffer, (record.offset + buffer.position())) == -1)
+				throw new EOFException("Premature end of data for " + record.key + " in " + record.segment.file.getName());
+		}
+		return buffer.array();
+	}
+	
+	private static int getChecksum(byte[] data, int length) {
+		if (length < 1)
+			return 0;
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, length);
+		return ((int) crc.getValue());
+	}
+	
+	/**
+	 * Check whether or not some data holds a complete page image, i.e., ends
+	 * with the end chunk of a PNG image. This catches images truncated by
+	 * connection failures, which are not distinguishable from regularly ended
+	 * responses by the stream they come from.
+	 * @param data the page image data to check
+	 * @return true if the page image is complete, false otherwise
+	 */
+	static boolean isComplete(byte[] data) {
+		if (data.length < PNG_END.length)
+			return false;
+		for (int b = 0; b < PNG_END.length; b++) {
+			if (data[data.length - PNG_END.length + b] != PNG_END[b])
+				return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Store a page image in the cache. The argument array has to hold the
+	 * complete page image data; incomplete page images are rejected.
+	 * @param name the name of the page image
+	 * @param dpi the resolution the page image was fetched in (0 for original)
+	 * @param data the page image data
+	 * @throws IOException
+	 */
+	void store(String name, int dpi, byte[] data) throws IOException {
+		if (isComplete(data))
+			this.store(getKey(name, dpi), data);
+		else {
+			synchronized (this.entries) {
+				this.droppedFills++;
+			}
+			throw new IOException("Incomplete image data for " + getKey(name, dpi) + " (" + data.length + " bytes)");
+		}
+	}
+	
+	/**
+	 * Notify the cache that a page image was not stored after all, e.g.
+	 * because the stream it was being fetched from failed or was abandoned.
+	 * @param name the name of the page image
+	 * @param dpi the resolution the page image was fetched in (0 for original)
+	 * @param reason the reason for dropping the page image
+	 */
+	void dropFill(String name, int dpi, String reason) {
+		synchronized (this.entries) {
+			this.droppedFills++;
+		}
+		System.out.println("GoldenGateDisClientCache: not caching " + getKey(name, dpi) + ": " + reason);
+	}
+	
+	private void store(String key, byte[] data) throws IOException {
+		Record record;
+		synchronized (this.writeLock) {
+			record = this.appendRecord(key, data, data.length);
+		}
+		synchronized (this.entries) {
+			this.put(record);
+			if ((this.maxBytes > 0) && (this.discBytes > this.maxBytes))
+				this.entries.notify();
+		}
+	}
+	
+	/*
+	 * make a record visible in the index, and account for the record it
+	 * replaces, if any (must be called holding the index lock)
+	 */
+	private void put(Record record) {
+		Record oldRecord = ((Record) this.entries.put(record.key, record));
+		if (oldRecord != null)
+			this.unAccount(oldRecord);
+		record.segment.liveBytes += record.footprint;
+		this.liveDiscBytes += record.footprint;
+		this.bytes += record.length;
+		this.indexDirty = true;
+	}
+	
+	private void unAccount(Record record) {
+		record.segment.liveBytes -= record.footprint;
+		this.liveDiscBytes -= record.footprint;
+		this.bytes -= record.length;
+	}
+	
+	/*
+	 * append a record to the active segment, sealing the segment and starting
+	 * a new one if it grows beyond the maximum size (must be called holding
+	 * the write lock)
+	 */
+	private Record appendRecord(String key, byte[] data, int length) throws IOException {
+		Segment segment = this.activeSegment;
+		byte[] keyBytes = key.getBytes("UTF-8");
+		int checksum = getChecksum(data, length);
+		ByteBuffer buffer = ByteBuffer.allocate(4 + 4 + keyBytes.length + 4 + 4 + Math.max(0, length));
+		buffer.putInt(RECORD_MAGIC);
+		buffer.putInt(keyBytes.length);
+		buffer.put(keyBytes);
+		buffer.putInt(length);
+		buffer.putInt(checksum);
+		if (length > 0)
+			buffer.put(data, 0, length);
+		buffer.flip();
+		long recordOffset = segment.size;
+		while (buffer.hasRemaining())
+			segment.channel.write(buffer, (recordOffset + buffer.position()));
+		segment.size += buffer.limit();
+		this.discBytes += buffer.limit();
+		Record record = new Record(key, segment, (recordOffset + 4 + 4 + keyBytes.length + 4 + 4), length, checksum);
+		segment.records.add(record);
+		if (segment.size > MAX_SEGMENT_SIZE) {
+			this.seal(segment);
+			this.activeSegment = this.createSegment();
+		}
+		return record;
+	}
+	
+	/*
+	 * write the footer of a segment, listing all records it contains (must be
+	 * called holding the write lock)
+	 */
+	private void seal(Segment segment) throws IOException {
+		ByteArrayOutputStream footerBytes = new ByteArrayOutputStream();
+		DataOutputStream footerOut = new DataOutputStream(footerBytes);
+		for (int r = 0; r < segment.records.size(); r++) {
+			Record record = ((Record) segment.records.get(r));
+			byte[] keyBytes = record.key.getBytes("UTF-8");
+			footerOut.writeInt(keyBytes.length);
+			footerOut.write(keyBytes);
+			footerOut.writeLong(record.offset);
+			footerOut.writeInt(record.length);
+			footerOut.writeInt(record.checksum);
+		}
+		footerOut.writeLong(segment.size);
+		footerOut.writeInt(segment.records.size());
+		footerOut.writeInt(FOOTER_MAGIC);
+		footerOut.flush();
+		ByteBuffer buffer = ByteBuffer.wrap(footerBytes.toByteArray());
+		long footerOffset = segment.size;
+		while (buffer.hasRemaining())
+			segment.channel.write(buffer, (footerOffset + buffer.position()));
+		segment.channel.force(false);
+		segment.size += buffer.limit();
+		this.discBytes += buffer.limit();
+		segment.sealed = true;
+	}
+	
+	/*
+	 * create a new segment, numbered one above the highest existing one (must
+	 * be called holding the write lock)
+	 */
+	private Segment createSegment() throws IOException {
+		int number = (this.segments.isEmpty() ? 0 : (((Segment) this.segments.get(this.segments.size() - 1)).number + 1));
+		Segment segment = new Segment(this.folder, number);
+		this.segments.add(segment);
+		return segment;
+	}
+	
+	/**
+	 * Remove a page image from the cache, in any resolution, e.g. after the
+	 * page image was updated in the backing DIS.
+	 * @param name the name of the page image
+	 */
+	void remove(String name) {
+		String keyPrefix = (name + "@");
+		ArrayList removed = new ArrayList();
+		synchronized (this.entries) {
+			for (Iterator kit = this.entries.keySet().iterator(); kit.hasNext();) {
+				String key = ((String) kit.next());
+				if (key.equals(name) || key.startsWith(keyPrefix))
+					removed.add(key);
+			}
+			for (int r = 0; r < removed.size(); r++)
+				this.unAccount((Record) this.entries.remove(removed.get(r)));
+			this.indexDirty = true;
+		}
+		this.appendTombstones(removed);
+	}
+	
+	private void appendTombstones(ArrayList keys) {
+		synchronized (this.writeLock) {
+			try {
+				for (int k = 0; k < keys.size(); k++)
+					this.appendRecord(((String) keys.get(k)), null, -1);
+			}
+			catch (IOException ioe) {
+				System.out.println("GoldenGateDisClientCache: error removing page images: " + ioe.getMessage());
+				ioe.printStackTrace(System.out);
+			}
+		}
+	}
+	
+	/**
+	 * Retrieve statistics on the cache.
+	 * @return a snapshot of the cache statistics
+	 */
+	DiscCacheStats getStats() {
+		synchronized (this.entries) {
+			return new DiscCacheStats(this.maxBytes, this.discBytes, this.segments.size(), this.bytes, this.entries.size(), this.hits, this.misses, this.evictions, this.evictedBytes, this.compactions, this.droppedFills, this.corruptRecords);
+		}
+	}
+	
+	/**
+	 * Shut down the cache, stopping the sweeper thread, persisting the index,
+	 * and closing the segment files.
+	 */
+	void shutdown() {
+		this.sweeper.shutdown();
+		this.storeIndex();
+		synchronized (this.writeLock) {
+			for (int s = 0; s < this.segments.size(); s++)
+				((Segment) this.segments.get(s)).close();
+		}
+	}
+	
+	/*
+	 * evict least recently used page images until the live ones (including
+	 * their record overhead, so we measure what compaction can get the disc
+	 * size down to) are down to the low water mark if the quota is exceeded,
+	 * and then compact segments; returns false if the sweep did nothing
+	 */
+	private boolean sweep() throws IOException {
+		ArrayList evicted = new ArrayList();
+		long targetBytes = Long.MAX_VALUE;
+		synchronized (this.entries) {
+			if ((this.maxBytes > 0) && (this.discBytes > this.maxBytes)) {
+				targetBytes = ((this.maxBytes * this.lowWaterMark) / 100);
+				for (Iterator eit = this.entries.entrySet().iterator(); eit.hasNext() && (this.liveDiscBytes > targetBytes);) {
+					Record record = ((Record) ((Map.Entry) eit.next()).getValue());
+					eit.remove();
+					this.unAccount(record);
+					evicted.add(record.key);
+					this.evictions++;
+					this.evictedBytes += record.length;
+				}
+				this.indexDirty = true;
+			}
+		}
+		this.appendTombstones(evicted);
+		
+		//	compact segments with most dead space first while above target size, and ones with a lot of dead space anyway (at most one pass over all segments)
+		int compacted = 0;
+		int maxCompactions;
+		synchronized (this.writeLock) {
+			maxCompactions = this.segments.size();
+		}
+		while (compacted < maxCompactions) {
+			synchronized (this.writeLock) {
+				Segment victim = null;
+				boolean overTarget = (this.discBytes > targetBytes);
+				for (int s = 0; s < this.segments.size(); s++) {
+					Segment segment = ((Segment) this.segments.get(s));
+					if (!segment.sealed || (segment.liveBytes >= segment.size))
+						continue;
+					if (!overTarget && (((segment.size - segment.liveBytes) * 100) < (segment.size * COMPACTION_THRESHOLD)))
+						continue;
+					if ((victim == null) || ((segment.liveBytes * victim.size) < (victim.liveBytes * segment.size)))
+						victim = segment;
+				}
+				if (victim == null)
+					break;
+				this.compact(victim);
+				compacted++;
+			}
+		}
+		
+		if ((evicted.size() + compacted) == 0)
+			return false;
+		System.out.println("GoldenGateDisClientCache: evicted " + evicted.size() + " page images, compacted " + compacted + " segments, " + this.getStats());
+		return true;
+	}
+	
+	/*
+	 * copy the live records of a segment to the active segment, and delete
+	 * the segment (must be called holding the write lock)
+	 */
+	private void compact(Segment segment) throws IOException {
+		boolean isOldestSegment = (this.segments.indexOf(segment) == 0);
+		for (int r = 0; r < segment.records.size(); r++) {
+			Record record = ((Record) segment.records.get(r));
+			
+			//	keep tombstones as long as there are older segments the removed image might be in
+			if (record.length == -1) {
+				boolean isLive;
+				synchronized (this.entries) {
+					isLive = this.entries.containsKey(record.key);
+				}
+				if (!isLive && !isOldestSegment)
+					this.appendRecord(record.key, null, -1);
+				continue;
+			}
+			
+			//	copy live image, and make index point to copy
+			synchronized (this.entries) {
+				if (this.entries.get(record.key) != record)
+					continue;
+			}
+			byte[] data = readData(record);
+			if (getChecksum(data, data.length) != record.checksum) {
+				System.out.println("GoldenGateDisClientCache: checksum mismatch for " + record.key + " in " + segment.file.getName() + ", dropping it");
+				synchronized (this.entries) {
+					if (this.entries.get(record.key) == record) {
+						this.entries.remove(record.key);
+						this.unAccount(record);
+						this.corruptRecords++;
+					}
+				}
+				this.appendRecord(record.key, null, -1);
+				continue;
+			}
+			Record copy = this.appendRecord(record.key, data, record.length);
+			synchronized (this.entries) {
+				
+				//	image might have been removed or replaced while copying
+				if (this.entries.get(record.key) == record) {
+					this.unAccount(record);
+					this.entries.put(record.key, copy);
+					copy.segment.liveBytes += copy.footprint;
+					this.liveDiscBytes += copy.footprint;
+					this.bytes += copy.length;
+				}
+			}
+		}
+		
+		//	lookups still pointing to the old segment fail and count as misses
+		this.segments.remove(segment);
+		this.discBytes -= segment.size;
+		segment.close();
+		segment.file.delete();
+		synchronized (this.entries) {
+			this.compactions++;
+		}
+	}
+	
+	private class Sweeper extends Thread {
+		private boolean keepRunning = true;
+		Sweeper() {
+			super("DisClientCacheSweeper");
+			this.setDaemon(true);
+		}
+		public void run() {
+			
+			//	import page images from folder-per-image cache layout
+			importLegacyFiles();
+			
+			boolean swept = false;
+			while (true) {
+				synchronized (entries) {
+					
+					//	wait unless over quota (no use sweeping again right away if last sweep didn't do anything, though)
+					if (this.keepRunning && (!swept || (maxBytes < 1) || (discBytes <= maxBytes))) try {
+						entries.wait(SWEEP_INTERVAL);
+					} catch (InterruptedException ie) {}
+					if (!this.keepRunning)
+						return;
+				}
+				swept = false;
+				try {
+					swept = sweep();
+					storeIndex();
+				}
+				catch (Exception e) {
+					System.out.println("GoldenGateDisClientCache: error sweeping cache: " + e.getMessage());
+					e.printStackTrace(System.out);
+				}
+			}
+		}
+		void shutdown() {
+			synchronized (entries) {
+				this.keepRunning = false;
+				entries.notify();
+			}
+			try {
+				this.join(SWEEP_INTERVAL);
+			} catch (InterruptedException ie) {}
+		}
+	}
+	
+	/*
+	 * open all segments, read their records, and build the index, with later
+	 * records taking precedence over earlier ones
+	 */
+	private void loadSegments() {
+		String[] segmentFileNames = this.folder.list();
+		int[] segmentNumbers = new int[(segmentFileNames == null) ? 0 : segmentFileNames.length];
+		int segmentCount = 0;
+		for (int f = 0; f < segmentNumbers.length; f++) {
+			if (segmentFileNames[f].startsWith(SEGMENT_FILE_PREFIX) && segmentFileNames[f].endsWith(SEGMENT_FILE_SUFFIX)) try {
+				segmentNumbers[segmentCount++] = Integer.parseInt(segmentFileNames[f].substring(SEGMENT_FILE_PREFIX.length(), (segmentFileNames[f].length() - SEGMENT_FILE_SUFFIX.length())));
+			}
+			catch (NumberFormatException nfe) {
+				segmentCount--;
+			}
+		}
+		Arrays.sort(segmentNumbers, 0, segmentCount);
+		
+		synchronized (this.writeLock) {
+			for (int s = 0; s < segmentCount; s++) try {
+				Segment segment = new Segment(this.folder, segmentNumbers[s]);
+				if (!this.readFooter(segment))
+					this.scanRecords(segment);
+				this.segments.add(segment);
+				this.discBytes += segment.size;
+				for (int r = 0; r < segment.records.size(); r++) {
+					Record record = ((Record) segment.records.get(r));
+					if (record.length == -1) {
+						Record oldRecord = ((Record) this.entries.remove(record.key));
+						if (oldRecord != null)
+							this.unAccount(oldRecord);
+					}
+					else this.put(record);
+				}
+			}
+			catch (IOException ioe) {
+				System.out.println("GoldenGateDisClientCache: error loading segment " + segmentNumbers[s] + ": " + ioe.getMessage());
+				ioe.printStackTrace(System.out);
+			}
+			
+			//	seal any unsealed segments (left over from a shutdown or crash), and continue with a fresh one
+			try {
+				for (int s = 0; s < this.segments.size(); s++) {
+					Segment segment = ((Segment) this.segments.get(s));
+					if (!segment.sealed)
+						this.seal(segment);
+				}
+				this.activeSegment = this.createSegment();
+			}
+			catch (IOException ioe) {
+				System.out.println("GoldenGateDisClientCache: error creating segment: " + ioe.getMessage());
+				ioe.printStackTrace(System.out);
+			}
+		}
+	}
+	
+	/*
+	 * read the records of a sealed segment from its footer
+	 */
+	private boolean readFooter(Segment segment) throws IOException {
+		if (segment.size < TRAILER_SIZE)
+			return false;
+		ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+		while (trailer.hasRemaining()) {
+			if (segment.channel.read(trailer, (segment.size - TRAILER_SIZE + trailer.position())) == -1)
+				return false;
+		}
+		trailer.flip();
+		long footerOffset = trailer.getLong();
+		int recordCount = trailer.getInt();
+		if ((trailer.getInt() != FOOTER_MAGIC) || (footerOffset < 0) || (footerOffset > (segment.size - TRAILER_SIZE)))
+			return false;
+		
+		ByteBuffer footer = ByteBuffer.allocate((int) (segment.size - TRAILER_SIZE - footerOffset));
+		while (footer.hasRemaining()) {
+			if (segment.channel.read(footer, (footerOffset + footer.position())) == -1)
+				return false;
+		}
+		DataInputStream footerIn = new DataInputStream(new ByteArrayInputStream(footer.array()));
+		try {
+			for (int r = 0; r < recordCount; r++) {
+				byte[] keyBytes = new byte[footerIn.readInt()];
+				footerIn.readFully(keyBytes);
+				long offset = footerIn.readLong();
+				int length = footerIn.readInt();
+				int checksum = footerIn.readInt();
+				segment.records.add(new Record(new String(keyBytes, "UTF-8"), segment, offset, length, checksum));
+			}
+		}
+		catch (IOException ioe) {
+			segment.records.clear();
+			return false;
+		}
+		catch (RuntimeException re) {
+			segment.records.clear();
+			return false;
+		}
+		segment.sealed = true;
+		return true;
+	}
+	
+	/*
+	 * read the records of an unsealed segment by scanning it, and cut off any
+	 * incomplete trailing record
+	 */
+	private void scanRecords(Segment segment) throws IOException {
+		DataInputStream segmentIn = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file)));
+		long offset = 0;
+		try {
+			while (offset < segment.size) {
+				if (segmentIn.readInt() != RECORD_MAGIC)
+					break;
+				byte[] keyBytes = new byte[segmentIn.readInt()];
+				segmentIn.readFully(keyBytes);
+				int length = segmentIn.readInt();
+				int checksum = segmentIn.readInt();
+				long dataOffset = (offset + 4 + 4 + keyBytes.length + 4 + 4);
+				if ((dataOffset + Math.max(0, length)) > segment.size)
+					break;
+				for (long skip = Math.max(0, length); skip > 0;) {
+					long skipped = segmentIn.skip(skip);
+					if (skipped < 1)
+						throw new EOFException();
+					skip -= skipped;
+				}
+				segment.records.add(new Record(new String(keyBytes, "UTF-8"), segment, dataOffset, length, checksum));
+				offset = (dataOffset + Math.max(0, length));
+			}
+		}
+		catch (IOException ioe) {
+			//	incomplete trailing record, or just the end of the segment
+		}
+		catch (RuntimeException re) {
+			//	garbage key length in incomplete trailing record
+		}
+		finally {
+			segmentIn.close();
+		}
+		if (offset < segment.size) {
+			segment.channel.truncate(offset);
+			segment.size = offset;
+		}
+	}
+	
+	/*
+	 * bring the index into the least-recently-used order persisted on the
+	 * last sweep or shutdown, with any page images cached after that as the
+	 * most recently used ones
+	 */
+	private void loadIndex() {
+		File indexFile = new File(this.folder, INDEX_FILE_NAME);
+		if (!indexFile.exists())
+			return;
+		HashMap loaded = new HashMap(this.entries);
+		LinkedHashMap ordered = new LinkedHashMap(1024, 0.75f, true);
+		try {
+			BufferedReader indexIn = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), "UTF-8"));
+			for (String indexLine; (indexLine = indexIn.readLine()) != null;) {
+				String key = indexLine.trim();
+				Record record = ((Record) loaded.remove(key));
+				if (record != null)
+					ordered.put(key, record);
+			}
+			indexIn.close();
+		}
+		catch (IOException ioe) {
+			System.out.println("GoldenGateDisClientCache: error loading cache index: " + ioe.getMessage());
+			ioe.printStackTrace(System.out);
+			return;
+		}
+		for (Iterator kit = this.entries.keySet().iterator(); kit.hasNext();) {
+			String key = ((String) kit.next());
+			Record record = ((Record) loaded.get(key));
+			if (record != null)
+				ordered.put(key, record);
+		}
+		this.entries = ordered;
+	}
+	
+	/*
+	 * write the least-recently-used order of the index, replacing the previous
+	 * one only after the new one is complete
+	 */
+	private void storeIndex() {
+		String[] keys;
+		synchronized (this.entries) {
+			if (!this.indexDirty)
+				return;
+			keys = ((String[]) this.entries.keySet().toArray(new String[this.entries.size()]));
+			this.indexDirty = false;
+		}
+		File indexFile = new File(this.folder, INDEX_FILE_NAME);
+		File newIndexFile = new File(this.folder, (INDEX_FILE_NAME + ".new"));
+		try {
+			BufferedWriter indexOut = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(newIndexFile), "UTF-8"));
+			for (int k = 0; k < keys.length; k++) {
+				indexOut.write(keys[k]);
+				indexOut.newLine();
+			}
+			indexOut.flush();
+			indexOut.close();
+			if (indexFile.exists())
+				indexFile.delete();
+			newIndexFile.renameTo(indexFile);
+		}
+		catch (IOException ioe) {
+			System.out.println("GoldenGateDisClientCache: error storing cache index: " + ioe.getMessage());
+			ioe.printStackTrace(System.out);
+			synchronized (this.entries) {
+				this.indexDirty = true;
+			}
+		}
+	}
+	
+	/*
+	 * move page images cached in the former folder-per-image layout, i.e.,
+	 * '<name>/<name>.png', into the segments; only folders matching that
+	 * layout are touched, only imported files are deleted, and folders only
+	 * if empty afterwards, as the cache folder might be shared
+	 */
+	private void importLegacyFiles() {
+		File[] pageImageFolders = this.folder.listFiles();
+		if (pageImageFolders == null)
+			return;
+		int imported = 0;
+		for (int d = 0; d < pageImageFolders.length; d++) {
+			if (!pageImageFolders[d].isDirectory())
+				continue;
+			String key = pageImageFolders[d].getName();
+			File pageImageFile = new File(pageImageFolders[d], (key + "." + IMAGE_FORMAT));
+			if (!pageImageFile.isFile() || this.isCached(key, 0) || (pageImageFile.length() > Integer.MAX_VALUE))
+				continue;
+			try {
+				byte[] data = new byte[(int) pageImageFile.length()];
+				DataInputStream dataIn = new DataInputStream(new FileInputStream(pageImageFile));
+				try {
+					dataIn.readFully(data);
+				}
+				finally {
+					dataIn.close();
+				}
+				if (!isComplete(data))
+					continue;
+				this.store(key, data);
+				imported++;
+			}
+			catch (IOException ioe) {
+				System.out.println("GoldenGateDisClientCache: error importing " + pageImageFile.getName() + ": " + ioe.getMessage());
+				continue;
+			}
+			pageImageFile.delete();
+			String[] remainingFiles = pageImageFolders[d].list();
+			if ((remainingFiles != null) && (remainingFiles.length == 0))
+				pageImageFolders[d].delete();
+		}
+		if (imported != 0)
+			System.out.println("GoldenGateDisClientCache: imported " + imported + " page images from folder-per-image layout");
+	}
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright (c) 2006-2008, IPD Boehm, Universitaet Karlsruhe (TH)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Universitt Karlsruhe (TH) nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY UNIVERSITT KARLSRUHE (TH) AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.uka.ipd.idaho.goldenGateServer.dis.client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map.Entry;
+
+import de.uka.ipd.idaho.gamta.util.imaging.PageImage;
+import de.uka.ipd.idaho.goldenGateServer.dis.client.GoldenGateDisClient.PrefetchStats;
+
+/**
+ * Read-ahead facility for a GoldenGATE DIS Client. The prefetcher observes
+ * the page images requested from the client, and once it sees a document
+ * being read page by page in ascending order, it fetches the next few page
+ * images into the disc cache of the client, using a small pool of background
+ * threads. If access to the document jumps elsewhere, any prefetches not yet
+ * started for that document are cancelled. Prefetched page images that are
+ * requested later count as used, ones that drop out of tracking before being
+ * requested count as wasted.
+ *
+ * @author sautter
+ */
+class GoldenGateDisClientPrefetcher {
+	
+	/* number of forward steps before an access pattern counts as sequential */
+	private static final int MIN_SEQUENTIAL_RUN = 2;
+	
+	/* maximum distance between page IDs to still count as a forward step */
+	private static final int MAX_STEP = 2;
+	
+	private static final int MAX_QUEUE_SIZE = 64;
+	private static final int MAX_TRACKED_DOCUMENTS = 256;
+	private static final int MAX_TRACKED_PREFETCHES = 1024;
+	
+	private GoldenGateDisClient client;
+	
+	private int depth = 0;
+	private int threads = 2;
+	private ArrayList workers = new ArrayList();
+	
+	private LinkedList queue = new LinkedList();
+	private HashSet pending = new HashSet();
+	
+	private LinkedHashMap patterns = new LinkedHashMap(16, 0.75f, true) {
+		protected boolean removeEldestEntry(Entry eldest) {
+			return (this.size() > MAX_TRACKED_DOCUMENTS);
+		}
+	};
+	
+	private LinkedHashMap prefetched = new LinkedHashMap(16, 0.75f, false) {
+		protected boolean removeEldestEntry(Entry eldest) {
+			if (this.size() <= MAX_TRACKED_PREFETCHES)
+				return false;
+			wasted++;
+			return true;
+		}
+	};
+	
+	private long scheduled = 0;
+	private long completed = 0;
+	private long skipped = 0;
+	private long failed = 0;
+	private long cancelled = 0;
+	private long rejected = 0;
+	private long used = 0;
+	private long wasted = 0;
+	
+	/**
+	 * The access pattern of a document, i.e., where reading currently is, and
+	 * how far prefetching reaches.
+	 */
+	private static class AccessPattern {
+		int lastPageId;
+		int run = 0;
+		int prefetchedUpTo;
+		AccessPattern(int pageId) {
+			this.lastPageId = pageId;
+			this.prefetchedUpTo = pageId;
+		}
+	}
+	
+	/**
+	 * A page image to prefetch.
+	 */
+	private static class Prefetch {
+		final String patternKey;
+		final String name;
+		final int dpi;
+		Prefetch(String patternKey, String name, int dpi) {
+			this.patternKey = patternKey;
+			this.name = name;
+			this.dpi = dpi;
+		}
+		String getKey() {
+			return (this.name + "@" + this.dpi);
+		}
+	}
+	
+	/**
+	 * Constructor
+	 * @param client the client to prefetch page images for
+	 */
+	GoldenGateDisClientPrefetcher(GoldenGateDisClient client) {
+		this.client = client;
+	}
+	
+	/**
+	 * Set the number of page images to fetch ahead once a sequential access
+	 * pattern is detected. A value of 0 or less disables prefetching.
+	 * @param depth the prefetch depth
+	 */
+	void setDepth(int depth) {
+		synchronized (this.queue) {
+			this.depth = Math.max(0, depth);
+			if (this.depth == 0)
+				this.cancel(null);
+			this.adjustWorkers();
+		}
+	}
+	
+	/**
+	 * Set the number of threads fetching page images in the background.
+	 * @param threads the number of prefetch threads
+	 */
+	void setThreads(int threads) {
+		synchronized (this.queue) {
+			this.threads = Math.max(1, threads);
+			this.adjustWorkers();
+		}
+	}
+	
+	/*
+	 * start or stop workers to match configuration (must be called holding
+	 * the queue lock)
+	 */
+	private void adjustWorkers() {
+		int targetWorkers = ((this.depth == 0) ? 0 : this.threads);
+		while (this.workers.size() < targetWorkers) {
+			PrefetchWorker worker = new PrefetchWorker();
+			this.workers.add(worker);
+			worker.start();
+		}
+		while (this.workers.size() > targetWorkers)
+			((PrefetchWorker) this.workers.remove(this.workers.size() - 1)).keepRunning = false;
+		this.queue.notifyAll();
+	}
+	
+	/**
+	 * Notify the prefetcher that client code requested a page image, so it
+	 * can track the access pattern, schedule prefetches, and count whether or
+	 * not the page image was prefetched.
+	 * @param name the name of the page image
+	 * @param dpi the resolution the page image was requested in
+	 */
+	void accessed(String name, int dpi) {
+		int split = name.lastIndexOf('.');
+		if (split == -1)
+			return;
+		String docId = name.substring(0, split);
+		int pageId;
+		try {
+			pageId = Integer.parseInt(name.substring(split + 1));
+		}
+		catch (NumberFormatException nfe) {
+			return;
+		}
+		
+		synchronized (this.queue) {
+			
+			//	count prefetch as used (normalizing page image name to format used for prefetching)
+			if (this.prefetched.remove(PageImage.getPageImageName(docId, pageId) + "@" + dpi) != null)
+				this.used++;
+			if (this.depth == 0)
+				return;
+			
+			//	track access pattern
+			String patternKey = (docId + "@" + dpi);
+			AccessPattern pattern = ((AccessPattern) this.patterns.get(patternKey));
+			if (pattern == null) {
+				this.patterns.put(patternKey, new AccessPattern(pageId));
+				return;
+			}
+			if (pageId == pattern.lastPageId)
+				return;
+			
+			//	forward step, continue sequential run
+			if ((pattern.lastPageId < pageId) && (pageId <= (pattern.lastPageId + MAX_STEP)))
+				pattern.run++;
+			
+			//	jump, cancel pending prefetches and start over
+			else {
+				this.cancel(patternKey);
+				pattern.run = 0;
+				pattern.prefetchedUpTo = pageId;
+			}
+			pattern.lastPageId = pageId;
+			if (pattern.run < MIN_SEQUENTIAL_RUN)
+				return;
+			
+			//	schedule prefetches up to current depth
+			for (int p = Math.max((pageId + 1), (pattern.prefetchedUpTo + 1)); p <= (pageId + this.depth); p++) {
+				Prefetch prefetch = new Prefetch(patternKey, PageImage.getPageImageName(docId, p), dpi);
+				if (this.pending.contains(prefetch.getKey()) || this.prefetched.containsKey(prefetch.getKey()))
+					continue;
+				if (this.queue.size() >= MAX_QUEUE_SIZE) {
+					this.rejected++;
+					continue;
+				}
+				this.queue.addLast(prefetch);
+				this.pending.add(prefetch.getKey());
+				this.scheduled++;
+			}
+			pattern.prefetchedUpTo = (pageId + this.depth);
+			this.queue.notifyAll();
+		}
+	}
+	
+	/*
+	 * remove queued prefetches belonging to an access pattern, or all of them
+	 * if the argument key is null (must be called holding the queue lock)
+	 */
+	private void cancel(String patternKey) {
+		for (Iterator pit = this.queue.iterator(); pit.hasNext();) {
+			Prefetch prefetch = ((Prefetch) pit.next());
+			if ((patternKey == null) || patternKey.equals(prefetch.patternKey)) {
+				pit.remove();
+				this.pending.remove(prefetch.getKey());
+				this.cancelled++;
+			}
+		}
+	}
+	
+	private class PrefetchWorker extends Thread {
+		boolean keepRunning = true;
+		PrefetchWorker() {
+			super("DisClientPrefetcher");
+			this.setDaemon(true);
+		}
+		public void run() {
+			while (true) {
+				Prefetch prefetch;
+				synchronized (queue) {
+					while (this.keepRunning && queue.isEmpty()) try {
+						queue.wait();
+					} catch (InterruptedException ie) {}
+					if (!this.keepRunning)
+						return;
+					prefetch = ((Prefetch) queue.removeFirst());
+				}
+				
+				boolean fetched = false;
+				boolean error = false;
+				try {
+					fetched = client.prefetchPageImage(prefetch.name, prefetch.dpi);
+				}
+				catch (IOException ioe) {
+					error = true;
+				}
+				catch (RuntimeException re) {
+					error = true;
+					System.out.println("GoldenGateDisClientPrefetcher: error prefetching " + prefetch.name + ": " + re.getMessage());
+					re.printStackTrace(System.out);
+				}
+				
+				synchronized (queue) {
+					pending.remove(prefetch.getKey());
+					if (error)
+						failed++;
+					else if (fetched) {
+						completed++;
+						prefetched.put(prefetch.getKey(), prefetch);
+					}
+					else skipped++;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Retrieve statistics on prefetching.
+	 * @return a snapshot of the prefetch statistics
+	 */
+	PrefetchStats getStats() {
+		synchronized (this.queue) {
+			return new PrefetchStats(this.depth, this.queue.size(), this.scheduled, this.completed, this.skipped, this.failed, this.cancelled, this.rejected, this.used, this.wasted);
+		}
+	}
+	
+	/**
+	 * Shut down the prefetcher, cancelling all queued prefetches and stopping
+	 * the background threads.
+	 */
+	void shutdown() {
+		synchronized (this.queue) {
+			this.cancel(null);
+			for (int w = 0; w < this.workers.size(); w++)
+				((PrefetchWorker) this.workers.get(w)).keepRunning = false;
+			this.workers.clear();
+			this.queue.notifyAll();
+		}
+	}
+}
@@ -0,0 +1,439 @@
+/*
+ * Copyright (c) 2006-2008, IPD Boehm, Universitaet Karlsruhe (TH)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Universitt Karlsruhe (TH) nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY UNIVERSITT KARLSRUHE (TH) AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.uka.ipd.idaho.goldenGateServer.dis.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import de.uka.ipd.idaho.goldenGateServer.dis.client.GoldenGateDisClient.OffHeapCacheStats;
+
+/**
+ * In-memory cache for encoded page images, holding the data outside the Java
+ * heap, so even a large cache does not add to garbage collection effort. The
+ * cache allocates memory in slabs of direct byte buffers, up to a byte budget.
+ * Each slab is assigned to a size class when first needed, and cut into chunks
+ * of that size; a page image goes into a chunk of the smallest size class it
+ * fits in. If a size class has no free chunks left and no further slabs can be
+ * allocated, the least recently used page image of that same size class is
+ * evicted to make room. If a size class has no slab at all, a whole slab is
+ * taken away from the least recently used size class that has a slab no
+ * stream is reading from, evicting all page images held in that slab, so a
+ * change in the mix of page image sizes does not lock out any size class for
+ * good. Page images larger than a slab are not cached.<br>
+ * Streams returned from the cache read directly from the slab memory. A chunk
+ * is re-used only after all streams reading from it are closed or have reached
+ * their end, so client code should close streams it does not read to the end.
+ *
+ * @author sautter
+ */
+class GoldenGateDisClientSlabCache {
+	
+	/** size of a slab, and thus the largest cacheable page image, as well as the smallest budget */
+	static final int SLAB_SIZE = (1024 * 1024 * 4);
+	
+	/* size of the smallest chunks, and growth factor from one size class to the next */
+	private static final int MIN_CHUNK_SIZE = (1024 * 8);
+	private static final double CHUNK_SIZE_FACTOR = 1.25;
+	
+	private int[] chunkSizes;
+	private SizeClass[] sizeClasses;
+	
+	private ArrayList slabs = new ArrayList();
+	private int maxSlabs;
+	private long budget;
+	
+	private LinkedHashMap entries = new LinkedHashMap(128, 0.75f, true);
+	private long usedBytes = 0;
+	
+	private long accessClock = 0;
+	
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+	private long rejected = 0;
+	
+	/**
+	 * A size class, holding the free chunks of the slabs assigned to it, as
+	 * well as the page images stored in these slabs, in least-recently-used
+	 * order.
+	 */
+	private static class SizeClass {
+		final int chunkSize;
+		ArrayList slabs = new ArrayList();
+		ArrayList freeChunks = new ArrayList();
+		LinkedHashMap entries = new LinkedHashMap(16, 0.75f, true);
+		long lastAccess = 0;
+		SizeClass(int chunkSize) {
+			this.chunkSize = chunkSize;
+		}
+	}
+	
+	/**
+	 * A slab, i.e., a direct byte buffer assigned to a size class, plus the
+	 * number of streams currently reading from any of its chunks.
+	 */
+	private static class Slab {
+		final ByteBuffer buffer;
+		SizeClass sizeClass = null;
+		int readers = 0;
+		Slab(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+	}
+	
+	/**
+	 * A chunk of a slab.
+	 */
+	private static class Chunk {
+		final Slab slab;
+		final int offset;
+		Chunk(Slab slab, int offset) {
+			this.slab = slab;
+			this.offset = offset;
+		}
+	}
+	
+	/**
+	 * A cached page image, i.e., the chunk holding its data, plus the number
+	 * of streams currently reading from it.
+	 */
+	private static class Entry {
+		final String key;
+		final SizeClass sizeClass;
+		final Chunk chunk;
+		final int length;
+		int readers = 0;
+		boolean removed = false;
+		Entry(String key, SizeClass sizeClass, Chunk chunk, int length) {
+			this.key = key;
+			this.sizeClass = sizeClass;
+			this.chunk = chunk;
+			this.length = length;
+		}
+	}
+	
+	/**
+	 * Constructor
+	 * @param budget the maximum number of bytes to allocate, rounded down to
+	 *            a multiple of the slab size
+	 * @throws IllegalArgumentException if the budget is less than the slab
+	 *            size
+	 */
+	GoldenGateDisClientSlabCache(long budget) {
+		if (budget < SLAB_SIZE)
+			throw new IllegalArgumentException("Off-heap cache budget of " + budget + " bytes is below the slab size of " + SLAB_SIZE + " bytes");
+		this.budget = budget;
+		this.maxSlabs = ((int) Math.min(Integer.MAX_VALUE, (budget / SLAB_SIZE)));
+		
+		//	compute size classes
+		ArrayList chunkSizes = new ArrayList();
+		for (double chunkSize = MIN_CHUNK_SIZE; chunkSize < SLAB_SIZE; chunkSize *= CHUNK_SIZE_FACTOR) {
+			int roundedChunkSize = ((((int) chunkSize) + 1023) & ~1023);
+			if (chunkSizes.isEmpty() || (((Integer) chunkSizes.get(chunkSizes.size() - 1)).intValue() < roundedChunkSize))
+				chunkSizes.add(new Integer(roundedChunkSize));
+		}
+		chunkSizes.add(new Integer(SLAB_SIZE));
+		this.chunkSizes = new int[chunkSizes.size()];
+		this.sizeClasses = new SizeClass[chunkSizes.size()];
+		for (int c = 0; c < this.chunkSizes.length; c++) {
+			this.chunkSizes[c] = ((Integer) chunkSizes.get(c)).intValue();
+			this.sizeClasses[c] = new SizeClass(this.chunkSizes[c]);
+		}
+	}
+	
+	/**
+	 * Retrieve the byte budget of the cache.
+	 * @return the budget
+	 */
+	long getBudget() {
+		return this.budget;
+	}
+	
+	private static String getKey(String name, int dpi) {
+		return (name + ((dpi == 0) ? "" : ("@" + dpi)));
+	}
+	
+	/**
+	 * Open a stream reading a page image from the cache.
+	 * @param name the name of the page image
+	 * @param dpi the resolution the page image was fetched in (0 for original)
+	 * @return a stream reading the page image, or null, if the page image is
+	 *         not in the cache
+	 */
+	synchronized InputStream getInputStream(String name, int dpi) {
+		Entry entry = ((Entry) this.entries.get(getKey(name, dpi)));
+		if (entry == null) {
+			this.misses++;
+			return null;
+		}
+		this.hits++;
+		entry.sizeClass.entries.get(entry.key); // mark as recently used in size class as well
+		entry.sizeClass.lastAccess = ++this.accessClock;
+		entry.readers++;
+		entry.chunk.slab.readers++;
+		return new SlabInputStream(entry);
+	}
+	
+	/**
+	 * Store a page image in the cache, evicting the least recently used page
+	 * image of the same size class if required. Page images too large for the
+	 * cache are ignored.
+	 * @param name the name of the page image
+	 * @param dpi the resolution the page image was fetched in (0 for original)
+	 * @param data the page image data
+	 */
+	synchronized void store(String name, int dpi, byte[] data) {
+		String key = getKey(name, dpi);
+		
+		//	find size class
+		SizeClass sizeClass = null;
+		for (int c = 0; c < this.sizeClasses.length; c++)
+			if (data.length <= this.chunkSizes[c]) {
+				sizeClass = this.sizeClasses[c];
+				break;
+			}
+		if (sizeClass == null) {
+			this.rejected++;
+			return;
+		}
+		
+		//	remove previous version
+		Entry oldEntry = ((Entry) this.entries.get(key));
+		if (oldEntry != null)
+			this.remove(oldEntry);
+		
+		//	get chunk
+		sizeClass.lastAccess = ++this.accessClock;
+		Chunk chunk = this.allocateChunk(sizeClass);
+		if (chunk == null) {
+			this.rejected++;
+			return;
+		}
+		
+		//	copy data (through duplicate, so concurrent readers' positions remain untouched)
+		ByteBuffer slab = chunk.slab.buffer.duplicate();
+		slab.position(chunk.offset);
+		slab.put(data);
+		Entry entry = new Entry(key, sizeClass, chunk, data.length);
+		this.entries.put(key, entry);
+		sizeClass.entries.put(key, entry);
+		this.usedBytes += data.length;
+	}
+	
+	/*
+	 * get a free chunk of a size class, allocating a new slab, taking a slab
+	 * away from another size class, or evicting the least recently used page
+	 * image of the size class if required
+	 */
+	private Chunk allocateChunk(SizeClass sizeClass) {
+		if (sizeClass.freeChunks.isEmpty() && (this.slabs.size() < this.maxSlabs)) {
+			Slab slab = new Slab(ByteBuffer.allocateDirect(SLAB_SIZE));
+			this.slabs.add(slab);
+			this.assignSlab(slab, sizeClass);
+		}
+		else if (sizeClass.slabs.isEmpty()) {
+			Slab slab = this.reclaimSlab(sizeClass);
+			if (slab != null)
+				this.assignSlab(slab, sizeClass);
+		}
+		
+		//	evict until a chunk is free (chunks with active readers are freed only after reading completes)
+		for (Iterator eit = sizeClass.entries.values().iterator(); sizeClass.freeChunks.isEmpty() && eit.hasNext();) {
+			Entry entry = ((Entry) eit.next());
+			eit.remove();
+			this.entries.remove(entry.key);
+			entry.removed = true;
+			this.usedBytes -= entry.length;
+			this.evictions++;
+			if (entry.readers == 0)
+				sizeClass.freeChunks.add(entry.chunk);
+		}
+		
+		return (sizeClass.freeChunks.isEmpty() ? null : ((Chunk) sizeClass.freeChunks.remove(sizeClass.freeChunks.size() - 1)));
+	}
+	
+	/*
+	 * assign a slab to a size class, cutting it into chunks of that size
+	 */
+	private void assignSlab(Slab slab, SizeClass sizeClass) {
+		slab.sizeClass = sizeClass;
+		sizeClass.slabs.add(slab);
+		for (int offset = 0; (offset + sizeClass.chunkSize) <= SLAB_SIZE; offset += sizeClass.chunkSize)
+			sizeClass.freeChunks.add(new Chunk(slab, offset));
+	}
+	
+	/*
+	 * take a slab away from the least recently used size class (other than
+	 * the argument one) that has a slab no stream is reading from, evicting
+	 * all page images held in that slab; returns null if there is no such
+	 * slab
+	 */
+	private Slab reclaimSlab(SizeClass forSizeClass) {
+		SizeClass victimClass = null;
+		Slab victim = null;
+		for (int c = 0; c < this.sizeClasses.length; c++) {
+			SizeClass sizeClass = this.sizeClasses[c];
+			if ((sizeClass == forSizeClass) || ((victimClass != null) && (victimClass.lastAccess <= sizeClass.lastAccess)))
+				continue;
+			for (int s = 0; s < sizeClass.slabs.size(); s++) {
+				Slab slab = ((Slab) sizeClass.slabs.get(s));
+				if (slab.readers == 0) {
+					victimClass = sizeClass;
+					victim = slab;
+					break;
+				}
+			}
+		}
+		if (victim == null)
+			return null;
+		
+		//	evict page images held in slab
+		for (Iterator eit = victimClass.entries.values().iterator(); eit.hasNext();) {
+			Entry entry = ((Entry) eit.next());
+			if (entry.chunk.slab != victim)
+				continue;
+			eit.remove();
+			this.entries.remove(entry.key);
+			entry.removed = true;
+			this.usedBytes -= entry.length;
+			this.evictions++;
+		}
+		
+		//	take slab away from size class
+		for (Iterator cit = victimClass.freeChunks.iterator(); cit.hasNext();) {
+			if (((Chunk) cit.next()).slab == victim)
+				cit.remove();
+		}
+		victimClass.slabs.remove(victim);
+		victim.sizeClass = null;
+		return victim;
+	}
+	
+	private void remove(Entry entry) {
+		this.entries.remove(entry.key);
+		entry.sizeClass.entries.remove(entry.key);
+		entry.removed = true;
+		this.usedBytes -= entry.length;
+		if (entry.readers == 0)
+			entry.sizeClass.freeChunks.add(entry.chunk);
+	}
+	
+	/**
+	 * Remove a page image from the cache, in any resolution, e.g. after the
+	 * page image was updated in the backing DIS.
+	 * @param name the name of the page image
+	 */
+	synchronized void remove(String name) {
+		String keyPrefix = (name + "@");
+		ArrayList removed = new ArrayList();
+		for (Iterator kit = this.entries.keySet().iterator(); kit.hasNext();) {
+			String key = ((String) kit.next());
+			if (key.equals(name) || key.startsWith(keyPrefix))
+				removed.add(this.entries.get(key));
+		}
+		for (int r = 0; r < removed.size(); r++)
+			this.remove((Entry) removed.get(r));
+	}
+	
+	/*
+	 * a stream done with an entry, free the chunk if the entry was removed
+	 * in the meantime and this was the last reader
+	 */
+	private synchronized void release(Entry entry) {
+		entry.readers--;
+		entry.chunk.slab.readers--;
+		if (entry.removed && (entry.readers == 0))
+			entry.sizeClass.freeChunks.add(entry.chunk);
+	}
+	
+	/**
+	 * Retrieve statistics on the cache.
+	 * @return a snapshot of the cache statistics
+	 */
+	synchronized OffHeapCacheStats getStats() {
+		return new OffHeapCacheStats(this.budget, (((long) this.slabs.size()) * SLAB_SIZE), this.usedBytes, this.entries.size(), this.hits, this.misses, this.evictions, this.rejected);
+	}
+	
+	/**
+	 * A stream reading a page image directly from slab memory, releasing the
+	 * chunk as soon as the end of the data is reached, or the stream closed.
+	 */
+	private class SlabInputStream extends InputStream {
+		private Entry entry;
+		private ByteBuffer data;
+		SlabInputStream(Entry entry) {
+			this.entry = entry;
+			this.data = entry.chunk.slab.buffer.duplicate();
+			this.data.position(entry.chunk.offset);
+			this.data.limit(entry.chunk.offset + entry.length);
+		}
+		public int read() throws IOException {
+			if (this.entry == null)
+				return -1;
+			if (this.data.hasRemaining())
+				return (this.data.get() & 0xFF);
+			this.close();
+			return -1;
+		}
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (this.entry == null)
+				return -1;
+			if (len == 0)
+				return 0;
+			if (!this.data.hasRemaining()) {
+				this.close();
+				return -1;
+			}
+			int read = Math.min(len, this.data.remaining());
+			this.data.get(b, off, read);
+			return read;
+		}
+		public long skip(long n) throws IOException {
+			if ((this.entry == null) || (n <= 0))
+				return 0;
+			int skip = ((int) Math.min(n, this.data.remaining()));
+			this.data.position(this.data.position() + skip);
+			return skip;
+		}
+		public int available() throws IOException {
+			return ((this.entry == null) ? 0 : this.data.remaining());
+		}
+		public void close() throws IOException {
+			if (this.entry == null)
+				return;
+			release(this.entry);
+			this.entry = null;
+			this.data = null;
+		}
+	}
+}
@@ -32,16 +32,18 @@ import java.awt.image.BufferedImage;
 import java.io.BufferedWriter;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
-import java.util.Collections;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
-import java.util.Map;
 import java.util.Map.Entry;
 import java.util.TreeSet;
 
@@ -54,9 +56,17 @@ import de.uka.ipd.idaho.gamta.util.imaging.BoundingBox;
 import de.uka.ipd.idaho.gamta.util.imaging.PageImage;
 import de.uka.ipd.idaho.gamta.util.imaging.PageImageInputStream;
 import de.uka.ipd.idaho.gamta.util.imaging.PageImageSource;
+import de.uka.ipd.idaho.gamta.util.imaging.PageImageSource.AbstractPageImageSource;
 import de.uka.ipd.idaho.goldenGateServer.client.GgServerClientServlet;
 import de.uka.ipd.idaho.goldenGateServer.client.GgServerWebFrontendLogger;
 import de.uka.ipd.idaho.goldenGateServer.dis.GoldenGateDisConstants;
+import de.uka.ipd.idaho.goldenGateServer.dis.PageImageInfo;
+import de.uka.ipd.idaho.goldenGateServer.dis.client.GoldenGateDisClient.DiscCacheStats;
+import de.uka.ipd.idaho.goldenGateServer.dis.client.GoldenGateDisServletCache.EncodedImage;
+import de.uka.ipd.idaho.goldenGateServer.dis.client.GoldenGateDisServletCache.EncodedPageImage;
+import de.uka.ipd.idaho.goldenGateServer.dis.client.GoldenGateDisServletRenderPool.RejectedException;
+import de.uka.ipd.idaho.goldenGateServer.dis.client.GoldenGateDisServletRenderPool.RenderJob;
+import de.uka.ipd.idaho.goldenGateServer.dis.client.GoldenGateDisServletSpriteSheet.IncompleteException;
 
 /**
  * This servlet provides document page images hosted by a DIS in a backing
@@ -69,30 +79,146 @@ import de.uka.ipd.idaho.goldenGateServer.dis.GoldenGateDisConstants;
  * <li><b>discCacheSynchronized</b>: synchronize disc cache access? Setting this
  * parameter to true is advantageous if images are often requested by multiple
  * threads at the same time. Namely, it prevents parallel fetching operations.</li>
- * <li><b>memoryCacheSize</b>: size of in-memory cache. If many different images
- * are requested multiple times over longer periods of time, a small cache is
- * sufficient (backed by a disc cache). However, if each individual image is
- * requested only for a short period of time, but then very often, a larger
- * in-memory cache is advantageous.</li>
+ * <li><b>discCacheFetchWaitTimeout</b>: maximum time (in milliseconds) a
+ * request waits for another one fetching the same image if disc cache access
+ * is synchronized. The default value of 0 means to wait until the image
+ * arrives.</li>
+ * <li><b>discCacheQuota</b>: maximum size of the disc cache, in bytes, or with
+ * a <code>K</code>, <code>M</code>, or <code>G</code> suffix. If the cached
+ * images exceed this quota, the least recently used ones are evicted in the
+ * background. The default value of 0 means no limit.</li>
+ * <li><b>discCacheLowWaterMark</b>: percentage of the disc cache quota to evict
+ * cached images down to once the quota is exceeded. The default value is 90.</li>
+ * <li><b>discCacheFillCompletionBudget</b>: maximum number of bytes to fetch
+ * in the background to complete an image for the disc cache if the request
+ * for it was aborted, in bytes, or with a <code>K</code> or <code>M</code>
+ * suffix. The default is 4M. A value of 0 disables background completion.</li>
+ * <li><b>discCacheFillCompletionTimeout</b>: maximum time (in milliseconds) to
+ * spend completing an image in the background. The default is 10000.</li>
+ * <li><b>prefetchDepth</b>: number of page images to fetch into the disc cache
+ * ahead of time once the pages of a document are requested one after another.
+ * The default value of 0 disables prefetching.</li>
+ * <li><b>prefetchThreads</b>: number of threads prefetching page images in the
+ * background. The default is 2.</li>
+ * <li><b>offHeapCacheBudget</b>: memory outside the Java heap to use for
+ * caching encoded images in front of the disc cache, in bytes, or with a
+ * <code>K</code>, <code>M</code>, or <code>G</code> suffix. Serving images
+ * from this cache tier requires neither disc access nor decoding if images
+ * are sent out as they are. Memory is allocated in slabs of 4 MB, so values
+ * below 4M also disable this tier. The default value of 0 disables this
+ * tier.</li>
+ * <li><b>missingImageTtl</b>: time (in milliseconds) to remember that an image
+ * is missing from the backing DIS, so further requests for it are answered
+ * with the default image right away. The default is 60000, a value of 0
+ * disables remembering missing images.</li>
+ * <li><b>imageInfoTtl</b>: time (in milliseconds) to cache the metadata of
+ * images, i.e., the page lists of documents and the sizes and resolutions of
+ * individual images, which thumbnail pages, sprite sheets, and the choice of
+ * the resolution to fetch images in depend upon. The default is 600000, a
+ * value of 0 means no limit.</li>
+ * <li><b>maxConnections</b>: maximum number of connections to the backing DIS
+ * open at the same time. Further requests wait for a connection to become
+ * available. The default value of 0 means no limit.</li>
+ * <li><b>connectionWaitTimeout</b>: maximum time (in milliseconds) a request
+ * waits for a connection to the backing DIS if the number of connections is
+ * limited. The default value of 0 means to wait indefinitely.</li>
+ * <li><b>memoryCacheBudget</b>: maximum amount of heap memory the images in the
+ * in-memory cache may occupy, in bytes, with a <code>K</code>, <code>M</code>,
+ * or <code>G</code> suffix, or as a percentage of the maximum heap size, e.g.
+ * <code>10%</code>. The in-memory cache holds images in their encoded form,
+ * so they can be sent out without decoding or re-encoding. If many different
+ * images are requested multiple times over longer periods of time, a small
+ * cache is sufficient (backed by a disc cache). However, if each individual
+ * image is requested only for a short period of time, but then very often, a
+ * larger in-memory cache is advantageous. The default is 10%, a value of 0
+ * disables the in-memory cache.</li>
+ * <li><b>memoryCacheSize</b>: maximum number of images in the in-memory cache,
+ * in addition to the budget. By default, there is no such limit, a value of 0
+ * disables the in-memory cache.</li>
+ * <li><b>decodedCacheBudget</b>: maximum amount of heap memory to use for
+ * caching decoded images for scaling, cutting, and compiling, in the same
+ * format as the memory cache budget. Decoded images are weighed by the actual
+ * size of their pixel data. The default is 5%, a value of 0 disables caching
+ * decoded images. This cache has an effect only if the in-memory cache is
+ * enabled.</li>
+ * <li><b>derivedCacheBudget</b>: maximum amount of heap memory to use for
+ * caching derived images, i.e., scaled images, thumbnails, image parts, and
+ * compiled images, in encoded form and in the same format as the memory cache
+ * budget. Repeat requests for a derived image are then served without any
+ * scaling, cutting, compiling, or encoding. The default is 5%, a value of 0
+ * disables the in-memory cache for derived images.</li>
+ * <li><b>derivedDiscCacheQuota</b>: maximum size of the disc cache for derived
+ * images, in bytes, or with a <code>K</code>, <code>M</code>, or
+ * <code>G</code> suffix. This cache backs the in-memory cache for derived
+ * images, and it is separate from the disc cache for the images proper. The
+ * default value of 0 disables caching derived images on disc, as does setting
+ * <code>useDiscCache</code> to false.</li>
+ * <li><b>derivedImageTtl</b>: time (in milliseconds) to serve derived images
+ * from the in-memory and disc caches before deriving them anew. This bounds
+ * how long derived images of a changed page image can be served if the change
+ * goes unnoticed, e.g. across restarts. The default is 86400000, a value of 0
+ * means no limit.</li>
  * <li><b>memoryCacheSynchronized</b>: synchronize in-memory cache access?
  * Setting this parameter to true is advantageous if images are often requested
  * by multiple threads at the same time. Namely, it prevents parallel fetching
- * operations.</li>
+ * operations: requests for an image being fetched wait for that very fetch to
+ * complete and share its result. Requests for different images never wait for
+ * one another either way.</li>
+ * <li><b>renderThreads</b>: number of threads for CPU-heavy image operations,
+ * i.e., scaling, cutting, compiling, and encoding images. Requests served
+ * from cached data as it is never wait for these threads, and requests that
+ * do wait for them fetch the images involved from the backing DIS in their own
+ * thread beforehand. The default is the number of available processors, a
+ * value of 0 makes every request do such operations in its own thread.</li>
+ * <li><b>renderQueueSize</b>: maximum number of image operations waiting for
+ * a render thread. Requests arriving while the queue is full are rejected
+ * right away with a 503 response. The default is four times the number of
+ * available processors.</li>
+ * <li><b>renderTimeout</b>: maximum time (in milliseconds) a request waits
+ * for an image operation to complete before it is answered with a 503
+ * response. Operations that started before the deadline still run to
+ * completion, so their results end up in the cache of derived images. The
+ * default is 15000, a value of 0 means to wait indefinitely.</li>
  * <li>imageDpi<b></b>: resolution for full image displaying. The default value
  * for this parameter is 96.</li>
  * <li><b>thumbnailDpi</b>: resolution for thumbnails. The default value for
  * this parameter is 24.</li>
+ * <li><b>spriteSheetPages</b>: number of consecutive pages whose thumbnails
+ * to combine in a sprite sheet. Thumbnail pages refer to sprite sheets rather
+ * than to individual thumbnails, which collapses the requests for hundreds
+ * of thumbnails into a handful. The default is 50, a value of 0 disables
+ * sprite sheets.</li>
+ * <li><b>spriteRenderThreads</b>: maximum number of threads fetching the
+ * thumbnails for a sprite sheet in parallel. The default is 4.</li>
  * <li><b>defaultImage</b>: path and file name of a default image to display if
  * a requested image is not found. The path is relative to the servlet's data
  * path.</li>
  * <li><b>defaultThumbnail</b>: path and file name of a default thumbnail to
  * display if a requested image is not found. The path is relative to the
  * servlet's data path.</li>
+ * <li><b>imageMaxAge</b>: time (in seconds) browsers and proxies may cache
+ * full images and image parts without checking back. The default is 3600, a
+ * value of 0 makes them check back on every use.</li>
+ * <li><b>thumbnailMaxAge</b>: time (in seconds) browsers and proxies may cache
+ * thumbnails without checking back. The default is 86400.</li>
+ * <li><b>validatorTtl</b>: time (in milliseconds) to answer conditional
+ * requests from the entity tag and modification time of the last response,
+ * without checking the image proper. The default is 600000. Responses carry
+ * entity tags and lengths if the in-memory cache is enabled, or if they answer
+ * range requests. Range requests (with single or multiple ranges) are
+ * answered from the in-memory cache, or from the caches of the underlying
+ * DIS client, but never by fetching the image again for each range.</li>
  * </ul>
  * Requests to this servlet specify in the path info which page image to display:
  * <code>http://&lt;server:port&gt;/GgServer/images/&lt;docId&gt;/&lt;pageId&gt;.png</code>.<br>
  * To retrieve an HTML page with thumbnails of one or more pages, specify an
  * enumeration of pages and/or page ranges, and omit the <code>.png</code> ending.<br>
+ * To retrieve the thumbnails of a block of pages as a single sprite sheet,
+ * specify the number of the block and a <code>.sprite.png</code> ending, e.g.
+ * <code>http://&lt;server:port&gt;/GgServer/images/&lt;docId&gt;/0.sprite.png</code>
+ * for the pages with IDs 0 through 49 (with the default block size). The same
+ * path with a <code>.sprite.json</code> ending retrieves the position and size
+ * of each thumbnail in the sprite sheet.<br>
  * In addition, requests take multiple optional parameters:
  * <ul>
  * <li><b>box</b>: the bounding box of a requested image part, or the
@@ -110,20 +236,27 @@ public class GoldenGateDisServlet extends GgServerClientServlet implements Golde
 	private static final int DEFAULT_IMAGE_DPI = 96; // quarter of 96 dpi default screen resolution
 	private static final int DEFAULT_THUMBNAIL_DPI = 24;
 	private static final String THUMBNAIL_INFIX = ".thumb";
+	private static final String SPRITE_INFIX = ".sprite";
 	
 	private GoldenGateDisClient disClient;
 	
 	private File discCacheFolder;
+	private File derivedDiscCacheFolder;
 	private boolean useDiscCache = true; // set to true if many different images are requested multiple times over longer periods of time
 	private boolean discCacheSynchronized = false; // set to true if images are often requested by multiple threads at the same time
 	
-	private int memoryCacheSize = 32; // if many different images are requested multiple times over longer periods of time, a small cache is sufficient (backed by a disc cache). However, if each individual image is requested only for a short period of time, but then very often, a larger cache helps
 	private boolean memoryCacheSynchronized = false; // set to true if images are often requested by multiple threads at the same time
 	
 	private int imageDpi = DEFAULT_IMAGE_DPI;
 	private PageImage defaultImage = null;
 	
 	private int thumbnailDpi = DEFAULT_THUMBNAIL_DPI;
+	private int spriteSheetPages = 50;
+	private int spriteRenderThreads = 4;
+	
+	private int imageMaxAge = 3600;
+	private int thumbnailMaxAge = 86400;
+	private int validatorTtl = (1000 * 60 * 10);
 	private PageImage defaultThumbnail = null;
 	
 	/* (non-Javadoc)
@@ -134,6 +267,7 @@ public class GoldenGateDisServlet extends GgServerClientServlet implements Golde
 		
 		this.disClient = new GoldenGateDisClient(this.serverConnection);
 		this.discCacheFolder = new File(new File(this.webInfFolder, "caches"), "disData");
+		this.derivedDiscCacheFolder = new File(new File(this.webInfFolder, "caches"), "disDerivedData");
 		
 		PageImage.addPageImageSource(this);
 	}
@@ -162,6 +296,13 @@ public class GoldenGateDisServlet extends GgServerClientServlet implements Golde
 			this.thumbnailDpi = Integer.parseInt(this.getSetting("thumbnailDpi", ("" + this.thumbnailDpi)));
 		} catch (NumberFormatException nfe) {}
 		
+		try {
+			this.spriteSheetPages = Integer.parseInt(this.getSetting("spriteSheetPages", ("" + this.spriteSheetPages)));
+		} catch (NumberFormatException nfe) {}
+		try {
+			this.spriteRenderThreads = Integer.parseInt(this.getSetting("spriteRenderThreads", ("" + this.spriteRenderThreads)));
+		} catch (NumberFormatException nfe) {}
+		
 		String defaultThumbnailName = this.getSetting("defaultThumbnail");
 		if (defaultThumbnailName != null) try {
 			InputStream defaultThumbnailIn = new FileInputStream(new File(this.dataFolder, defaultThumbnailName));
@@ -177,15 +318,137 @@ public class GoldenGateDisServlet extends GgServerClientServlet implements Golde
 		if (this.useDiscCache) {
 			this.disClient.setCacheFolder(this.discCacheFolder);
 			this.disClient.setCacheSynchronized(this.discCacheSynchronized);
+			try {
+				this.disClient.setFetchWaitTimeout(Integer.parseInt(this.getSetting("discCacheFetchWaitTimeout", "0")));
+			} catch (NumberFormatException nfe) {}
+			try {
+				this.disClient.setCacheQuota(parseByteSize(this.getSetting("discCacheQuota", "0")));
+			} catch (NumberFormatException nfe) {}
+			try {
+				this.disClient.setCacheLowWaterMark(Integer.parseInt(this.getSetting("discCacheLowWaterMark", "90")));
+			} catch (NumberFormatException nfe) {}
+			try {
+				this.disClient.setCacheFillCompletionBudget((int) Math.min(parseByteSize(this.getSetting("discCacheFillCompletionBudget", "4M")), Integer.MAX_VALUE));
+			} catch (NumberFormatException nfe) {}
+			try {
+				this.disClient.setCacheFillCompletionTimeout(Integer.parseInt(this.getSetting("discCacheFillCompletionTimeout", "10000")));
+			} catch (NumberFormatException nfe) {}
+			try {
+				this.disClient.setPrefetchThreads(Integer.parseInt(this.getSetting("prefetchThreads", "2")));
+			} catch (NumberFormatException nfe) {}
+			try {
+				this.disClient.setPrefetchDepth(Integer.parseInt(this.getSetting("prefetchDepth", "0")));
+			} catch (NumberFormatException nfe) {}
+		}
+		else {
+			this.disClient.setPrefetchDepth(0);
+			this.disClient.setCacheFolder(null);
 		}
-		else this.disClient.setCacheFolder(null);
 		
 		try {
-			this.memoryCacheSize = Integer.parseInt(this.getSetting("memoryCacheSize", ("" + this.memoryCacheSize)));
+			this.imageMaxAge = Integer.parseInt(this.getSetting("imageMaxAge", ("" + this.imageMaxAge)));
+		} catch (NumberFormatException nfe) {}
+		try {
+			this.thumbnailMaxAge = Integer.parseInt(this.getSetting("thumbnailMaxAge", ("" + this.thumbnailMaxAge)));
+		} catch (NumberFormatException nfe) {}
+		try {
+			this.validatorTtl = Integer.parseInt(this.getSetting("validatorTtl", ("" + this.validatorTtl)));
+		} catch (NumberFormatException nfe) {}
+		
+		try {
+			this.disClient.setOffHeapCacheBudget(parseByteSize(this.getSetting("offHeapCacheBudget", "0")));
+		} catch (NumberFormatException nfe) {}
+		try {
+			this.disClient.setMissingPageImageTtl(Integer.parseInt(this.getSetting("missingImageTtl", "60000")));
+		} catch (NumberFormatException nfe) {}
+		try {
+			this.disClient.setPageImageInfoTtl(Integer.parseInt(this.getSetting("imageInfoTtl", "600000")));
+		} catch (NumberFormatException nfe) {}
+		try {
+			this.disClient.setMaxConnections(Integer.parseInt(this.getSetting("maxConnections", "0")));
+		} catch (NumberFormatException nfe) {}
+		try {
+			this.disClient.setConnectionWaitTimeout(Integer.parseInt(this.getSetting("connectionWaitTimeout", "0")));
+		} catch (NumberFormatException nfe) {}
+		
+		try {
+			this.memoryCache.setMaxBytes(parseMemoryBudget(this.getSetting("memoryCacheBudget", "10%")));
+		} catch (NumberFormatException nfe) {}
+		try {
+			this.memoryCache.setMaxEntries(Integer.parseInt(this.getSetting("memoryCacheSize", "-1")));
+		} catch (NumberFormatException nfe) {}
+		try {
+			this.decodedCache.setMaxBytes(parseMemoryBudget(this.getSetting("decodedCacheBudget", "5%")));
+		} catch (NumberFormatException nfe) {}
+		int processors = Runtime.getRuntime().availableProcessors();
+		try {
+			this.renderPool.setMaxQueueSize(Integer.parseInt(this.getSetting("renderQueueSize", ("" + (4 * processors)))));
+		} catch (NumberFormatException nfe) {}
+		try {
+			this.renderPool.setTimeout(Integer.parseInt(this.getSetting("renderTimeout", "15000")));
+		} catch (NumberFormatException nfe) {}
+		try {
+			this.renderPool.setThreads(Integer.parseInt(this.getSetting("renderThreads", ("" + processors))));
+		} catch (NumberFormatException nfe) {}
+		System.out.println("GoldenGateDisServlet: render pool " + this.renderPool.getStats());
+		
+		System.out.println("GoldenGateDisServlet: memory cache " + this.memoryCache.getStats());
+		try {
+			this.derivedCache.setMaxBytes(parseMemoryBudget(this.getSetting("derivedCacheBudget", "5%")));
+		} catch (NumberFormatException nfe) {}
+		try {
+			this.derivedImageTtl = Integer.parseInt(this.getSetting("derivedImageTtl", ("" + this.derivedImageTtl)));
+		} catch (NumberFormatException nfe) {}
+		long derivedDiscCacheQuota = 0;
+		if (this.useDiscCache) try {
+			derivedDiscCacheQuota = parseByteSize(this.getSetting("derivedDiscCacheQuota", "0"));
 		} catch (NumberFormatException nfe) {}
+		this.setDerivedDiscCacheQuota(derivedDiscCacheQuota);
+		System.out.println("GoldenGateDisServlet: decoded image cache " + this.decodedCache.getStats());
+		System.out.println("GoldenGateDisServlet: derived image cache " + this.derivedCache.getStats());
+		if (this.derivedDiscCache != null)
+			System.out.println("GoldenGateDisServlet: derived image disc cache " + this.derivedDiscCache.getStats());
 		this.memoryCacheSynchronized = "true".equals(this.getSetting("memoryCacheSynchronized", "false"));
 	}
 	
+	/*
+	 * parse a size in bytes, optionally with a K, M, or G suffix
+	 */
+	private static long parseByteSize(String size) throws NumberFormatException {
+		size = size.trim().toUpperCase();
+		long factor = 1;
+		if (size.endsWith("K"))
+			factor = 1024;
+		else if (size.endsWith("M"))
+			factor = (1024 * 1024);
+		else if (size.endsWith("G"))
+			factor = (1024 * 1024 * 1024);
+		if (factor != 1)
+			size = size.substring(0, (size.length() - 1)).trim();
+		return (Long.parseLong(size) * factor);
+	}
+	
+	/*
+	 * parse a memory budget, either a size in bytes (optionally with a K, M,
+	 * or G suffix), or a percentage of the maximum heap size
+	 */
+	private static long parseMemoryBudget(String budget) throws NumberFormatException {
+		budget = budget.trim();
+		if (budget.endsWith("%"))
+			return ((long) ((Runtime.getRuntime().maxMemory() * Double.parseDouble(budget.substring(0, (budget.length() - 1)).trim())) / 100));
+		else return parseByteSize(budget);
+	}
+	
+	/* (non-Javadoc)
+	 * @see de.uka.ipd.idaho.easyIO.web.WebServlet#exit()
+	 */
+	protected void exit() {
+		super.exit();
+		this.disClient.shutdown();
+		this.renderPool.shutdown();
+		this.setDerivedDiscCacheQuota(0);
+	}
+	
 	/* (non-Javadoc)
 	 * @see javax.servlet.http.HttpServlet#doGet(javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)
 	 */
@@ -235,9 +498,21 @@ public class GoldenGateDisServlet extends GgServerClientServlet implements Golde
 				pageIdString = pageIdString.substring(0, (pageIdString.length() - (THUMBNAIL_INFIX).length()));
 				this.doThumbnail(PageImage.getPageImageName(docId, Integer.parseInt(pageIdString)), request, response);
 			}
+			
+			//	request for thumbnail sprite sheet
+			else if (pageIdString.endsWith(SPRITE_INFIX)) {
+				pageIdString = pageIdString.substring(0, (pageIdString.length() - (SPRITE_INFIX).length()));
+				this.doSpriteSheet(docId, Integer.parseInt(pageIdString), request, response);
+			}
 			else this.doImage(PageImage.getPageImageName(docId, Integer.parseInt(pageIdString)), request, response);
 		}
 		
+		//	request for layout of thumbnail sprite sheet
+		else if (pageIdString.endsWith(SPRITE_INFIX + ".json")) {
+			pageIdString = pageIdString.substring(0, (pageIdString.length() - (SPRITE_INFIX + ".json").length()));
+			this.doSpriteSheetLayout(docId, Integer.parseInt(pageIdString), request, response);
+		}
+		
 		//	request for wrapper page
 		else {
 			
@@ -281,6 +556,31 @@ public class GoldenGateDisServlet extends GgServerClientServlet implements Golde
 	}
 	
 	private void doThumbnailPage(String docId, TreeSet pageIds, HttpServletRequest request, HttpServletResponse response) throws IOException {
+		
+		//	get page list from backing DIS, so we can leave out pages without image and size thumbnails up front
+		HashMap pageImageInfos = null;
+		PageImageInfo[] piis = null;
+		try {
+			piis = this.disClient.getPageImageInfos(docId);
+			pageImageInfos = new HashMap();
+			for (int p = 0; p < piis.length; p++)
+				pageImageInfos.put(new Integer(piis[p].pageId), piis[p]);
+			TreeSet availablePageIds = new TreeSet();
+			for (Iterator pnit = pageIds.iterator(); pnit.hasNext();) {
+				Integer pageId = ((Integer) pnit.next());
+				if (pageImageInfos.containsKey(pageId))
+					availablePageIds.add(pageId);
+			}
+			if (availablePageIds.isEmpty()) {
+				response.sendError(HttpServletResponse.SC_NOT_FOUND);
+				return;
+			}
+			pageIds = availablePageIds;
+		}
+		catch (IOException ioe) {
+			System.out.println("Could not get page list for document " + docId + ": " + ioe.getMessage());
+		}
+		
 		response.setContentType("text/html; charset=" + ENCODING);
 		
 		BufferedWriter out = new BufferedWriter(new OutputStreamWriter(response.getOutputStream(), ENCODING));
@@ -337,13 +637,34 @@ public class GoldenGateDisServlet extends GgServerClientServlet implements Golde
 		out.newLine();
 		out.write("<tr>");
 		out.newLine();
+		HashMap spriteSheets = new HashMap();
 		for (Iterator pnit = pageIds.iterator(); pnit.hasNext();) {
 			Integer pageId = ((Integer) pnit.next());
 			out.write("<td style=\"padding: 5px; vertical-align: middle;\">");
 			out.newLine();
 			out.write("<a onclick=\"openPageImage('" + docId + "', '" + pageId + "'); return false;\" href=\"#\">");
 			out.newLine();
-			out.write("<img title=\"View page " + pageId + " in full resolution\" src=\"" + request.getContextPath() + request.getServletPath() + "/" + docId + "/" + pageId + THUMBNAIL_INFIX + "." + IMAGE_FORMAT + "\">");
+			
+			//	refer to sprite sheet if possible
+			int spriteSheetNumber = (((piis != null) && this.isSpriteSheetEnabled()) ? (pageId.intValue() / this.spriteSheetPages) : -1);
+			if ((spriteSheetNumber >= 0) && !spriteSheets.containsKey(new Integer(spriteSheetNumber)))
+				spriteSheets.put(new Integer(spriteSheetNumber), this.getSpriteSheet(docId, spriteSheetNumber, piis));
+			GoldenGateDisServletSpriteSheet spriteSheet = ((spriteSheetNumber < 0) ? null : ((GoldenGateDisServletSpriteSheet) spriteSheets.get(new Integer(spriteSheetNumber))));
+			int spriteIndex = ((spriteSheet == null) ? -1 : spriteSheet.indexOf(pageId.intValue()));
+			if (spriteIndex != -1) {
+				String spriteSheetUrl = (request.getContextPath() + request.getServletPath() + "/" + docId + "/" + spriteSheetNumber + SPRITE_INFIX + "." + IMAGE_FORMAT + "?v=" + spriteSheet.getVersion());
+				out.write("<span title=\"View page " + pageId + " in full resolution\" style=\"display: inline-block; width: " + spriteSheet.widths[spriteIndex] + "px; height: " + spriteSheet.heights[spriteIndex] + "px; background-image: url('" + spriteSheetUrl + "'); background-position: -" + spriteSheet.lefts[spriteIndex] + "px -" + spriteSheet.tops[spriteIndex] + "px; background-repeat: no-repeat;\"></span>");
+				out.newLine();
+				out.write("</a>");
+				out.newLine();
+				out.write("</td>");
+				out.newLine();
+				continue;
+			}
+			
+			PageImageInfo pii = ((pageImageInfos == null) ? null : ((PageImageInfo) pageImageInfos.get(pageId)));
+			String thumbnailSize = (((pii == null) || (pii.currentDpi < 1) || (this.thumbnailDpi < 1)) ? "" : (" width=\"" + ((pii.width * this.thumbnailDpi) / pii.currentDpi) + "\" height=\"" + ((pii.height * this.thumbnailDpi) / pii.currentDpi) + "\""));
+			out.write("<img title=\"View page " + pageId + " in full resolution\" src=\"" + request.getContextPath() + request.getServletPath() + "/" + docId + "/" + pageId + THUMBNAIL_INFIX + "." + IMAGE_FORMAT + "\"" + thumbnailSize + ">");
 			out.newLine();
 			out.write("</a>");
 			out.newLine();
@@ -362,18 +683,26 @@ public class GoldenGateDisServlet extends GgServerClientServlet implements Golde
 	private void doThumbnail(String name, HttpServletRequest request, HttpServletResponse response) throws IOException {
 		response.setContentType("image/" + IMAGE_FORMAT);
 		
+		//	answer conditional request right away if we know the thumbnail didn't change
+		String validatorKey = (name + THUMBNAIL_INFIX + "@" + this.thumbnailDpi);
+		if (this.isNotModified(validatorKey, request, response, this.thumbnailMaxAge))
+			return;
+		this.setCacheControl(response, this.thumbnailMaxAge);
+		
 		try {
 			OutputStream out = response.getOutputStream();
-			PageImage pi = this.getCachedPageImage(name, out, this.thumbnailDpi);
-			if (pi == null)
-				return;
-			pi = pi.scaleToDpi(this.thumbnailDpi);
-			pi.writeImage(out);
+			EncodedImage image = this.getImageData(name, ((request.getHeader("Range") == null) ? out : null), this.thumbnailDpi, this.getFetchDpi(name, this.thumbnailDpi));
+			if (image != null)
+				this.sendImageData(validatorKey, image, request, response, this.thumbnailMaxAge);
+		}
+		catch (RejectedException re) {
+			this.sendRenderRejected(response, re);
 		}
 		catch (Exception e) {
 			if (this.defaultThumbnail == null)
 				response.sendError(HttpServletResponse.SC_NOT_FOUND, e.getMessage());
 			else {
+				this.setCacheControl(response, 0);
 				OutputStream out = response.getOutputStream();
 				this.defaultThumbnail.writeImage(out);
 				out.flush();
@@ -381,6 +710,156 @@ public class GoldenGateDisServlet extends GgServerClientServlet implements Golde
 		}
 	}
 	
+	private boolean isSpriteSheetEnabled() {
+		return ((this.spriteSheetPages > 0) && (this.thumbnailDpi > 0));
+	}
+	
+	/*
+	 * lay out a thumbnail sprite sheet, using the page list from the backing
+	 * DIS; returns null if sprite sheets are disabled or the sheet is empty
+	 */
+	private GoldenGateDisServletSpriteSheet getSpriteSheet(String docId, int number) throws IOException {
+		if (!this.isSpriteSheetEnabled() || (number < 0))
+			return null;
+		return this.getSpriteSheet(docId, number, this.disClient.getPageImageInfos(docId));
+	}
+	
+	private GoldenGateDisServletSpriteSheet getSpriteSheet(String docId, int number, PageImageInfo[] piis) {
+		int firstPageId = (number * this.spriteSheetPages);
+		ArrayList spritePiis = new ArrayList();
+		for (int p = 0; p < piis.length; p++) {
+			if ((firstPageId <= piis[p].pageId) && (piis[p].pageId < (firstPageId + this.spriteSheetPages)))
+				spritePiis.add(piis[p]);
+		}
+		GoldenGateDisServletSpriteSheet spriteSheet = new GoldenGateDisServletSpriteSheet(docId, number, this.thumbnailDpi, ((PageImageInfo[]) spritePiis.toArray(new PageImageInfo[spritePiis.size()])));
+		return (spriteSheet.isEmpty() ? null : spriteSheet);
+	}
+	
+	private void doSpriteSheet(String docId, int number, HttpServletRequest request, HttpServletResponse response) throws IOException {
+		response.setContentType("image/" + IMAGE_FORMAT);
+		
+		//	answer conditional request right away if we know the sprite sheet didn't change
+		String validatorKey = (docId + SPRITE_INFIX + "@" + this.thumbnailDpi + "#" + number);
+		if (this.isNotModified(validatorKey, request, response, this.thumbnailMaxAge))
+			return;
+		
+		try {
+			GoldenGateDisServletSpriteSheet spriteSheet = this.getSpriteSheet(docId, number);
+			if (spriteSheet == null) {
+				response.sendError(HttpServletResponse.SC_NOT_FOUND);
+				return;
+			}
+			EncodedImage image = this.getSpriteSheetData(spriteSheet);
+			this.setCacheControl(response, this.thumbnailMaxAge);
+			this.sendImageData(validatorKey, image, request, response, this.thumbnailMaxAge);
+		}
+		
+		//	don't have browsers keep incomplete sprite sheet
+		catch (IncompleteException ie) {
+			this.setCacheControl(response, 0);
+			response.setContentLength(ie.data.length);
+			OutputStream out = response.getOutputStream();
+			out.write(ie.data);
+			out.flush();
+		}
+		catch (RejectedException re) {
+			this.sendRenderRejected(response, re);
+		}
+		catch (IOException ioe) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND, ioe.getMessage());
+		}
+	}
+	
+	private void doSpriteSheetLayout(String docId, int number, HttpServletRequest request, HttpServletResponse response) throws IOException {
+		GoldenGateDisServletSpriteSheet spriteSheet;
+		try {
+			spriteSheet = this.getSpriteSheet(docId, number);
+		}
+		catch (IOException ioe) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND, ioe.getMessage());
+			return;
+		}
+		if (spriteSheet == null) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+		
+		//	add URL of sprite sheet proper (relative to this one)
+		String json = spriteSheet.toJson();
+		json = (json.substring(0, (json.length() - 1)) + ",\"image\":\"" + number + SPRITE_INFIX + "." + IMAGE_FORMAT + "?v=" + spriteSheet.getVersion() + "\"}");
+		byte[] data = json.getBytes(ENCODING);
+		response.setContentType("application/json; charset=" + ENCODING);
+		this.setCacheControl(response, this.thumbnailMaxAge);
+		response.setContentLength(data.length);
+		OutputStream out = response.getOutputStream();
+		out.write(data);
+		out.flush();
+	}
+	
+	/*
+	 * get the PNG data of a sprite sheet from the cache of derived images, or
+	 * render it in the render pool; concurrent requests for a sprite sheet
+	 * that is not in the cache share a single rendering, and incomplete sprite
+	 * sheets are not cached at all, but come with an IncompleteException
+	 */
+	private EncodedImage getSpriteSheetData(GoldenGateDisServletSpriteSheet spriteSheet) throws IOException {
+		String derivedKey = (spriteSheet.docId + "@" + spriteSheet.dpi + "#sprite" + spriteSheet.number + ":" + spriteSheet.getVersion());
+		EncodedImage image = this.getDerivedImageData(derivedKey);
+		if (image != null)
+			return image;
+		return this.renderPool.render(derivedKey, new SpriteSheetRenderJob(derivedKey, spriteSheet));
+	}
+	
+	/**
+	 * Render job for a thumbnail sprite sheet, storing the sprite sheet in the
+	 * cache of derived images if complete, and handing it out wrapped in an
+	 * exception otherwise. Preparing the job fetches cached thumbnails, or the
+	 * page images to scale down where there are none, and rendering scales the
+	 * latter and draws all the thumbnails into the sprite sheet.
+	 * 
+	 * @author sautter
+	 */
+	private class SpriteSheetRenderJob implements RenderJob, GoldenGateDisServletSpriteSheet.ThumbnailSource {
+		private String derivedKey;
+		private GoldenGateDisServletSpriteSheet spriteSheet;
+		SpriteSheetRenderJob(String derivedKey, GoldenGateDisServletSpriteSheet spriteSheet) {
+			this.derivedKey = derivedKey;
+			this.spriteSheet = spriteSheet;
+		}
+		public void prepare() throws IOException {
+			this.spriteSheet.fetch(this, spriteRenderThreads);
+		}
+		public EncodedImage render() throws IOException {
+			EncodedImage image = encodeImage(new PageImage(this.spriteSheet.render(this), this.spriteSheet.dpi, GoldenGateDisServlet.this));
+			int failed = this.spriteSheet.getFailed();
+			if (failed != 0)
+				throw new IncompleteException(this.spriteSheet.docId, this.spriteSheet.number, image.data, failed);
+			cacheDerivedImageData(this.derivedKey, image);
+			return image;
+		}
+		public Object fetchThumbnailData(String name) throws IOException {
+			
+			//	use cached thumbnail if we have one
+			int fetchDpi = getFetchDpi(name, thumbnailDpi);
+			if (fetchDpi != thumbnailDpi) {
+				EncodedImage image = getDerivedImageData(getDerivedKey(name, thumbnailDpi, null));
+				if (image != null)
+					return image;
+			}
+			
+			//	fetch page image to scale down
+			return (memoryCache.isEnabled() ? getEncodedPageImage(name, fetchDpi) : new PageImageLoader(name, fetchDpi).load());
+		}
+		public BufferedImage getThumbnail(String name, Object data) throws IOException {
+			EncodedImage image = ((EncodedImage) data);
+			
+			//	scale page image unless it comes in thumbnail resolution (caching the thumbnail proper)
+			if ((image instanceof EncodedPageImage) && (((EncodedPageImage) image).currentDpi != thumbnailDpi))
+				image = getScaledImageData(name, getDerivedKey(name, thumbnailDpi, null), null, ((EncodedPageImage) image), null, thumbnailDpi);
+			return PageImage.readImage(new ByteArrayInputStream(image.data));
+		}
+	}
+	
 	private void doImagePage(String docId, int pageId, HttpServletRequest request, HttpServletResponse response) throws IOException {
 		String parameters = request.getQueryString();
 		
@@ -404,244 +883,1027 @@ public class GoldenGateDisServlet extends GgServerClientServlet implements Golde
 		out.flush();
 	}
 	
-	private Map memoryCache = Collections.synchronizedMap(new LinkedHashMap((this.memoryCacheSize + (this.memoryCacheSize / 8)), 0.9f, true) {
-		protected boolean removeEldestEntry(Entry e) {
-			return (this.size() > memoryCacheSize);
+	private GoldenGateDisServletCache memoryCache = new GoldenGateDisServletCache();
+	
+	/**
+	 * Statistics on an in-memory cache of page images.
+	 * 
+	 * @author sautter
+	 */
+	public static class MemoryCacheStats {
+		
+		/** the memory budget, in bytes (0 means the cache is disabled) */
+		public final long maxBytes;
+		
+		/** the maximum number of cached images (-1 means no limit) */
+		public final int maxEntries;
+		
+		/** the number of bytes the currently cached images occupy */
+		public final long bytes;
+		
+		/** the number of images currently cached */
+		public final int entries;
+		
+		/** the weight of the heaviest image cached so far, in bytes */
+		public final long largestWeight;
+		
+		/** the number of lookups that found the requested image in the cache */
+		public final long hits;
+		
+		/** the number of lookups that did not find the requested image in the cache */
+		public final long misses;
+		
+		/** the number of lookups that waited for another request loading the same image rather than loading it again */
+		public final long sharedLoads;
+		
+		/** the number of images evicted from the cache */
+		public final long evictions;
+		
+		/** the number of bytes evicted from the cache */
+		public final long evictedBytes;
+		
+		/** the number of images not cached because they exceeded the whole budget */
+		public final long rejected;
+		
+		MemoryCacheStats(long maxBytes, int maxEntries, long bytes, int entries, long largestWeight, long hits, long misses, long sharedLoads, long evictions, long evictedBytes, long rejected) {
+			this.maxBytes = maxBytes;
+			this.maxEntries = maxEntries;
+			this.bytes = bytes;
+			this.entries = entries;
+			this.largestWeight = largestWeight;
+			this.hits = hits;
+			this.misses = misses;
+			this.sharedLoads = sharedLoads;
+			this.evictions = evictions;
+			this.evictedBytes = evictedBytes;
+			this.rejected = rejected;
+		}
+		
+		public String toString() {
+			return ("cached " + this.entries + ((this.maxEntries < 0) ? "" : ("/" + this.maxEntries)) + " images, " + this.bytes + "/" + this.maxBytes + " bytes, largest " + this.largestWeight + " bytes, hits " + this.hits + ", misses " + this.misses + ", shared loads " + this.sharedLoads + ", evictions " + this.evictions + " (" + this.evictedBytes + " bytes), rejected " + this.rejected);
+		}
+	}
+	
+	/**
+	 * Retrieve statistics on the in-memory cache of encoded page images.
+	 * @return a snapshot of the memory cache statistics
+	 */
+	public MemoryCacheStats getMemoryCacheStats() {
+		return this.memoryCache.getStats();
+	}
+	
+	/**
+	 * Retrieve statistics on the in-memory cache of decoded page images.
+	 * @return a snapshot of the decoded image cache statistics
+	 */
+	public MemoryCacheStats getDecodedCacheStats() {
+		return this.decodedCache.getStats();
+	}
+	
+	/**
+	 * Retrieve the weights of the encoded page images currently in the
+	 * in-memory cache, i.e., the number of bytes each of them occupies, in
+	 * least-recently-used order. The keys of the returned map are the page
+	 * image names, with an '@' and the resolution appended for derivatives.
+	 * @return a map holding the cache keys and weights (as Long objects)
+	 */
+	public LinkedHashMap getMemoryCacheWeights() {
+		return this.memoryCache.getWeights();
+	}
+	private GoldenGateDisServletCache decodedCache = new GoldenGateDisServletCache();
+	
+	/**
+	 * Retrieve statistics on the in-memory cache of derived images, i.e.,
+	 * scaled images, thumbnails, image parts, and compiled images.
+	 * @return a snapshot of the derived image cache statistics
+	 */
+	public MemoryCacheStats getDerivedCacheStats() {
+		return this.derivedCache.getStats();
+	}
+	
+	/**
+	 * Retrieve statistics on the disc cache of derived images.
+	 * @return a snapshot of the derived image disc cache statistics, or null
+	 *         if derived images are not cached on disc
+	 */
+	public DiscCacheStats getDerivedDiscCacheStats() {
+		GoldenGateDisClientCache derivedDiscCache = this.derivedDiscCache;
+		return ((derivedDiscCache == null) ? null : derivedDiscCache.getStats());
+	}
+	
+	private GoldenGateDisServletRenderPool renderPool = new GoldenGateDisServletRenderPool();
+	
+	/**
+	 * Statistics on the pool of threads doing CPU-heavy image operations.
+	 * 
+	 * @author sautter
+	 */
+	public static class RenderPoolStats {
+		
+		/** the number of render threads (0 means operations run in request threads) */
+		public final int threads;
+		
+		/** the maximum number of operations waiting for a render thread */
+		public final int maxQueueSize;
+		
+		/** the maximum time (in milliseconds) a request waits for an operation (0 means no limit) */
+		public final int timeout;
+		
+		/** the number of operations currently waiting for a render thread */
+		public final int queued;
+		
+		/** the number of operations currently running in render threads */
+		public final int running;
+		
+		/** the number of operations handed to the render threads */
+		public final long submitted;
+		
+		/** the number of operations run in the requesting threads */
+		public final long inline;
+		
+		/** the number of requests that shared an operation requested by another request for the same image */
+		public final long shared;
+		
+		/** the number of operations completed successfully */
+		public final long completed;
+		
+		/** the number of operations that failed */
+		public final long failed;
+		
+		/** the number of requests rejected because the queue was full */
+		public final long rejected;
+		
+		/** the number of requests that stopped waiting for an operation at the deadline */
+		public final long timedOut;
+		
+		/** the number of operations removed from the queue before they started */
+		public final long cancelled;
+		
+		/** the average time (in milliseconds) operations waited for a render thread */
+		public final long averageWaitTime;
+		
+		/** the longest time (in milliseconds) an operation waited for a render thread */
+		public final long maxWaitTime;
+		
+		RenderPoolStats(int threads, int maxQueueSize, int timeout, int queued, int running, long submitted, long inline, long shared, long completed, long failed, long rejected, long timedOut, long cancelled, long averageWaitTime, long maxWaitTime) {
+			this.threads = threads;
+			this.maxQueueSize = maxQueueSize;
+			this.timeout = timeout;
+			this.queued = queued;
+			this.running = running;
+			this.submitted = submitted;
+			this.inline = inline;
+			this.shared = shared;
+			this.completed = completed;
+			this.failed = failed;
+			this.rejected = rejected;
+			this.timedOut = timedOut;
+			this.cancelled = cancelled;
+			this.averageWaitTime = averageWaitTime;
+			this.maxWaitTime = maxWaitTime;
+		}
+		
+		public String toString() {
+			return (this.threads + " threads, queued " + this.queued + "/" + this.maxQueueSize + ", running " + this.running + ", submitted " + this.submitted + ", inline " + this.inline + ", shared " + this.shared + ", completed " + this.completed + ", failed " + this.failed + ", rejected " + this.rejected + ", timed out " + this.timedOut + " (" + this.timeout + " ms), cancelled " + this.cancelled + ", wait time " + this.averageWaitTime + " ms average, " + this.maxWaitTime + " ms max");
+		}
+	}
+	
+	/**
+	 * Retrieve statistics on the pool of threads doing CPU-heavy image
+	 * operations, like the number of queued operations, and the time they
+	 * waited for a thread.
+	 * @return a snapshot of the render pool statistics
+	 */
+	public RenderPoolStats getRenderPoolStats() {
+		return this.renderPool.getStats();
+	}
+	
+	/*
+	 * answer a request whose image operation was rejected by the render pool,
+	 * asking the client to come back shortly
+	 */
+	private void sendRenderRejected(HttpServletResponse response, RejectedException re) throws IOException {
+		this.setCacheControl(response, 0);
+		response.setHeader("Retry-After", "1");
+		response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, re.getMessage());
+	}
+	
+	/**
+	 * Drop all cached data referring to a page image, e.g. after the page
+	 * image was updated in the backing DIS. This includes the page image
+	 * proper, its metadata, derived images like thumbnails and image parts,
+	 * and validators of earlier responses, both in this servlet and in the
+	 * underlying DIS client. Compiled images including the page image, the
+	 * page list of its document, and validators of the document's sprite
+	 * sheets are dropped as well.
+	 * @param name the name of the page image
+	 */
+	public void invalidatePageImage(String name) {
+		String docId = name.substring(0, name.lastIndexOf('.'));
+		this.memoryCache.removePageImage(name);
+		this.decodedCache.removePageImage(name);
+		this.invalidateDerivedImages(name);
+		synchronized (this.validators) {
+			for (Iterator kit = this.validators.keySet().iterator(); kit.hasNext();) {
+				String key = ((String) kit.next());
+				if (key.startsWith(name + "@") || key.startsWith(name + THUMBNAIL_INFIX + "@") || key.startsWith(docId + SPRITE_INFIX + "@"))
+					kit.remove();
+			}
+		}
+		this.disClient.pageImageStored(name);
+	}
+	
+	private GoldenGateDisServletCache derivedCache = new GoldenGateDisServletCache();
+	private volatile GoldenGateDisClientCache derivedDiscCache = null;
+	private int derivedImageTtl = (1000 * 60 * 60 * 24);
+	
+	/* header of derived images on disc: magic number, creation time (data stored before this header came in has neither) */
+	private static final int DERIVED_HEADER_MAGIC = 0x44495344;
+	private static final int DERIVED_HEADER_SIZE = (4 + 8);
+	
+	/*
+	 * set up, adjust, or shut down the disc cache for derived images
+	 */
+	private synchronized void setDerivedDiscCacheQuota(long quota) {
+		if (quota <= 0) {
+			if (this.derivedDiscCache != null)
+				this.derivedDiscCache.shutdown();
+			this.derivedDiscCache = null;
+			return;
+		}
+		if (this.derivedDiscCache == null) {
+			this.derivedDiscCacheFolder.mkdirs();
+			if (!this.derivedDiscCacheFolder.exists() || !this.derivedDiscCacheFolder.isDirectory())
+				return;
+			this.derivedDiscCache = new GoldenGateDisClientCache(this.derivedDiscCacheFolder);
+		}
+		this.derivedDiscCache.setMaxBytes(quota);
+	}
+	
+	/*
+	 * compute the key of a derived image from the page image name, the
+	 * resolution, and the normalized bounding boxes; compiled images are keyed
+	 * by the document ID, with the page ID moved behind the '@', so all of them
+	 * can be dropped together if any page image of the document changes
+	 */
+	private static String getDerivedKey(String name, int dpi, BoundingBox[] bbs) {
+		if (dpi < 0)
+			dpi = 0;
+		if (bbs == null)
+			return (name + "@" + dpi);
+		if (bbs.length == 1)
+			return (name + "@" + dpi + "#" + bbs[0].toString());
+		int split = name.lastIndexOf('.');
+		StringBuffer derivedKey = new StringBuffer(name.substring(0, split));
+		derivedKey.append("@" + dpi + "#" + name.substring(split + 1) + ":");
+		for (int b = 0; b < bbs.length; b++)
+			derivedKey.append((bbs[b] == null) ? "[]" : bbs[b].toString());
+		return derivedKey.toString();
+	}
+	
+	/*
+	 * get a derived image from the memory cache, or from the disc cache,
+	 * promoting the latter to the memory cache (so its content hash is
+	 * computed at most once while it stays there)
+	 */
+	private EncodedImage getDerivedImageData(String derivedKey) {
+		EncodedImage image = ((EncodedImage) this.derivedCache.get(derivedKey));
+		if ((image != null) && this.isDerivedImageExpired(image.created)) {
+			this.derivedCache.remove(derivedKey);
+			image = null;
+		}
+		if (image != null)
+			return image;
+		GoldenGateDisClientCache derivedDiscCache = this.derivedDiscCache;
+		if (derivedDiscCache == null)
+			return null;
+		byte[] data = derivedDiscCache.get(derivedKey, 0);
+		if (data == null)
+			return null;
+		
+		//	check header, dropping expired image, or one of unknown age
+		long created = -1;
+		if (data.length > DERIVED_HEADER_SIZE) try {
+			DataInputStream headerIn = new DataInputStream(new ByteArrayInputStream(data, 0, DERIVED_HEADER_SIZE));
+			if (headerIn.readInt() == DERIVED_HEADER_MAGIC)
+				created = headerIn.readLong();
+		} catch (IOException ioe) {}
+		if ((created < 0) || this.isDerivedImageExpired(created)) {
+			derivedDiscCache.remove(derivedKey);
+			return null;
+		}
+		byte[] imageData = new byte[data.length - DERIVED_HEADER_SIZE];
+		System.arraycopy(data, DERIVED_HEADER_SIZE, imageData, 0, imageData.length);
+		image = new EncodedImage(imageData, created);
+		if (this.derivedCache.isEnabled())
+			this.derivedCache.put(derivedKey, image);
+		return image;
+	}
+	
+	private boolean isDerivedImageExpired(long created) {
+		int derivedImageTtl = this.derivedImageTtl;
+		return ((derivedImageTtl > 0) && ((created + derivedImageTtl) < System.currentTimeMillis()));
+	}
+	
+	/*
+	 * store a derived image in the memory cache and the disc cache
+	 */
+	private void cacheDerivedImageData(String derivedKey, EncodedImage image) {
+		if (this.derivedCache.isEnabled())
+			this.derivedCache.put(derivedKey, image);
+		GoldenGateDisClientCache derivedDiscCache = this.derivedDiscCache;
+		if (derivedDiscCache != null) try {
+			ByteArrayOutputStream dataOut = new ByteArrayOutputStream(DERIVED_HEADER_SIZE + image.data.length);
+			DataOutputStream headerOut = new DataOutputStream(dataOut);
+			headerOut.writeInt(DERIVED_HEADER_MAGIC);
+			headerOut.writeLong(image.created);
+			headerOut.flush();
+			dataOut.write(image.data);
+			derivedDiscCache.store(derivedKey, 0, dataOut.toByteArray());
+		}
+		catch (IOException ioe) {
+			System.out.println("GoldenGateDisServlet: could not cache derived image " + derivedKey + ": " + ioe.getMessage());
+		}
+	}
+	
+	/*
+	 * drop all derived images of a page image, including compiled images of
+	 * its document
+	 */
+	private void invalidateDerivedImages(String name) {
+		String docId = name.substring(0, name.lastIndexOf('.'));
+		this.derivedCache.removePageImage(name);
+		this.derivedCache.removePageImage(docId);
+		GoldenGateDisClientCache derivedDiscCache = this.derivedDiscCache;
+		if (derivedDiscCache != null) {
+			derivedDiscCache.remove(name);
+			derivedDiscCache.remove(docId);
+		}
+	}
+	
+	private static final int MAX_SOURCE_HASHES = 16384;
+	private LinkedHashMap sourceHashes = new LinkedHashMap(128, 0.75f, true) {
+		protected boolean removeEldestEntry(Entry eldest) {
+			return (this.size() > MAX_SOURCE_HASHES);
+		}
+	};
+	
+	/*
+	 * remember the content hash of a page image fetched from the backing DIS,
+	 * and drop all images derived from it if it changed since the last fetch
+	 */
+	private void sourceLoaded(String name, int fetchDpi, EncodedPageImage encodedPageImage) {
+		if (!this.derivedCache.isEnabled() && (this.derivedDiscCache == null))
+			return;
+		String cacheKey = (name + ((fetchDpi == 0) ? "" : ("@" + fetchDpi)));
+		String contentHash = encodedPageImage.getContentHash();
+		String oldContentHash;
+		synchronized (this.sourceHashes) {
+			oldContentHash = ((String) this.sourceHashes.put(cacheKey, contentHash));
+		}
+		if ((oldContentHash != null) && !oldContentHash.equals(contentHash))
+			this.invalidateDerivedImages(name);
+	}
+	
+	/*
+	 * determine the resolution to fetch a page image in, based upon its
+	 * metadata: if the requested resolution is at or above the one of the
+	 * original page image, there is no derivative to use, so we go for the
+	 * original (which then shares its cache entry with region requests)
+	 */
+	private int getFetchDpi(String name, int dpi) {
+		if (dpi < 1)
+			return 0;
+		try {
+			PageImageInfo pii = this.disClient.getPageImageInfo(name);
+			if ((pii != null) && (pii.currentDpi <= dpi))
+				return 0;
+		}
+		catch (IOException ioe) {
+			System.out.println("Could not get metadata of page image " + name + ": " + ioe.getMessage());
 		}
-	});
-	private static final PageImage CACHING = new PageImage(new BufferedImage(1, 1, BufferedImage.TYPE_BYTE_BINARY), 1, null);
+		return dpi;
+	}
 	
-	private PageImage getCachedPageImage(String name, OutputStream directOut, int dpi) throws IOException {
-		if (this.memoryCacheSize < 1) {
-			PageImageInputStream piis = this.disClient.getPageImageAsStream(name);
+	/*
+	 * get a page image from the memory cache, or from the backing DIS; the
+	 * fetch resolution indicates which derivative to fetch (0 for the original
+	 * page image), the resolution proper whether or not the fetched image can
+	 * go to the direct output stream without scaling
+	 */
+	private PageImage getCachedPageImage(String name, OutputStream directOut, int dpi, int fetchDpi) throws IOException {
+		if (fetchDpi < 0)
+			fetchDpi = 0;
+		if (!this.memoryCache.isEnabled()) {
+			PageImageInputStream piis = this.disClient.getPageImageAsStreamForDpi(name, fetchDpi);
 			if ((piis.currentDpi != dpi) && (0 < dpi))
 				directOut = null;
-			if (directOut == null)
-				return new PageImage(piis);
+			if (directOut == null) {
+				PageImage pageImage = new PageImage(piis);
+				piis.close();
+				return pageImage;
+			}
 			byte[] buffer = new byte[1024];
 			for (int read; (read = piis.read(buffer, 0, buffer.length)) != -1;)
 				directOut.write(buffer, 0, read);
 			piis.close();
 			return null;
 		}
-		else if (this.memoryCacheSynchronized)
-			return this.getCachedPageImageSynchronized(name, directOut, dpi);
-		else return this.getCachedPageImageUnSynchronized(name, directOut, dpi);
-	}
-	
-	private PageImage getCachedPageImageUnSynchronized(String name, OutputStream directOut, int dpi) throws IOException {
-		PageImage pageImage = ((PageImage) this.memoryCache.get(name));
 		
-		//	cache miss
-		if (pageImage == null) {
-			
-			//	get stream
-			PageImageInputStream piis = this.disClient.getPageImageAsStream(name);
-			
-			//	check if direct out possible
-			if ((piis.currentDpi != dpi) && (0 < dpi))
-				directOut = null;
-			
-			//	request for actual image, fetch it directly
-			if (directOut == null)
-				pageImage = new PageImage(piis);
-			
-			//	direct out request, cache image along the way
-			else {
-				ByteArrayOutputStream cacheOut = new ByteArrayOutputStream();
-				byte[] buffer = new byte[1024];
-				for (int read; (read = piis.read(buffer, 0, buffer.length)) != -1;) {
-					directOut.write(buffer, 0, read);
-					cacheOut.write(buffer, 0, read);
-				}
-				piis.close();
-				pageImage = new PageImage(PageImage.readImage(new ByteArrayInputStream(cacheOut.toByteArray())), piis.originalWidth, piis.originalHeight, piis.originalDpi, piis.currentDpi, piis.leftEdge, piis.rightEdge, piis.topEdge, piis.bottomEdge, piis.source);
-			}
-			
-			//	cache it
-			this.memoryCache.put(name, pageImage);
-			
-			//	return it
-			return ((directOut == null) ? pageImage : null);
+		//	request for actual image, try decoded image first
+		String cacheKey = (name + ((fetchDpi == 0) ? "" : ("@" + fetchDpi)));
+		if (directOut == null) {
+			PageImage pageImage = this.getDecodedPageImage(cacheKey, null);
+			if (pageImage != null)
+				return pageImage;
 		}
 		
-		//	check if direct out possible
-		if ((pageImage.currentDpi != dpi) && (0 < dpi))
+		//	get encoded image, and check if direct out possible
+		EncodedPageImage encodedPageImage = this.getEncodedPageImage(name, fetchDpi);
+		if ((encodedPageImage.currentDpi != dpi) && (0 < dpi))
 			directOut = null;
 		
-		//	cache hit, request for actual image
+		//	request for actual image
 		if (directOut == null)
-			return pageImage;
+			return this.getDecodedPageImage(cacheKey, encodedPageImage);
 		
 		//	write cached image to direct out
-		pageImage.writeImage(directOut);
+		encodedPageImage.writeImage(directOut);
 		return null;
 	}
 	
-	private PageImage getCachedPageImageSynchronized(String name, OutputStream directOut, int dpi) throws IOException {
+	/*
+	 * get the encoded version of a page image from the memory cache, fetching
+	 * it from the backing DIS on a cache miss; with synchronized cache access,
+	 * concurrent requests for the same page image share a single fetch
+	 */
+	private EncodedPageImage getEncodedPageImage(String name, int fetchDpi) throws IOException {
+		String cacheKey = (name + ((fetchDpi == 0) ? "" : ("@" + fetchDpi)));
+		PageImageLoader loader = new PageImageLoader(name, fetchDpi);
+		if (this.memoryCacheSynchronized)
+			return ((EncodedPageImage) this.memoryCache.get(cacheKey, loader));
+		EncodedPageImage encodedPageImage = ((EncodedPageImage) this.memoryCache.get(cacheKey));
+		if (encodedPageImage == null) {
+			encodedPageImage = ((EncodedPageImage) loader.load());
+			this.memoryCache.put(cacheKey, encodedPageImage);
+		}
+		return encodedPageImage;
+	}
+	
+	/**
+	 * Loader fetching a page image from the backing DIS on a memory cache
+	 * miss.
+	 * 
+	 * @author sautter
+	 */
+	private class PageImageLoader implements GoldenGateDisServletCache.Loader {
+		private String name;
+		private int fetchDpi;
+		PageImageLoader(String name, int fetchDpi) {
+			this.name = name;
+			this.fetchDpi = fetchDpi;
+		}
+		public Object load() throws IOException {
+			PageImageInputStream piis = disClient.getPageImageAsStreamForDpi(this.name, this.fetchDpi);
+			EncodedPageImage encodedPageImage;
+			try {
+				encodedPageImage = EncodedPageImage.read(piis);
+			}
+			finally {
+				piis.close();
+			}
+			sourceLoaded(this.name, this.fetchDpi, encodedPageImage);
+			return encodedPageImage;
+		}
+	}
+	
+	/*
+	 * get the decoded version of a page image from the cache of decoded page
+	 * images, decoding and caching it if the encoded version is given, and
+	 * looking up the encoded version in the memory cache if not
+	 */
+	private PageImage getDecodedPageImage(String cacheKey, EncodedPageImage encodedPageImage) throws IOException {
+		PageImage pageImage = ((PageImage) this.decodedCache.get(cacheKey));
+		if (pageImage != null)
+			return pageImage;
+		if (encodedPageImage == null)
+			encodedPageImage = ((EncodedPageImage) this.memoryCache.peek(cacheKey));
+		if (encodedPageImage == null)
+			return null;
+		pageImage = encodedPageImage.decode();
+		if (this.decodedCache.isEnabled())
+			this.decodedCache.put(cacheKey, pageImage);
+		return pageImage;
+	}
+	
+	private void doImage(String name, HttpServletRequest request, HttpServletResponse response) throws IOException {
+		response.setContentType("image/" + IMAGE_FORMAT);
+		
+		//	read bounding box parameter
+		String bbString = request.getParameter(BOUNDING_BOX_ATTRIBUTE);
+		BoundingBox[] bbs;
+		try {
+			bbs = BoundingBox.parseBoundingBoxes(bbString);
+		}
+		catch (IllegalArgumentException iae) {
+			bbs = new BoundingBox[0];
+		}
+		if ((bbs != null) && ((bbs.length == 0) || (bbs[0] == null))) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid bounding box parameter");
+			return;
+		}
 		
-		//	prepare cache lookup
-		PageImage pageImage;
+		//	read DPI parameter
+		String dpiString = request.getParameter("dpi");
+		int dpi = this.imageDpi;
+		if (dpiString != null) try {
+			dpi = Integer.parseInt(dpiString);
+		} catch (NumberFormatException nfe) {}
+		
+		//	answer conditional request right away if we know the image didn't change
+		String validatorKey = (name + "@" + dpi + ((bbs == null) ? "" : ("#" + bbString)));
+		if (this.isNotModified(validatorKey, request, response, this.imageMaxAge))
+			return;
+		this.setCacheControl(response, this.imageMaxAge);
 		
-		//	use loop instead of recursion (saves memory)
-		while (true) {
+		try {
 			
-			//	do unsynchronized cache lookup first ==> speeds up matters considerably
-			pageImage = ((PageImage) this.memoryCache.get(name));
+			//	get ready to send
+			OutputStream out = response.getOutputStream();
+			EncodedImage image;
 			
-			//	unsynchronized cache hit, we're done
-			if ((pageImage != null) && (pageImage != CACHING)) {
-				if ((pageImage.currentDpi != dpi) && (0 < dpi))
-					directOut = null;
-				if (directOut == null)
-					return pageImage;
-				pageImage.writeImage(directOut);
-				return null;
-			}
+			//	request for full image, with direct write bypass if no scaling required
+			if (bbs == null)
+				image = this.getImageData(name, ((request.getHeader("Range") == null) ? out : null), dpi, this.getFetchDpi(name, dpi));
 			
-			//	already caching, wait immediately
-			if (pageImage == CACHING) {
-				
-				//	wait a little for other thread to finish caching
-				try {
-					Thread.sleep(50);
-				} catch (InterruptedException ie) {}
-				
-				//	and recurse to repeat cache lookup
-				continue;
+			//	request for image part or compiled image, check cache of derived images first
+			else {
+				String derivedKey = getDerivedKey(name, dpi, bbs);
+				image = this.getDerivedImageData(derivedKey);
+				if (image == null)
+					image = this.renderPool.render(derivedKey, new RegionRenderJob(derivedKey, name, bbs, dpi));
 			}
 			
-			//	re-do lookup, synchronized this time, to enter fetch synchronization
-			synchronized (this.memoryCache) {
-				pageImage = ((PageImage) this.memoryCache.get(name));
-				
-				//	cache miss, and no other thread is caching the requested image
-				if (pageImage == null)
-					this.memoryCache.put(name, CACHING);
+			//	send data (unless written directly)
+			if (image != null)
+				this.sendImageData(validatorKey, image, request, response, this.imageMaxAge);
+		}
+		catch (RejectedException re) {
+			this.sendRenderRejected(response, re);
+		}
+		catch (Exception e) {
+			if (this.defaultImage == null) {
+				response.sendError(HttpServletResponse.SC_NOT_FOUND, e.getMessage());
+				return;
 			}
-			
-			//	another thread is in the process of caching the requested image
-			if (pageImage == CACHING) {
-				
-				//	wait a little for other thread to finish caching
-				try {
-					Thread.sleep(50);
-				} catch (InterruptedException ie) {}
-				
-				//	and recurse to repeat cache lookup
-				continue;
+			else {
+				this.setCacheControl(response, 0);
+				OutputStream out = response.getOutputStream();
+				this.defaultImage.writeImage(out);
+				out.flush();
 			}
+		}
+	}
+	
+	/**
+	 * Render job for a part of a page image, or an image compiled from parts
+	 * of consecutive page images, storing the result in the cache of derived
+	 * images. Preparing the job fetches the page images involved, or has the
+	 * backing DIS cut out a single part, and rendering does the cutting,
+	 * compiling, scaling, and encoding.
+	 * 
+	 * @author sautter
+	 */
+	private class RegionRenderJob implements RenderJob {
+		private String derivedKey;
+		private String name;
+		private BoundingBox[] bbs;
+		private int dpi;
+		private PageImage pageImage = null;
+		private EncodedPageImage encodedPageImage = null;
+		private EncodedPageImage regionImage = null;
+		private PrefetchedPageImageSource pageImageSource = null;
+		RegionRenderJob(String derivedKey, String name, BoundingBox[] bbs, int dpi) {
+			this.derivedKey = derivedKey;
+			this.name = name;
+			this.bbs = bbs;
+			this.dpi = dpi;
+		}
+		public void prepare() throws IOException {
 			
-			//	cache hit
-			if (pageImage != null) {
-				if ((pageImage.currentDpi != dpi) && (0 < dpi))
-					directOut = null;
-				if (directOut == null)
-					return pageImage;
-				pageImage.writeImage(directOut);
-				return null;
+			//	part of single image, have backing DIS cut it out unless we have the whole image in cache
+			if (this.bbs.length == 1) {
+				if (memoryCache.isEnabled()) {
+					this.pageImage = ((PageImage) decodedCache.peek(this.name));
+					if (this.pageImage == null)
+						this.encodedPageImage = ((EncodedPageImage) memoryCache.peek(this.name));
+				}
+				if ((this.pageImage == null) && (this.encodedPageImage == null)) {
+					PageImageInputStream piis = disClient.getPageImageRegionAsStream(this.name, this.bbs[0], this.dpi);
+					try {
+						this.regionImage = EncodedPageImage.read(piis);
+					}
+					finally {
+						piis.close();
+					}
+				}
 			}
 			
-			//	get stream
-			PageImageInputStream piis = this.disClient.getPageImageAsStream(name);
-			
-			//	check if direct out possible
-			if ((piis.currentDpi != dpi) && (0 < dpi))
-				directOut = null;
+			//	compiled image, fetch page images involved (in original resolution for cutting)
+			else this.pageImageSource = new PrefetchedPageImageSource(this.name, this.bbs);
+		}
+		public EncodedImage render() throws IOException {
+			PageImage pi;
 			
-			//	request for actual image, fetch it directly
-			if (directOut == null)
-				pageImage = new PageImage(piis);
+			//	part of single image
+			if (this.bbs.length == 1) {
+				if (this.regionImage != null)
+					pi = this.regionImage.decode();
+				else {
+					pi = ((this.pageImage == null) ? getDecodedPageImage(this.name, this.encodedPageImage) : this.pageImage);
+					pi = pi.getSubImage(this.bbs[0], true);
+				}
+			}
 			
-			//	direct out request, cache image along the way
+			//	compiled image
 			else {
-				ByteArrayOutputStream cacheOut = new ByteArrayOutputStream();
-				byte[] buffer = new byte[1024];
-				for (int read; (read = piis.read(buffer, 0, buffer.length)) != -1;) {
-					directOut.write(buffer, 0, read);
-					cacheOut.write(buffer, 0, read);
-				}
-				piis.close();
-				pageImage = new PageImage(PageImage.readImage(new ByteArrayInputStream(cacheOut.toByteArray())), piis.originalWidth, piis.originalHeight, piis.originalDpi, piis.currentDpi, piis.leftEdge, piis.rightEdge, piis.topEdge, piis.bottomEdge, piis.source);
+				pi = this.pageImageSource.getPageImage(this.pageImageSource.docId, this.pageImageSource.firstPageId);
+				pi = new PageImage(PageImage.compileImage(this.pageImageSource.docId, this.pageImageSource.firstPageId, this.bbs, true, 3, null, this.pageImageSource), pi.currentDpi, pi.source);
 			}
 			
-			//	cache and return image (automatically removes marker)
-			synchronized (this.memoryCache) {
-				this.memoryCache.put(name, pageImage);
-				return ((directOut == null) ? pageImage : null);
+			if (this.dpi != pi.currentDpi)
+				pi = pi.scaleToDpi(this.dpi);
+			EncodedImage image = encodeImage(pi);
+			cacheDerivedImageData(this.derivedKey, image);
+			return image;
+		}
+	}
+	
+	/**
+	 * Source of the page images an image is compiled from, fetched ahead of
+	 * time in their encoded form, so compiling the image in the render pool
+	 * does not wait for the backing DIS. The page images are decoded only
+	 * when the compilation asks for them.
+	 * 
+	 * @author sautter
+	 */
+	private class PrefetchedPageImageSource extends AbstractPageImageSource {
+		final String docId;
+		final int firstPageId;
+		private HashMap pageImages = new HashMap();
+		PrefetchedPageImageSource(String name, BoundingBox[] bbs) throws IOException {
+			this.docId = name.substring(0, name.lastIndexOf('.'));
+			this.firstPageId = Integer.parseInt(name.substring(name.lastIndexOf('.') + 1));
+			for (int b = 0; b < bbs.length; b++) {
+				if ((b != 0) && (bbs[b] == null))
+					continue;
+				String pageName = PageImage.getPageImageName(this.docId, (this.firstPageId + b));
+				this.pageImages.put(pageName, (memoryCache.isEnabled() ? getEncodedPageImage(pageName, 0) : new PageImageLoader(pageName, 0).load()));
 			}
 		}
+		public boolean isPageImageAvailable(String name) {
+			return this.pageImages.containsKey(name);
+		}
+		public PageImage getPageImage(String name) throws IOException {
+			EncodedPageImage encodedPageImage = ((EncodedPageImage) this.pageImages.get(name));
+			if (encodedPageImage == null)
+				throw new IOException("Page image " + name + " was not fetched for compiling");
+			return (memoryCache.isEnabled() ? getDecodedPageImage(name, encodedPageImage) : encodedPageImage.decode());
+		}
+		public PageImageInputStream getPageImageAsStream(String name) throws IOException {
+			return GoldenGateDisServlet.this.getPageImageAsStream(name);
+		}
 	}
 	
-	private void doImage(String name, HttpServletRequest request, HttpServletResponse response) throws IOException {
-		response.setContentType("image/" + IMAGE_FORMAT);
+	/*
+	 * get the PNG data of a page image in a given resolution; with the memory
+	 * cache enabled, this is either the cached data proper, or the cached page
+	 * image scaled and encoded, so the length and entity tag of the data are
+	 * known before sending it; with the memory cache disabled, the image is
+	 * written to the direct output stream instead, and this method returns
+	 * null, unless the direct output stream is null (e.g. for range requests)
+	 */
+	private EncodedImage getImageData(String name, OutputStream directOut, int dpi, int fetchDpi) throws IOException {
+		if (fetchDpi < 0)
+			fetchDpi = 0;
 		
-		try {
-			
-			//	read bounding box parameter
-			String bbString = request.getParameter(BOUNDING_BOX_ATTRIBUTE);
-			BoundingBox[] bbs = BoundingBox.parseBoundingBoxes(bbString);
-			
-			//	read DPI parameter
-			String dpiString = request.getParameter("dpi");
-			int dpi = this.imageDpi;
-			if (dpiString != null) try {
-				dpi = Integer.parseInt(dpiString);
-			} catch (NumberFormatException nfe) {}
-			
-			//	get ready to send
-			OutputStream out = response.getOutputStream();
-			
-			//	do cache lookup, with direct write bypass if no scaling or cutting required
-			PageImage pi = this.getCachedPageImage(name, ((bbs == null) ? out : null), dpi);
-			
-			//	image written directly
+		//	check cache of derived images if we are likely to scale (i.e., unless the backing DIS delivers the requested resolution)
+		String derivedKey = (((0 < dpi) && (fetchDpi != dpi)) ? getDerivedKey(name, dpi, null) : null);
+		if (derivedKey != null) {
+			EncodedImage image = this.getDerivedImageData(derivedKey);
+			if (image != null)
+				return image;
+		}
+		
+		//	no caching, write image directly
+		if (!this.memoryCache.isEnabled() && (directOut != null)) {
+			PageImage pi = this.getCachedPageImage(name, directOut, dpi, fetchDpi);
 			if (pi == null)
-				return;
-			
-			//	request for full image
-			if (bbs == null) {
-				if (dpi != pi.currentDpi)
-					pi = pi.scaleToDpi(dpi);
-				pi.writeImage(out);
-			}
-			
-			//	request for image part, but bad bounding box string
-			else if (bbs[0] == null) {
-				response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid bounding box parameter");
-				return;
+				return null;
+			if (derivedKey != null)
+				return this.getScaledImageData(name, derivedKey, null, null, pi, dpi);
+			if (dpi != pi.currentDpi)
+				pi = pi.scaleToDpi(dpi);
+			pi.writeImage(directOut);
+			return null;
+		}
+		
+		//	no caching, but data required, read through DIS client (which serves from its own caches if enabled)
+		if (!this.memoryCache.isEnabled()) {
+			EncodedPageImage encodedPageImage = ((EncodedPageImage) new PageImageLoader(name, fetchDpi).load());
+			if ((encodedPageImage.currentDpi == dpi) || (dpi < 1))
+				return encodedPageImage;
+			return this.getScaledImageData(name, derivedKey, null, encodedPageImage, null, dpi);
+		}
+		
+		//	use cached data as is if no scaling required
+		EncodedPageImage encodedPageImage = this.getEncodedPageImage(name, fetchDpi);
+		if ((encodedPageImage.currentDpi == dpi) || (dpi < 1))
+			return encodedPageImage;
+		
+		//	scale image
+		return this.getScaledImageData(name, derivedKey, (name + ((fetchDpi == 0) ? "" : ("@" + fetchDpi))), encodedPageImage, null, dpi);
+	}
+	
+	/*
+	 * scale and encode a page image in the render pool, decoding it first if
+	 * only the encoded version is given, and store the result in the cache of
+	 * derived images (unless the derived key is null)
+	 */
+	private EncodedImage getScaledImageData(String name, String derivedKey, String decodedCacheKey, EncodedPageImage encodedPageImage, PageImage pageImage, int dpi) throws IOException {
+		return this.renderPool.render(((derivedKey == null) ? getDerivedKey(name, dpi, null) : derivedKey), new ScaleRenderJob(derivedKey, decodedCacheKey, encodedPageImage, pageImage, dpi));
+	}
+	
+	/**
+	 * Render job scaling a page image, storing the result in the cache of
+	 * derived images if a derived key is given.
+	 * 
+	 * @author sautter
+	 */
+	private class ScaleRenderJob implements RenderJob {
+		private String derivedKey;
+		private String decodedCacheKey;
+		private EncodedPageImage encodedPageImage;
+		private PageImage pageImage;
+		private int dpi;
+		ScaleRenderJob(String derivedKey, String decodedCacheKey, EncodedPageImage encodedPageImage, PageImage pageImage, int dpi) {
+			this.derivedKey = derivedKey;
+			this.decodedCacheKey = decodedCacheKey;
+			this.encodedPageImage = encodedPageImage;
+			this.pageImage = pageImage;
+			this.dpi = dpi;
+		}
+		public void prepare() throws IOException {
+			//	the page image to scale comes with the job
+		}
+		public EncodedImage render() throws IOException {
+			PageImage pi = this.pageImage;
+			if (pi == null)
+				pi = ((this.decodedCacheKey == null) ? this.encodedPageImage.decode() : getDecodedPageImage(this.decodedCacheKey, this.encodedPageImage));
+			EncodedImage image = encodeImage(pi.scaleToDpi(this.dpi));
+			if (this.derivedKey != null)
+				cacheDerivedImageData(this.derivedKey, image);
+			return image;
+		}
+	}
+	
+	private static EncodedImage encodeImage(PageImage pi) throws IOException {
+		ByteArrayOutputStream imageOut = new ByteArrayOutputStream();
+		pi.writeImage(imageOut);
+		return new EncodedImage(imageOut.toByteArray());
+	}
+	
+	/**
+	 * The validators of an image response, i.e., the entity tag derived from
+	 * the image data, and the time the servlet first sent out that data.
+	 * 
+	 * @author sautter
+	 */
+	private static class Validator {
+		final String eTag;
+		final long lastModified;
+		final long created;
+		Validator(String eTag, long lastModified) {
+			this.eTag = eTag;
+			this.lastModified = lastModified;
+			this.created = System.currentTimeMillis();
+		}
+	}
+	
+	private static final int MAX_VALIDATORS = 16384;
+	private LinkedHashMap validators = new LinkedHashMap(128, 0.75f, true) {
+		protected boolean removeEldestEntry(Entry eldest) {
+			return (this.size() > MAX_VALIDATORS);
+		}
+	};
+	
+	/*
+	 * check whether a conditional request refers to the current version of a
+	 * response, and if so, send a 304 with the validators; this check relies
+	 * on the validators recorded when the response was last sent, so it does
+	 * not touch the backing DIS, nor decode anything, but validators are only
+	 * trusted within their TTL
+	 */
+	private boolean isNotModified(String validatorKey, HttpServletRequest request, HttpServletResponse response, int maxAge) {
+		Validator validator;
+		synchronized (this.validators) {
+			validator = ((Validator) this.validators.get(validatorKey));
+		}
+		if ((validator == null) || ((validator.created + this.validatorTtl) < System.currentTimeMillis()))
+			return false;
+		return this.isNotModified(validator, request, response, maxAge);
+	}
+	
+	private boolean isNotModified(Validator validator, HttpServletRequest request, HttpServletResponse response, int maxAge) {
+		boolean notModified;
+		String ifNoneMatch = request.getHeader("If-None-Match");
+		if (ifNoneMatch != null)
+			notModified = matchesETag(ifNoneMatch, validator.eTag);
+		else {
+			long ifModifiedSince;
+			try {
+				ifModifiedSince = request.getDateHeader("If-Modified-Since");
 			}
-			
-			//	request for part of single image
-			else if (bbs.length == 1) {
-				pi = pi.getSubImage(bbs[0], true);
-				if (dpi != pi.currentDpi)
-					pi = pi.scaleToDpi(dpi);
-				pi.writeImage(out);
+			catch (IllegalArgumentException iae) {
+				ifModifiedSince = -1;
 			}
+			notModified = ((ifModifiedSince != -1) && (validator.lastModified <= ifModifiedSince));
+		}
+		if (!notModified)
+			return false;
+		response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+		this.setValidators(response, validator);
+		this.setCacheControl(response, maxAge);
+		return true;
+	}
+	
+	/*
+	 * check whether the value of an If-None-Match header contains an entity
+	 * tag (weak comparison, as the entity tags are used for 304 only)
+	 */
+	private static boolean matchesETag(String ifNoneMatch, String eTag) {
+		String[] eTags = ifNoneMatch.split("\\s*\\,\\s*");
+		for (int t = 0; t < eTags.length; t++) {
+			String requestETag = eTags[t].trim();
+			if (requestETag.equals("*"))
+				return true;
+			if (requestETag.startsWith("W/"))
+				requestETag = requestETag.substring("W/".length());
+			if (requestETag.equals(eTag))
+				return true;
+		}
+		return false;
+	}
+	
+	/*
+	 * send image data with validators and length, or a 304 if the request is
+	 * conditional and the data did not change; the entity tag comes from the
+	 * content hash the image memorizes
+	 */
+	private void sendImageData(String validatorKey, EncodedImage image, HttpServletRequest request, HttpServletResponse response, int maxAge) throws IOException {
+		byte[] data = image.data;
+		String eTag = ("\"" + image.getContentHash() + "\"");
+		Validator validator;
+		synchronized (this.validators) {
+			validator = ((Validator) this.validators.get(validatorKey));
 			
-			//	request for compiled image
-			else {
-				pi = new PageImage(PageImage.compileImage(name.substring(0, name.lastIndexOf('.')), Integer.parseInt(name.substring(name.lastIndexOf('.') + 1)), bbs, true, 3, null, this), pi.currentDpi, pi.source);
-				if (dpi != pi.currentDpi)
-					pi = pi.scaleToDpi(dpi);
-				pi.writeImage(out);
+			//	keep modification time as long as data stays the same (HTTP dates have second precision)
+			validator = new Validator(eTag, (((validator == null) || !validator.eTag.equals(eTag)) ? ((System.currentTimeMillis() / 1000) * 1000) : validator.lastModified));
+			this.validators.put(validatorKey, validator);
+		}
+		if (this.isNotModified(validator, request, response, maxAge))
+			return;
+		this.setValidators(response, validator);
+		response.setHeader("Accept-Ranges", "bytes");
+		
+		//	check for range request (ignoring it if the client's copy is outdated, or the header is invalid)
+		String range = request.getHeader("Range");
+		int[][] ranges = (((range == null) || !this.isRangeApplicable(validator, request)) ? null : parseRanges(range, data.length));
+		OutputStream out = response.getOutputStream();
+		
+		//	send whole image
+		if (ranges == null) {
+			response.setContentLength(data.length);
+			out.write(data);
+		}
+		
+		//	none of the ranges satisfiable
+		else if (ranges.length == 0) {
+			response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+			response.setHeader("Content-Range", ("bytes */" + data.length));
+			response.setContentLength(0);
+		}
+		
+		//	send single range
+		else if (ranges.length == 1) {
+			response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+			response.setHeader("Content-Range", ("bytes " + ranges[0][0] + "-" + ranges[0][1] + "/" + data.length));
+			response.setContentLength(ranges[0][1] - ranges[0][0] + 1);
+			out.write(data, ranges[0][0], (ranges[0][1] - ranges[0][0] + 1));
+		}
+		
+		//	send multiple ranges (assembling parts in memory first, so we can send the length)
+		else {
+			String boundary = ("DIS_BYTE_RANGES_" + Long.toHexString(System.currentTimeMillis()));
+			ByteArrayOutputStream partsOut = new ByteArrayOutputStream();
+			for (int r = 0; r < ranges.length; r++) {
+				partsOut.write(("--" + boundary + "\r\n").getBytes("US-ASCII"));
+				partsOut.write(("Content-Type: image/" + IMAGE_FORMAT + "\r\n").getBytes("US-ASCII"));
+				partsOut.write(("Content-Range: bytes " + ranges[r][0] + "-" + ranges[r][1] + "/" + data.length + "\r\n\r\n").getBytes("US-ASCII"));
+				partsOut.write(data, ranges[r][0], (ranges[r][1] - ranges[r][0] + 1));
+				partsOut.write(("\r\n").getBytes("US-ASCII"));
 			}
-			
-			//	send data
-			out.flush();
+			partsOut.write(("--" + boundary + "--\r\n").getBytes("US-ASCII"));
+			response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+			response.setContentType("multipart/byteranges; boundary=" + boundary);
+			response.setContentLength(partsOut.size());
+			partsOut.writeTo(out);
 		}
-		catch (Exception e) {
-			if (this.defaultImage == null) {
-				response.sendError(HttpServletResponse.SC_NOT_FOUND, e.getMessage());
-				return;
+		out.flush();
+	}
+	
+	/*
+	 * check whether a range request refers to the current version of a
+	 * response, i.e., whether an If-Range header is absent, or matches the
+	 * entity tag (strong comparison) or modification time
+	 */
+	private boolean isRangeApplicable(Validator validator, HttpServletRequest request) {
+		String ifRange = request.getHeader("If-Range");
+		if (ifRange == null)
+			return true;
+		ifRange = ifRange.trim();
+		if (ifRange.startsWith("W/"))
+			return false;
+		if (ifRange.startsWith("\""))
+			return ifRange.equals(validator.eTag);
+		try {
+			return (request.getDateHeader("If-Range") == validator.lastModified);
+		}
+		catch (IllegalArgumentException iae) {
+			return false;
+		}
+	}
+	
+	private static final int MAX_RANGES = 16;
+	
+	/*
+	 * parse the value of a Range header into pairs of first and last byte
+	 * positions, returning null if the header is invalid or asks for too many
+	 * ranges (so the whole entity is sent), and an empty array if none of the
+	 * ranges is satisfiable
+	 */
+	private static int[][] parseRanges(String range, int length) {
+		range = range.trim();
+		if (!range.toLowerCase().startsWith("bytes="))
+			return null;
+		String[] rangeSpecs = range.substring("bytes=".length()).split("\\s*\\,\\s*");
+		if (rangeSpecs.length > MAX_RANGES)
+			return null;
+		ArrayList ranges = new ArrayList();
+		for (int r = 0; r < rangeSpecs.length; r++) {
+			String rangeSpec = rangeSpecs[r].trim();
+			int split = rangeSpec.indexOf('-');
+			if (split == -1)
+				return null;
+			long first;
+			long last;
+			try {
+				
+				//	suffix range, i.e., last N bytes
+				if (split == 0) {
+					long suffixLength = Long.parseLong(rangeSpec.substring(1).trim());
+					if (suffixLength < 1)
+						continue;
+					first = Math.max(0, (length - suffixLength));
+					last = (length - 1);
+				}
+				
+				//	range with start, and with or without end
+				else {
+					first = Long.parseLong(rangeSpec.substring(0, split).trim());
+					String lastString = rangeSpec.substring(split + 1).trim();
+					last = ((lastString.length() == 0) ? Long.MAX_VALUE : Long.parseLong(lastString));
+					if ((first < 0) || (last < first))
+						return null; // syntactically invalid, e.g. 500-400
+					last = Math.min((length - 1), last);
+				}
 			}
-			else {
-				OutputStream out = response.getOutputStream();
-				this.defaultImage.writeImage(out);
-				out.flush();
+			catch (NumberFormatException nfe) {
+				return null;
 			}
+			if ((first < length) && (first <= last))
+				ranges.add(new int[] {((int) first), ((int) last)});
 		}
+		return ((int[][]) ranges.toArray(new int[ranges.size()][]));
+	}
+	
+	private void setValidators(HttpServletResponse response, Validator validator) {
+		response.setHeader("ETag", validator.eTag);
+		response.setDateHeader("Last-Modified", validator.lastModified);
+	}
+	
+	private void setCacheControl(HttpServletResponse response, int maxAge) {
+		response.setHeader("Cache-Control", ((maxAge < 1) ? "no-cache" : ("public, max-age=" + maxAge)));
 	}
 	
 	/* (non-Javadoc)
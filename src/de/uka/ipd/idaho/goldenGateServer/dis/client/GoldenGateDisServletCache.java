@@ -0,0 +1,642 @@
+/*
+ * Copyright (c) 2006-2008, IPD Boehm, Universitaet Karlsruhe (TH)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Universitt Karlsruhe (TH) nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY UNIVERSITT KARLSRUHE (TH) AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.uka.ipd.idaho.goldenGateServer.dis.client;
+
+import java.awt.image.DataBuffer;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import de.uka.ipd.idaho.gamta.util.imaging.PageImage;
+import de.uka.ipd.idaho.gamta.util.imaging.PageImageInputStream;
+import de.uka.ipd.idaho.gamta.util.imaging.PageImageSource;
+import de.uka.ipd.idaho.goldenGateServer.dis.client.GoldenGateDisServlet.MemoryCacheStats;
+
+/**
+ * In-memory cache for page images, either encoded or decoded, bounded by the
+ * number of bytes the cached images occupy rather than by their number. The
+ * weight of an encoded page image is the length of its data, the weight of a
+ * decoded page image is computed from the data buffer backing its raster, so
+ * a 600 DPI page counts for what it actually takes on the heap. Both the byte
+ * budget and an optional limit on the number of cached images can be changed
+ * at any time, evicting least recently used page images right away if
+ * required. Page images heavier than the whole budget are not cached at all.<br>
+ * The cache is split into stripes by the hash of the page image names the
+ * cache keys start with, each stripe with its own lock and least-recently-used
+ * order, so lookups for different page images hardly ever contend, while all
+ * entries belonging to the same page image are in the same stripe and can be
+ * removed together. Byte budget and number of images are tracked globally,
+ * and every access stamps the entry from a global clock, so eviction can take
+ * the least recently used page image across all stripes by comparing the
+ * eldest entries of the stripes, never evicting the page image just stored
+ * unless it is the only one left. Loading through the cache is single-flight:
+ * concurrent requests for a page image that is not in the cache share one
+ * load, waiting for it to complete rather than polling.
+ *
+ * @author sautter
+ */
+class GoldenGateDisServletCache {
+	
+	/* rough heap footprint of the page image, buffered image, raster, and map entry objects */
+	private static final int ENTRY_OVERHEAD = 512;
+	
+	private static final int STRIPES = 16;
+	
+	private Stripe[] stripes = new Stripe[STRIPES];
+	
+	private volatile long maxBytes = 0;
+	private volatile int maxEntries = -1;
+	
+	private Object sizeLock = new Object();
+	private long bytes = 0;
+	private int entries = 0;
+	private long largestWeight = 0;
+	
+	/* global access clock, races between stripes only blur the order of near-simultaneous accesses */
+	private volatile long accessClock = 0;
+	
+	/**
+	 * A stripe of the cache, i.e., the page images whose keys hash into it,
+	 * the loads in progress for such keys, and the stripe's share of the
+	 * statistics. The stripe object proper serves as the stripe lock.
+	 */
+	private static class Stripe {
+		LinkedHashMap entries = new LinkedHashMap(16, 0.75f, true);
+		HashMap pendingLoads = new HashMap();
+		long hits = 0;
+		long misses = 0;
+		long sharedLoads = 0;
+		long evictions = 0;
+		long evictedBytes = 0;
+		long rejected = 0;
+	}
+	
+	/**
+	 * An image in its encoded form, i.e., PNG data, together with a hash of
+	 * that data, which is computed only once, no matter how often the image
+	 * is sent to clients, and the time the image was encoded.
+	 *
+	 * @author sautter
+	 */
+	static class EncodedImage {
+		final byte[] data;
+		final long created;
+		private String contentHash = null;
+		EncodedImage(byte[] data) {
+			this(data, System.currentTimeMillis());
+		}
+		EncodedImage(byte[] data, long created) {
+			this.data = data;
+			this.created = created;
+		}
+		
+		/**
+		 * Retrieve a hash of the PNG data of the image, computing it on the
+		 * first call.
+		 * @return the content hash
+		 */
+		synchronized String getContentHash() {
+			if (this.contentHash == null)
+				this.contentHash = GoldenGateDisServletCache.getContentHash(this.data);
+			return this.contentHash;
+		}
+		
+		/**
+		 * Write the PNG data of the image to some output stream.
+		 * @param out the stream to write to
+		 * @throws IOException
+		 */
+		void writeImage(OutputStream out) throws IOException {
+			out.write(this.data);
+		}
+	}
+	
+	/**
+	 * A page image in its encoded form, i.e., the PNG data exactly as it came
+	 * from the backing DIS, plus the page image header. Sending an encoded
+	 * page image to a client is a plain byte copy, and the page image is
+	 * decoded only when the pixels are actually required.
+	 *
+	 * @author sautter
+	 */
+	static class EncodedPageImage extends EncodedImage {
+		final int originalWidth;
+		final int originalHeight;
+		final int originalDpi;
+		final int currentDpi;
+		final int leftEdge;
+		final int rightEdge;
+		final int topEdge;
+		final int bottomEdge;
+		final PageImageSource source;
+		EncodedPageImage(byte[] data, int originalWidth, int originalHeight, int originalDpi, int currentDpi, int leftEdge, int rightEdge, int topEdge, int bottomEdge, PageImageSource source) {
+			super(data);
+			this.originalWidth = originalWidth;
+			this.originalHeight = originalHeight;
+			this.originalDpi = originalDpi;
+			this.currentDpi = currentDpi;
+			this.leftEdge = leftEdge;
+			this.rightEdge = rightEdge;
+			this.topEdge = topEdge;
+			this.bottomEdge = bottomEdge;
+			this.source = source;
+		}
+		
+		/**
+		 * Read an encoded page image from a stream. This method does not close
+		 * the argument stream.
+		 * @param piis the stream to read from
+		 * @return the encoded page image
+		 * @throws IOException
+		 */
+		static EncodedPageImage read(PageImageInputStream piis) throws IOException {
+			ByteArrayOutputStream dataOut = new ByteArrayOutputStream();
+			byte[] buffer = new byte[1024];
+			for (int read; (read = piis.read(buffer, 0, buffer.length)) != -1;)
+				dataOut.write(buffer, 0, read);
+			return new EncodedPageImage(dataOut.toByteArray(), piis.originalWidth, piis.originalHeight, piis.originalDpi, piis.currentDpi, piis.leftEdge, piis.rightEdge, piis.topEdge, piis.bottomEdge, piis.source);
+		}
+		
+		/**
+		 * Decode the page image.
+		 * @return the decoded page image
+		 * @throws IOException
+		 */
+		PageImage decode() throws IOException {
+			return new PageImage(PageImage.readImage(new ByteArrayInputStream(this.data)), this.originalWidth, this.originalHeight, this.originalDpi, this.currentDpi, this.leftEdge, this.rightEdge, this.topEdge, this.bottomEdge, this.source);
+		}
+	}
+	
+	/**
+	 * Loader for page images not found in the cache.
+	 *
+	 * @author sautter
+	 */
+	static interface Loader {
+		
+		/**
+		 * Load a page image.
+		 * @return the page image, either a decoded <code>PageImage</code> or
+		 *         an <code>EncodedPageImage</code>
+		 * @throws IOException
+		 */
+		public abstract Object load() throws IOException;
+	}
+	
+	/**
+	 * A cached page image, together with its weight and the time of the last
+	 * access to it (from the cache's access clock).
+	 */
+	private static class Entry {
+		final Object pageImage;
+		final long weight;
+		long lastAccess;
+		Entry(Object pageImage, long weight, long lastAccess) {
+			this.pageImage = pageImage;
+			this.weight = weight;
+			this.lastAccess = lastAccess;
+		}
+	}
+	
+	/**
+	 * The pending load of a page image, which threads requesting the same
+	 * page image can wait on, so the page image is loaded only once, and all
+	 * threads are served the moment it arrives.
+	 */
+	private static class PendingLoad {
+		private Object pageImage = null;
+		private boolean loaded = false;
+		private IOException error = null;
+		synchronized void setPageImage(Object pageImage) {
+			this.pageImage = pageImage;
+			this.loaded = true;
+			this.notifyAll();
+		}
+		synchronized void setError(IOException error) {
+			this.error = error;
+			this.notifyAll();
+		}
+		synchronized void abandon() {
+			if (!this.loaded && (this.error == null))
+				this.setError(new IOException("load aborted"));
+		}
+		synchronized Object getPageImage(String key) throws IOException {
+			while (!this.loaded && (this.error == null)) try {
+				this.wait();
+			} catch (InterruptedException ie) {}
+			if (this.error != null)
+				throw new IOException("Could not load page image " + key + ": " + this.error.getMessage());
+			return this.pageImage;
+		}
+	}
+	
+	/**
+	 * Constructor
+	 */
+	GoldenGateDisServletCache() {
+		for (int s = 0; s < this.stripes.length; s++)
+			this.stripes[s] = new Stripe();
+	}
+	
+	/**
+	 * Compute the number of bytes a page image occupies on the heap.
+	 * @param pageImage the page image to weigh, either a decoded
+	 *            <code>PageImage</code>, or an <code>EncodedImage</code>
+	 *            (e.g. an <code>EncodedPageImage</code>)
+	 * @return the weight of the page image
+	 */
+	static long getWeight(Object pageImage) {
+		long weight = ENTRY_OVERHEAD;
+		if (pageImage instanceof EncodedImage)
+			return (weight + ((EncodedImage) pageImage).data.length);
+		if (((PageImage) pageImage).image == null)
+			return weight;
+		DataBuffer data = ((PageImage) pageImage).image.getRaster().getDataBuffer();
+		weight += ((((long) data.getSize()) * data.getNumBanks() * DataBuffer.getDataTypeSize(data.getDataType())) / 8);
+		return weight;
+	}
+	
+	/**
+	 * Compute a hash of some image data, e.g. to use in HTTP entity tags.
+	 * @param data the data to hash
+	 * @return the hash, as a string of hex digits
+	 */
+	static String getContentHash(byte[] data) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("MD5");
+		}
+		catch (NoSuchAlgorithmException nsae) {
+			CRC32 crc = new CRC32();
+			crc.update(data);
+			return Long.toHexString(crc.getValue());
+		}
+		byte[] hash = digest.digest(data);
+		StringBuffer hex = new StringBuffer();
+		for (int h = 0; h < hash.length; h++) {
+			hex.append(HEX_DIGITS.charAt((hash[h] >>> 4) & 0x0F));
+			hex.append(HEX_DIGITS.charAt(hash[h] & 0x0F));
+		}
+		return hex.toString();
+	}
+	private static final String HEX_DIGITS = "0123456789abcdef";
+	
+	/*
+	 * compute the stripe of a cache key from the page image name it starts
+	 * with, i.e., the part before any '@' (the same as the hash code of that
+	 * part, but without creating a substring)
+	 */
+	private int getStripeIndex(String key) {
+		int hash = 0;
+		for (int c = 0; c < key.length(); c++) {
+			char ch = key.charAt(c);
+			if (ch == '@')
+				break;
+			hash = ((31 * hash) + ch);
+		}
+		hash ^= (hash >>> 16);
+		return ((hash & 0x7FFFFFFF) % this.stripes.length);
+	}
+	
+	/**
+	 * Check whether or not the cache is enabled, i.e., whether it has a
+	 * positive byte budget, and is not limited to zero page images.
+	 * @return true if the cache is enabled, false otherwise
+	 */
+	boolean isEnabled() {
+		return ((this.maxBytes > 0) && (this.maxEntries != 0));
+	}
+	
+	/**
+	 * Set the maximum number of bytes the cached page images may occupy,
+	 * evicting least recently used ones right away if required. A value of 0
+	 * or less disables the cache.
+	 * @param maxBytes the byte budget
+	 */
+	void setMaxBytes(long maxBytes) {
+		this.maxBytes = Math.max(0, maxBytes);
+		this.evict(null);
+	}
+	
+	/**
+	 * Set the maximum number of page images to cache, evicting least recently
+	 * used ones right away if required. A negative value means no limit, 0
+	 * disables the cache.
+	 * @param maxEntries the maximum number of cached page images
+	 */
+	void setMaxEntries(int maxEntries) {
+		this.maxEntries = maxEntries;
+		this.evict(null);
+	}
+	
+	/**
+	 * Retrieve a page image from the cache.
+	 * @param key the cache key
+	 * @return the page image, or null, if there is no page image cached for
+	 *         the argument key
+	 */
+	Object get(String key) {
+		Stripe stripe = this.stripes[this.getStripeIndex(key)];
+		synchronized (stripe) {
+			Entry entry = ((Entry) stripe.entries.get(key));
+			if (entry == null) {
+				stripe.misses++;
+				return null;
+			}
+			entry.lastAccess = this.accessClock++;
+			stripe.hits++;
+			return entry.pageImage;
+		}
+	}
+	
+	/**
+	 * Retrieve a page image from the cache, loading it if it is not in the
+	 * cache. If another thread is loading the same page image already, this
+	 * method waits for that load to complete and returns its result instead
+	 * of loading the page image a second time. Client code can tell whether
+	 * or not the argument loader actually ran from its own state.
+	 * @param key the cache key
+	 * @param loader the loader to use on a cache miss
+	 * @return the page image
+	 * @throws IOException
+	 */
+	Object get(String key, Loader loader) throws IOException {
+		int stripeIndex = this.getStripeIndex(key);
+		Stripe stripe = this.stripes[stripeIndex];
+		PendingLoad pendingLoad;
+		PendingLoad ownLoad = null;
+		synchronized (stripe) {
+			Entry entry = ((Entry) stripe.entries.get(key));
+			if (entry != null) {
+				entry.lastAccess = this.accessClock++;
+				stripe.hits++;
+				return entry.pageImage;
+			}
+			pendingLoad = ((PendingLoad) stripe.pendingLoads.get(key));
+			if (pendingLoad == null) {
+				stripe.misses++;
+				ownLoad = new PendingLoad();
+				stripe.pendingLoads.put(key, ownLoad);
+			}
+			else stripe.sharedLoads++;
+		}
+		
+		//	another thread is loading the page image, wait for it
+		if (ownLoad == null)
+			return pendingLoad.getPageImage(key);
+		
+		//	load page image ourselves, and hand it to waiting threads
+		try {
+			Object pageImage = loader.load();
+			this.put(key, pageImage);
+			ownLoad.setPageImage(pageImage);
+			return pageImage;
+		}
+		catch (IOException ioe) {
+			ownLoad.setError(ioe);
+			throw ioe;
+		}
+		catch (RuntimeException re) {
+			ownLoad.setError(new IOException(re.getMessage()));
+			throw re;
+		}
+		
+		//	make sure waiting threads get to go on even after an Error
+		finally {
+			synchronized (stripe) {
+				stripe.pendingLoads.remove(key);
+			}
+			ownLoad.abandon();
+		}
+	}
+	
+	/**
+	 * Retrieve a page image from the cache without counting towards hits or
+	 * misses, e.g. when looking up a page image as a side effect.
+	 * @param key the cache key
+	 * @return the page image, or null, if there is no page image cached for
+	 *         the argument key
+	 */
+	Object peek(String key) {
+		Stripe stripe = this.stripes[this.getStripeIndex(key)];
+		synchronized (stripe) {
+			Entry entry = ((Entry) stripe.entries.get(key));
+			if (entry == null)
+				return null;
+			entry.lastAccess = this.accessClock++;
+			return entry.pageImage;
+		}
+	}
+	
+	/**
+	 * Store a page image in the cache, replacing any page image previously
+	 * cached for the argument key, and evicting least recently used ones as
+	 * required to stay within the limits.
+	 * @param key the cache key
+	 * @param pageImage the page image to cache, encoded or decoded
+	 */
+	void put(String key, Object pageImage) {
+		Stripe stripe = this.stripes[this.getStripeIndex(key)];
+		long weight = getWeight(pageImage);
+		Entry entry;
+		synchronized (stripe) {
+			Entry oldEntry = ((Entry) stripe.entries.remove(key));
+			if (oldEntry != null)
+				this.sizeChanged(-oldEntry.weight, -1);
+			if (weight > this.maxBytes) {
+				stripe.rejected++;
+				return;
+			}
+			entry = new Entry(pageImage, weight, this.accessClock++);
+			stripe.entries.put(key, entry);
+			this.sizeChanged(weight, 1);
+		}
+		this.evict(entry);
+	}
+	
+	/**
+	 * Remove a page image from the cache.
+	 * @param key the cache key
+	 */
+	void remove(String key) {
+		Stripe stripe = this.stripes[this.getStripeIndex(key)];
+		synchronized (stripe) {
+			Entry entry = ((Entry) stripe.entries.remove(key));
+			if (entry != null)
+				this.sizeChanged(-entry.weight, -1);
+		}
+	}
+	
+	/**
+	 * Remove all entries belonging to a page image from the cache, i.e., the
+	 * entry whose key is the page image name proper, and all entries whose
+	 * keys consist of the page image name, an '@', and some suffix.
+	 * @param name the name of the page image
+	 */
+	void removePageImage(String name) {
+		String keyPrefix = (name + "@");
+		Stripe stripe = this.stripes[this.getStripeIndex(name)];
+		synchronized (stripe) {
+			for (Iterator eit = stripe.entries.entrySet().iterator(); eit.hasNext();) {
+				Map.Entry mapEntry = ((Map.Entry) eit.next());
+				String key = ((String) mapEntry.getKey());
+				if (key.equals(name) || key.startsWith(keyPrefix)) {
+					eit.remove();
+					this.sizeChanged(-((Entry) mapEntry.getValue()).weight, -1);
+				}
+			}
+		}
+	}
+	
+	/*
+	 * account for an added or removed page image (called holding a stripe
+	 * lock, so lock order is always stripe before size)
+	 */
+	private void sizeChanged(long weightDelta, int entriesDelta) {
+		synchronized (this.sizeLock) {
+			this.bytes += weightDelta;
+			this.entries += entriesDelta;
+			if (weightDelta > this.largestWeight)
+				this.largestWeight = weightDelta;
+		}
+	}
+	
+	private boolean isOverLimits() {
+		synchronized (this.sizeLock) {
+			return ((this.bytes > this.maxBytes) || ((this.maxEntries >= 0) && (this.entries > this.maxEntries)));
+		}
+	}
+	
+	/*
+	 * evict least recently used page images until within limits, sparing the
+	 * argument entry (the one just stored) unless nothing else is left, and
+	 * holding only one stripe lock at a time
+	 */
+	private void evict(Entry keep) {
+		while (this.isOverLimits()) {
+			
+			//	find stripe whose eldest entry is least recently used overall
+			Stripe lruStripe = null;
+			long lruAccess = Long.MAX_VALUE;
+			for (int s = 0; s < this.stripes.length; s++)
+				synchronized (this.stripes[s]) {
+					Entry entry = getEldestEntry(this.stripes[s], keep);
+					if ((entry != null) && (entry.lastAccess < lruAccess)) {
+						lruStripe = this.stripes[s];
+						lruAccess = entry.lastAccess;
+					}
+				}
+			
+			//	only the entry just stored left, have to evict that one as well
+			if (lruStripe == null) {
+				if (keep == null)
+					return;
+				keep = null;
+				continue;
+			}
+			
+			//	evict eldest entry of that stripe (which might have changed in the meantime, but then only to a slightly younger one)
+			synchronized (lruStripe) {
+				for (Iterator eit = lruStripe.entries.values().iterator(); eit.hasNext();) {
+					Entry entry = ((Entry) eit.next());
+					if (entry == keep)
+						continue;
+					eit.remove();
+					this.sizeChanged(-entry.weight, -1);
+					lruStripe.evictions++;
+					lruStripe.evictedBytes += entry.weight;
+					break;
+				}
+			}
+		}
+	}
+	
+	/*
+	 * get the least recently used entry of a stripe, skipping the argument
+	 * entry (called holding the stripe lock)
+	 */
+	private static Entry getEldestEntry(Stripe stripe, Entry skip) {
+		for (Iterator eit = stripe.entries.values().iterator(); eit.hasNext();) {
+			Entry entry = ((Entry) eit.next());
+			if (entry != skip)
+				return entry;
+		}
+		return null;
+	}
+	
+	/**
+	 * Retrieve the weights of the page images currently in the cache, stripe
+	 * by stripe, in least-recently-used order within each stripe.
+	 * @return a map holding the cache keys and weights
+	 */
+	LinkedHashMap getWeights() {
+		LinkedHashMap weights = new LinkedHashMap();
+		for (int s = 0; s < this.stripes.length; s++)
+			synchronized (this.stripes[s]) {
+				for (Iterator eit = this.stripes[s].entries.entrySet().iterator(); eit.hasNext();) {
+					Map.Entry mapEntry = ((Map.Entry) eit.next());
+					weights.put(mapEntry.getKey(), new Long(((Entry) mapEntry.getValue()).weight));
+				}
+			}
+		return weights;
+	}
+	
+	/**
+	 * Retrieve statistics on the cache.
+	 * @return a snapshot of the cache statistics
+	 */
+	MemoryCacheStats getStats() {
+		long hits = 0;
+		long misses = 0;
+		long sharedLoads = 0;
+		long evictions = 0;
+		long evictedBytes = 0;
+		long rejected = 0;
+		for (int s = 0; s < this.stripes.length; s++)
+			synchronized (this.stripes[s]) {
+				hits += this.stripes[s].hits;
+				misses += this.stripes[s].misses;
+				sharedLoads += this.stripes[s].sharedLoads;
+				evictions += this.stripes[s].evictions;
+				evictedBytes += this.stripes[s].evictedBytes;
+				rejected += this.stripes[s].rejected;
+			}
+		synchronized (this.sizeLock) {
+			return new MemoryCacheStats(this.maxBytes, this.maxEntries, this.bytes, this.entries, this.largestWeight, hits, misses, sharedLoads, evictions, evictedBytes, rejected);
+		}
+	}
+}
@@ -0,0 +1,444 @@
+/*
+ * Copyright (c) 2006-2008, IPD Boehm, Universitaet Karlsruhe (TH)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Universitt Karlsruhe (TH) nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY UNIVERSITT KARLSRUHE (TH) AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.uka.ipd.idaho.goldenGateServer.dis.client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+
+import de.uka.ipd.idaho.goldenGateServer.dis.client.GoldenGateDisServlet.RenderPoolStats;
+import de.uka.ipd.idaho.goldenGateServer.dis.client.GoldenGateDisServletCache.EncodedImage;
+
+/**
+ * Bounded pool of worker threads for CPU-heavy image operations like scaling,
+ * cutting, compiling, and encoding, so a burst of expensive requests cannot
+ * occupy every core and starve cheap ones. Render jobs wait in a queue of
+ * limited size, and submitting a job to a full queue fails right away. Each
+ * submitting thread waits for its job only up to a deadline; jobs nobody waits
+ * for any longer are removed from the queue unless they started already, in
+ * which case they run to completion, so their results still go to the caches.
+ * Concurrent submissions of jobs with the same key share a single run. Jobs
+ * fetch their source data in the submitting thread before they are queued, so
+ * waiting for the backing DIS never occupies a worker thread. Jobs submitted
+ * from a worker thread, or from a thread started by a render job, run right
+ * away in the submitting thread to prevent deadlocks, and so do all jobs if
+ * the pool has no worker threads.
+ *
+ * @author sautter
+ */
+class GoldenGateDisServletRenderPool {
+	
+	/**
+	 * A CPU-heavy image operation producing PNG data, split into fetching the
+	 * source data and the operation proper.
+	 *
+	 * @author sautter
+	 */
+	static interface RenderJob {
+		
+		/**
+		 * Fetch the source data of the image operation, e.g. from the backing
+		 * DIS, but without decoding, scaling, or encoding anything. This
+		 * method runs in the submitting thread, before the job is queued.
+		 * @throws IOException
+		 */
+		public abstract void prepare() throws IOException;
+		
+		/**
+		 * Run the image operation.
+		 * @return the encoded image produced by the operation
+		 * @throws IOException
+		 */
+		public abstract EncodedImage render() throws IOException;
+	}
+	
+	/**
+	 * Exception indicating a render job was rejected because the queue was
+	 * full, or did not complete before its deadline.
+	 *
+	 * @author sautter
+	 */
+	static class RejectedException extends IOException {
+		RejectedException(String message) {
+			super(message);
+		}
+	}
+	
+	/* marks worker threads, and is inherited by threads they start */
+	private static InheritableThreadLocal inPool = new InheritableThreadLocal();
+	
+	private int threads = 0;
+	private int maxQueueSize = 32;
+	private int timeout = 15000;
+	private ArrayList workers = new ArrayList();
+	
+	private LinkedList queue = new LinkedList();
+	private HashMap tasks = new HashMap();
+	private int running = 0;
+	
+	private long submitted = 0;
+	private long inline = 0;
+	private long shared = 0;
+	private long started = 0;
+	private long completed = 0;
+	private long failed = 0;
+	private long rejected = 0;
+	private long timedOut = 0;
+	private long cancelled = 0;
+	private long totalWaitTime = 0;
+	private long maxWaitTime = 0;
+	
+	/**
+	 * A render job in the queue or in progress, together with its result
+	 * once complete.
+	 */
+	private static class Task {
+		final String key;
+		final RenderJob job;
+		long enqueued = System.currentTimeMillis();
+		long started = -1;
+		int waiters = 1;
+		private boolean done = false;
+		private EncodedImage image = null;
+		private IOException error = null;
+		Task(String key, RenderJob job) {
+			this.key = key;
+			this.job = job;
+		}
+		synchronized void setResult(EncodedImage image, IOException error) {
+			this.image = image;
+			this.error = error;
+			this.done = true;
+			this.notifyAll();
+		}
+		synchronized boolean await(long deadline) {
+			while (!this.done) {
+				long wait = ((deadline < 0) ? 0 : (deadline - System.currentTimeMillis()));
+				if ((deadline >= 0) && (wait <= 0))
+					return false;
+				try {
+					this.wait(wait);
+				} catch (InterruptedException ie) {}
+			}
+			return true;
+		}
+		synchronized EncodedImage getImage() throws IOException {
+			if (this.error != null)
+				throw this.error;
+			return this.image;
+		}
+	}
+	
+	/**
+	 * Set the number of worker threads. A value of 0 disables the pool, so
+	 * render jobs run in the submitting threads.
+	 * @param threads the number of worker threads
+	 */
+	void setThreads(int threads) {
+		synchronized (this.queue) {
+			this.threads = Math.max(0, threads);
+			while (this.workers.size() < this.threads) {
+				RenderWorker worker = new RenderWorker();
+				this.workers.add(worker);
+				worker.start();
+			}
+			while (this.workers.size() > this.threads)
+				((RenderWorker) this.workers.remove(this.workers.size() - 1)).keepRunning = false;
+			if (this.threads == 0)
+				this.cancelQueued("render pool disabled");
+			this.queue.notifyAll();
+		}
+	}
+	
+	/**
+	 * Set the maximum number of render jobs waiting in the queue. Submitting
+	 * a job to a full queue fails right away.
+	 * @param maxQueueSize the maximum queue size
+	 */
+	void setMaxQueueSize(int maxQueueSize) {
+		synchronized (this.queue) {
+			this.maxQueueSize = Math.max(0, maxQueueSize);
+		}
+	}
+	
+	/**
+	 * Set the maximum time (in milliseconds) a submitting thread waits for a
+	 * render job to complete. A value of 0 or less means to wait indefinitely.
+	 * @param timeout the timeout
+	 */
+	void setTimeout(int timeout) {
+		this.timeout = timeout;
+	}
+	
+	/**
+	 * Run a render job in the pool and wait for its result. The job fetches
+	 * its source data in the calling thread, and is queued only afterwards. If
+	 * a job with the same key is being prepared, queued, or running already,
+	 * this method waits for that job instead of running the argument one.
+	 * @param key the key identifying the result of the job
+	 * @param job the job to run
+	 * @return the encoded image produced by the job
+	 * @throws RejectedException if the queue is full, or the job did not
+	 *             complete before the deadline
+	 * @throws IOException if the job fails
+	 */
+	EncodedImage render(String key, RenderJob job) throws IOException {
+		
+		//	we're in the pool already, run job right away
+		if (inPool.get() != null) {
+			synchronized (this.queue) {
+				this.inline++;
+			}
+			job.prepare();
+			return job.render();
+		}
+		
+		//	join job being prepared, queued, or running, or register new one
+		Task task;
+		boolean ownTask = false;
+		synchronized (this.queue) {
+			task = ((Task) this.tasks.get(key));
+			if (task != null) {
+				task.waiters++;
+				this.shared++;
+			}
+			else if (!this.workers.isEmpty() && (this.queue.size() >= this.maxQueueSize)) {
+				this.rejected++;
+				throw new RejectedException("Render queue full, rejecting " + key);
+			}
+			else {
+				task = new Task(key, job);
+				this.tasks.put(key, task);
+				ownTask = true;
+			}
+		}
+		
+		//	fetch source data in this thread (other threads submitting the same key wait for it), then enqueue job
+		if (ownTask) {
+			if (!this.prepare(task))
+				return task.getImage();
+			boolean runInline;
+			synchronized (this.queue) {
+				runInline = this.workers.isEmpty();
+				if (runInline) {
+					task.started = System.currentTimeMillis();
+					this.inline++;
+				}
+				else {
+					task.enqueued = System.currentTimeMillis();
+					this.queue.addLast(task);
+					this.submitted++;
+					this.queue.notify();
+				}
+			}
+			
+			//	no workers, run job in this thread
+			if (runInline) {
+				this.run(task);
+				return task.getImage();
+			}
+		}
+		
+		//	wait for job to complete
+		int timeout = this.timeout;
+		if (task.await((timeout < 1) ? -1 : (System.currentTimeMillis() + timeout)))
+			return task.getImage();
+		
+		//	deadline exceeded, remove job from queue if it didn't start and nobody else is waiting for it
+		synchronized (this.queue) {
+			this.timedOut++;
+			task.waiters--;
+			if ((task.waiters == 0) && (task.started < 0) && this.queue.remove(task)) {
+				this.tasks.remove(task.key);
+				this.cancelled++;
+			}
+		}
+		throw new RejectedException("Render deadline exceeded for " + key);
+	}
+	
+	/*
+	 * run a job and hand its result to the waiting threads, no matter how
+	 * the job fails; errors like an OutOfMemoryError on a huge image are
+	 * confined to the job, as its memory is free once it's done
+	 */
+	private void run(Task task) {
+		EncodedImage image = null;
+		IOException error = null;
+		try {
+			image = task.job.render();
+		}
+		catch (IOException ioe) {
+			error = ioe;
+		}
+		catch (RuntimeException re) {
+			error = wrapError(task.key, re);
+		}
+		catch (Error e) {
+			error = wrapError(task.key, e);
+		}
+		finally {
+			this.complete(task, image, error);
+		}
+	}
+	
+	/*
+	 * fetch the source data of a job in the submitting thread, completing the
+	 * job right away if that fails
+	 */
+	private boolean prepare(Task task) {
+		IOException error;
+		try {
+			task.job.prepare();
+			return true;
+		}
+		catch (IOException ioe) {
+			error = ioe;
+		}
+		catch (RuntimeException re) {
+			error = wrapError(task.key, re);
+		}
+		catch (Error e) {
+			error = wrapError(task.key, e);
+		}
+		this.complete(task, null, error);
+		return false;
+	}
+	
+	/*
+	 * log an unexpected error in a job, and wrap it for the waiting threads
+	 */
+	private static IOException wrapError(String key, Throwable t) {
+		System.out.println("GoldenGateDisServletRenderPool: error rendering " + key + ": " + t.toString());
+		t.printStackTrace(System.out);
+		return new IOException(t.toString());
+	}
+	
+	/*
+	 * hand the result of a job to the waiting threads
+	 */
+	private void complete(Task task, EncodedImage image, IOException error) {
+		synchronized (this.queue) {
+			this.tasks.remove(task.key);
+			if (error == null)
+				this.completed++;
+			else this.failed++;
+		}
+		task.setResult(image, error);
+	}
+	
+	/*
+	 * remove all jobs from the queue, failing them with the argument reason
+	 * (must be called holding the queue lock)
+	 */
+	private void cancelQueued(String reason) {
+		while (this.queue.size() != 0) {
+			Task task = ((Task) this.queue.removeFirst());
+			this.tasks.remove(task.key);
+			this.cancelled++;
+			task.setResult(null, new RejectedException("Could not render " + task.key + ": " + reason));
+		}
+	}
+	
+	private class RenderWorker extends Thread {
+		boolean keepRunning = true;
+		RenderWorker() {
+			super("DisServletRenderWorker");
+			this.setDaemon(true);
+		}
+		public void run() {
+			try {
+				this.work();
+			}
+			
+			//	replace worker if it dies unexpectedly
+			finally {
+				synchronized (queue) {
+					if (this.keepRunning && workers.remove(this)) {
+						RenderWorker worker = new RenderWorker();
+						workers.add(worker);
+						worker.start();
+					}
+				}
+			}
+		}
+		private void work() {
+			inPool.set(Boolean.TRUE);
+			while (true) {
+				Task task;
+				synchronized (queue) {
+					while (this.keepRunning && queue.isEmpty()) try {
+						queue.wait();
+					} catch (InterruptedException ie) {}
+					if (!this.keepRunning)
+						return;
+					task = ((Task) queue.removeFirst());
+					task.started = System.currentTimeMillis();
+					long waitTime = (task.started - task.enqueued);
+					started++;
+					totalWaitTime += waitTime;
+					maxWaitTime = Math.max(maxWaitTime, waitTime);
+					running++;
+				}
+				try {
+					GoldenGateDisServletRenderPool.this.run(task);
+				}
+				finally {
+					synchronized (queue) {
+						running--;
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Retrieve statistics on the render pool.
+	 * @return a snapshot of the render pool statistics
+	 */
+	RenderPoolStats getStats() {
+		synchronized (this.queue) {
+			return new RenderPoolStats(this.threads, this.maxQueueSize, this.timeout, this.queue.size(), this.running, this.submitted, this.inline, this.shared, this.completed, this.failed, this.rejected, this.timedOut, this.cancelled, ((this.started == 0) ? 0 : (this.totalWaitTime / this.started)), this.maxWaitTime);
+		}
+	}
+	
+	/**
+	 * Shut down the render pool, failing all queued render jobs and stopping
+	 * the worker threads.
+	 */
+	void shutdown() {
+		synchronized (this.queue) {
+			this.cancelQueued("render pool shut down");
+			for (int w = 0; w < this.workers.size(); w++)
+				((RenderWorker) this.workers.get(w)).keepRunning = false;
+			this.workers.clear();
+			this.queue.notifyAll();
+		}
+	}
+}
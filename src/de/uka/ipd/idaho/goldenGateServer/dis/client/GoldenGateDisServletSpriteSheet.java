@@ -0,0 +1,359 @@
+/*
+ * Copyright (c) 2006-2008, IPD Boehm, Universitaet Karlsruhe (TH)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Universitt Karlsruhe (TH) nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY UNIVERSITT KARLSRUHE (TH) AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.uka.ipd.idaho.goldenGateServer.dis.client;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import de.uka.ipd.idaho.gamta.util.imaging.PageImage;
+import de.uka.ipd.idaho.goldenGateServer.dis.PageImageInfo;
+
+/**
+ * Sprite sheet of page image thumbnails, i.e., a single image holding the
+ * thumbnails of a block of consecutive pages of a document, laid out row by
+ * row, together with the position of each thumbnail in the sheet. The layout
+ * is computed from page image metadata alone, so HTML pages can refer to the
+ * thumbnails in a sprite sheet without rendering it first. The data for the
+ * individual thumbnails is fetched with a few threads in parallel first, and
+ * then turned into thumbnails and drawn into the sheet in a second step, so
+ * the latter can run in the render pool without waiting for any I/O.
+ *
+ * @author sautter
+ */
+class GoldenGateDisServletSpriteSheet {
+	
+	/** the maximum number of thumbnails in a row of a sprite sheet */
+	static final int COLUMNS = 10;
+	
+	/* space between thumbnails, so scaling in browsers does not blend neighbors */
+	private static final int GAP = 2;
+	
+	/**
+	 * Source of the individual thumbnails to render into a sprite sheet.
+	 *
+	 * @author sautter
+	 */
+	static interface ThumbnailSource {
+		
+		/**
+		 * Fetch the data to create the thumbnail of a page image from, e.g.
+		 * the page image proper, or a cached thumbnail, without decoding or
+		 * scaling anything.
+		 * @param name the name of the page image
+		 * @return the thumbnail data
+		 * @throws IOException
+		 */
+		public abstract Object fetchThumbnailData(String name) throws IOException;
+		
+		/**
+		 * Create the thumbnail of a page image from data fetched before.
+		 * @param name the name of the page image
+		 * @param data the thumbnail data, as returned by fetchThumbnailData()
+		 * @return the thumbnail
+		 * @throws IOException
+		 */
+		public abstract BufferedImage getThumbnail(String name, Object data) throws IOException;
+	}
+	
+	/**
+	 * Exception indicating a sprite sheet was rendered, but some of its
+	 * thumbnails could not be fetched. The exception carries the data of the
+	 * incomplete sprite sheet, so it reaches all requests sharing a rendering
+	 * together with the failure, and none of them has the sheet cached.
+	 *
+	 * @author sautter
+	 */
+	static class IncompleteException extends IOException {
+		final byte[] data;
+		final int failed;
+		IncompleteException(String docId, int number, byte[] data, int failed) {
+			super("Sprite sheet " + number + " of " + docId + " incomplete, " + failed + " thumbnails failed");
+			this.data = data;
+			this.failed = failed;
+		}
+	}
+	
+	final String docId;
+	final int number;
+	final int dpi;
+	
+	final int[] pageIds;
+	final int[] lefts;
+	final int[] tops;
+	final int[] widths;
+	final int[] heights;
+	
+	final int width;
+	final int height;
+	
+	private String json = null;
+	private Object[] thumbnailData = null;
+	private int failed = 0;
+	
+	/**
+	 * Constructor laying out a sprite sheet. The argument array of page image
+	 * metadata has to hold the pages belonging to the sprite sheet, in the
+	 * order of their IDs. Pages whose thumbnail size cannot be computed are
+	 * left out.
+	 * @param docId the ID of the document the pages belong to
+	 * @param number the number of the sprite sheet
+	 * @param dpi the resolution of the thumbnails
+	 * @param piis the metadata of the page images in the sprite sheet
+	 */
+	GoldenGateDisServletSpriteSheet(String docId, int number, int dpi, PageImageInfo[] piis) {
+		this.docId = docId;
+		this.number = number;
+		this.dpi = dpi;
+		
+		ArrayList pageImageInfos = new ArrayList();
+		for (int p = 0; p < piis.length; p++) {
+			if (0 < piis[p].currentDpi)
+				pageImageInfos.add(piis[p]);
+		}
+		this.pageIds = new int[pageImageInfos.size()];
+		this.lefts = new int[this.pageIds.length];
+		this.tops = new int[this.pageIds.length];
+		this.widths = new int[this.pageIds.length];
+		this.heights = new int[this.pageIds.length];
+		
+		//	lay out thumbnails row by row, each row as high as its highest thumbnail
+		int width = 0;
+		int rowTop = 0;
+		int rowHeight = 0;
+		int left = 0;
+		for (int p = 0; p < this.pageIds.length; p++) {
+			PageImageInfo pii = ((PageImageInfo) pageImageInfos.get(p));
+			if ((p != 0) && ((p % COLUMNS) == 0)) {
+				rowTop += (rowHeight + GAP);
+				rowHeight = 0;
+				left = 0;
+			}
+			this.pageIds[p] = pii.pageId;
+			this.widths[p] = Math.max(1, ((pii.width * dpi) / pii.currentDpi));
+			this.heights[p] = Math.max(1, ((pii.height * dpi) / pii.currentDpi));
+			this.lefts[p] = left;
+			this.tops[p] = rowTop;
+			left += (this.widths[p] + GAP);
+			width = Math.max(width, (left - GAP));
+			rowHeight = Math.max(rowHeight, this.heights[p]);
+		}
+		this.width = Math.max(1, width);
+		this.height = Math.max(1, (rowTop + rowHeight));
+	}
+	
+	/**
+	 * Retrieve the index of a page in the sprite sheet.
+	 * @param pageId the ID of the page
+	 * @return the index of the page, or -1 if the page is not in the sprite
+	 *         sheet
+	 */
+	int indexOf(int pageId) {
+		for (int p = 0; p < this.pageIds.length; p++) {
+			if (this.pageIds[p] == pageId)
+				return p;
+		}
+		return -1;
+	}
+	
+	/**
+	 * Check whether or not the sprite sheet holds any thumbnails at all.
+	 * @return true if the sprite sheet is empty, false otherwise
+	 */
+	boolean isEmpty() {
+		return (this.pageIds.length == 0);
+	}
+	
+	/**
+	 * Retrieve a version string of the sprite sheet, which changes whenever
+	 * the layout changes, e.g. to make browsers fetch the sprite sheet again
+	 * after pages were added to a document.
+	 * @return the version string
+	 */
+	String getVersion() {
+		return Integer.toHexString(this.toJson().hashCode());
+	}
+	
+	/**
+	 * Retrieve the number of thumbnails that could not be fetched by the last
+	 * invocation of the fetch() method, or rendered into the sprite sheet by
+	 * the last invocation of the render() method.
+	 * @return the number of failed thumbnails
+	 */
+	int getFailed() {
+		return this.failed;
+	}
+	
+	/**
+	 * Represent the layout of the sprite sheet as a JSON object, holding the
+	 * document ID, the sheet number, the resolution, the size of the sheet,
+	 * and the position and size of each thumbnail in an array.
+	 * @return the JSON representation of the layout
+	 */
+	String toJson() {
+		if (this.json != null)
+			return this.json;
+		StringBuffer json = new StringBuffer("{");
+		json.append("\"docId\":\"" + escapeJson(this.docId) + "\"");
+		json.append(",\"sheet\":" + this.number);
+		json.append(",\"dpi\":" + this.dpi);
+		json.append(",\"width\":" + this.width);
+		json.append(",\"height\":" + this.height);
+		json.append(",\"pages\":[");
+		for (int p = 0; p < this.pageIds.length; p++) {
+			if (p != 0)
+				json.append(",");
+			json.append("{\"pageId\":" + this.pageIds[p] + ",\"x\":" + this.lefts[p] + ",\"y\":" + this.tops[p] + ",\"width\":" + this.widths[p] + ",\"height\":" + this.heights[p] + "}");
+		}
+		json.append("]}");
+		this.json = json.toString();
+		return this.json;
+	}
+	
+	private static String escapeJson(String str) {
+		StringBuffer escaped = new StringBuffer();
+		for (int c = 0; c < str.length(); c++) {
+			char ch = str.charAt(c);
+			if ((ch == '"') || (ch == '\\'))
+				escaped.append('\\');
+			if (ch < 32)
+				escaped.append("\\u00" + ((ch < 16) ? "0" : "") + Integer.toHexString(ch));
+			else escaped.append(ch);
+		}
+		return escaped.toString();
+	}
+	
+	/**
+	 * Fetch the data of the individual thumbnails, using a few threads in
+	 * parallel. Thumbnails without data after fetching, for whatever reason,
+	 * are counted in the number of failed thumbnails, and left blank by the
+	 * render() method.
+	 * @param source the source to fetch the thumbnail data from
+	 * @param threads the maximum number of threads to use
+	 */
+	void fetch(ThumbnailSource source, int threads) {
+		
+		//	start fetchers, and wait for them to finish
+		this.thumbnailData = new Object[this.pageIds.length];
+		this.failed = 0;
+		SpriteFetcher[] fetchers = new SpriteFetcher[Math.max(1, Math.min(threads, this.pageIds.length))];
+		int[] next = {0};
+		for (int f = 0; f < fetchers.length; f++) {
+			fetchers[f] = new SpriteFetcher(source, next);
+			fetchers[f].start();
+		}
+		for (int f = 0; f < fetchers.length; f++) {
+			while (fetchers[f].isAlive()) try {
+				fetchers[f].join();
+			} catch (InterruptedException ie) {}
+		}
+		
+		//	count missing thumbnails (no matter if fetching failed, returned nothing, or never got to a page)
+		for (int p = 0; p < this.thumbnailData.length; p++) {
+			if (this.thumbnailData[p] == null)
+				this.failed++;
+		}
+	}
+	
+	private class SpriteFetcher extends Thread {
+		private ThumbnailSource source;
+		private int[] next;
+		SpriteFetcher(ThumbnailSource source, int[] next) {
+			super("DisServletSpriteFetcher");
+			this.setDaemon(true);
+			this.source = source;
+			this.next = next;
+		}
+		public void run() {
+			while (true) {
+				int p;
+				synchronized (this.next) {
+					if (this.next[0] >= pageIds.length)
+						return;
+					p = this.next[0]++;
+				}
+				String name = PageImage.getPageImageName(docId, pageIds[p]);
+				try {
+					Object data = this.source.fetchThumbnailData(name);
+					synchronized (this.next) {
+						thumbnailData[p] = data;
+					}
+				}
+				catch (Throwable t) {
+					System.out.println("GoldenGateDisServletSpriteSheet: could not get thumbnail of " + name + ": " + t.getMessage());
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Render the sprite sheet from the thumbnail data fetched by the last
+	 * invocation of the fetch() method. Thumbnails without data, or whose data
+	 * cannot be turned into a thumbnail, are left blank, and the latter are
+	 * counted in the number of failed thumbnails as well.
+	 * @param source the source to create the thumbnails with
+	 * @return the rendered sprite sheet
+	 */
+	BufferedImage render(ThumbnailSource source) {
+		BufferedImage sheet = new BufferedImage(this.width, this.height, BufferedImage.TYPE_INT_RGB);
+		Graphics2D graphics = sheet.createGraphics();
+		graphics.setColor(Color.WHITE);
+		graphics.fillRect(0, 0, this.width, this.height);
+		graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+		
+		for (int p = 0; p < this.pageIds.length; p++) {
+			if ((this.thumbnailData == null) || (this.thumbnailData[p] == null))
+				continue;
+			
+			//	create thumbnail
+			String name = PageImage.getPageImageName(this.docId, this.pageIds[p]);
+			BufferedImage thumbnail;
+			try {
+				thumbnail = source.getThumbnail(name, this.thumbnailData[p]);
+			}
+			catch (Exception e) {
+				System.out.println("GoldenGateDisServletSpriteSheet: could not get thumbnail of " + name + ": " + e.getMessage());
+				this.failed++;
+				continue;
+			}
+			finally {
+				this.thumbnailData[p] = null;
+			}
+			
+			//	draw thumbnail (scaling it to the laid out size if it deviates due to rounding)
+			graphics.drawImage(thumbnail, this.lefts[p], this.tops[p], this.widths[p], this.heights[p], null);
+		}
+		
+		graphics.dispose();
+		return sheet;
+	}
+}
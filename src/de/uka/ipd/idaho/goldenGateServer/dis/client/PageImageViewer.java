@@ -286,6 +286,10 @@ public class PageImageViewer extends AbstractDocumentEditorExtension implements
 				//	remove old images
 				this.imageTray.clearImages();
 				
+				//	load images of all pages in one go
+				if (fpId < lpId)
+					this.loadPageImages(fpId, lpId);
+				
 				//	add first image
 				Image image = this.getPageImage(fpId);
 				
@@ -356,21 +360,9 @@ public class PageImageViewer extends AbstractDocumentEditorExtension implements
 				ioe.printStackTrace(System.out);
 			}
 			
-			/*
-			 * try to eastablish server connection. If the document was loaded
-			 * from DIO, this will work, and the classes used here are
-			 * available. If not ... well, we catch that.
-			 */
-			if (this.disClient == null) try {
-				if (AuthenticationManager.isAuthenticated()) {
-					AuthenticatedClient authClient = AuthenticationManager.getAuthenticatedClient();
-					this.disClient = new GoldenGateDisClient(authClient.getServerConnection());
-				}
-			}
-			catch (Throwable t) {
-				System.out.println(" - no access to the required connection classes");
+			//	establish server connection
+			if (!this.connectDisClient())
 				return null;
-			}
 			
 			//	cache miss, load & cache image
 			try {
@@ -396,6 +388,91 @@ public class PageImageViewer extends AbstractDocumentEditorExtension implements
 			return null;
 		}
 		
+		/*
+		 * load the images of a range of pages that are not cached so far, all
+		 * in one go, so we get along with a single server round trip
+		 */
+		void loadPageImages(int fpId, int lpId) {
+			
+			//	get document ID
+			if (this.docId == null)
+				this.docId = this.target.getContent().getDocumentProperty(DOCUMENT_ID_ATTRIBUTE);
+			
+			//	check document ID
+			if (this.docId == null)
+				return;
+			
+			//	collect pages not cached so far
+			LinkedList loadPageIds = new LinkedList();
+			for (int pid = fpId; pid <= lpId; pid++) {
+				String cacheKey = (this.docId + "." + pid);
+				if (this.imageCache.containsKey(cacheKey))
+					continue;
+				if (dataProvider.isDataAvailable("cache/" + cacheKey + "." + IMAGE_FORMAT))
+					continue;
+				loadPageIds.add(new Integer(pid));
+			}
+			
+			//	nothing to load in bulk
+			if (loadPageIds.size() < 2)
+				return;
+			
+			//	establish server connection
+			if (!this.connectDisClient())
+				return;
+			
+			//	load & cache images
+			int[] pageIds = new int[loadPageIds.size()];
+			for (int p = 0; p < pageIds.length; p++)
+				pageIds[p] = ((Integer) loadPageIds.get(p)).intValue();
+			System.out.println("Loading images of " + pageIds.length + " pages");
+			GoldenGateDisClient.PageImageInputStreamIterator piisi = null;
+			try {
+				piisi = this.disClient.getPageImagesAsStreams(this.docId, pageIds);
+				while (piisi.hasNext()) {
+					PageImage pImage = new PageImage(piisi.next());
+					String cacheKey = (this.docId + "." + piisi.getPageId());
+					String cacheDataName = ("cache/" + cacheKey + "." + IMAGE_FORMAT);
+					if (dataProvider.isDataEditable(cacheDataName)) {
+						OutputStream ios = dataProvider.getOutputStream(cacheDataName);
+						pImage.writeImage(ios);
+						ios.flush();
+						ios.close();
+					}
+					this.imageCache.put(cacheKey, pImage.image);
+				}
+				System.out.println(" - images loaded from server");
+			}
+			catch (IOException ioe) {
+				System.out.println(" - " + ioe.getClass().getName() + " (" + ioe.getMessage() + ") while loading images of pages " + fpId + " through " + lpId + " from server");
+				ioe.printStackTrace(System.out);
+			}
+			finally {
+				if (piisi != null) try {
+					piisi.close();
+				} catch (IOException ioe) {}
+			}
+		}
+		
+		/*
+		 * try to eastablish server connection. If the document was loaded
+		 * from DIO, this will work, and the classes used here are
+		 * available. If not ... well, we catch that.
+		 */
+		private boolean connectDisClient() {
+			if (this.disClient == null) try {
+				if (AuthenticationManager.isAuthenticated()) {
+					AuthenticatedClient authClient = AuthenticationManager.getAuthenticatedClient();
+					this.disClient = new GoldenGateDisClient(authClient.getServerConnection());
+				}
+			}
+			catch (Throwable t) {
+				System.out.println(" - no access to the required connection classes");
+				return false;
+			}
+			return (this.disClient != null);
+		}
+		
 		private class ImageTray extends JPanel {
 			
 			private float currentZoomFactor = 1.0f;